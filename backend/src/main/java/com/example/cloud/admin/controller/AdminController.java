@@ -1,20 +1,28 @@
 package com.example.cloud.admin.controller;
 
 import com.example.cloud.admin.service.AdminService;
+import com.example.cloud.admin.service.RawObjectService;
 import com.example.cloud.cloud.model.Plan;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.Map;
 
 @RestController
 @RequestMapping("/admin")
 @CrossOrigin
 public class AdminController {
     private final AdminService adminService;
+    private final RawObjectService rawObjectService;
 
     @Autowired
-    public AdminController(AdminService adminService) {
+    public AdminController(AdminService adminService, RawObjectService rawObjectService) {
         this.adminService = adminService;
+        this.rawObjectService = rawObjectService;
     }
 
     @PatchMapping("/ban/{username}")
@@ -27,8 +35,21 @@ public class AdminController {
         return adminService.unbanUser(username);
     }
 
+    @GetMapping("/principal-cache/stats")
+    public ResponseEntity<Map<String, Object>> principalCacheStats(){
+        return adminService.principalCacheStats();
+    }
+
     @PatchMapping("/change-plan/{username}")
     public ResponseEntity<String> changePlan(@PathVariable String username, @RequestBody Plan plan){
         return adminService.changePlan(username, plan);
     }
+
+    // Stored ciphertext as-is, for backup and replication jobs
+    @GetMapping("/raw/{userId}/{*filePath}")
+    public ResponseEntity<StreamingResponseBody> rawObject(@PathVariable Long userId, @PathVariable String filePath,
+                                                           @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                                           HttpServletRequest request){
+        return rawObjectService.getRawObject(userId, filePath, range, request);
+    }
 }
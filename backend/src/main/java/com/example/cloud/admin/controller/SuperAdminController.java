@@ -2,6 +2,10 @@ package com.example.cloud.admin.controller;
 
 import com.example.cloud.admin.model.UserNameRequest;
 import com.example.cloud.admin.service.SuperAdminService;
+import com.example.cloud.cloud.dto.KeyRotationResponseDto;
+import com.example.cloud.cloud.dto.StorageLayoutMigrationResponseDto;
+import com.example.cloud.cloud.service.KeyRotationService;
+import com.example.cloud.cloud.service.StorageLayoutMigrationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -11,10 +15,15 @@ import org.springframework.web.bind.annotation.*;
 @CrossOrigin
 public class SuperAdminController {
     private final SuperAdminService superAdminService;
+    private final StorageLayoutMigrationService storageLayoutMigrationService;
+    private final KeyRotationService keyRotationService;
 
     @Autowired
-    public SuperAdminController(SuperAdminService superAdminService) {
+    public SuperAdminController(SuperAdminService superAdminService, StorageLayoutMigrationService storageLayoutMigrationService,
+                                KeyRotationService keyRotationService) {
         this.superAdminService = superAdminService;
+        this.storageLayoutMigrationService = storageLayoutMigrationService;
+        this.keyRotationService = keyRotationService;
     }
 
     @PatchMapping("/promote-to-admin/{username}")
@@ -26,4 +35,26 @@ public class SuperAdminController {
     public ResponseEntity<String> demoteToUser(@PathVariable String username){
         return superAdminService.demoteToUser(username);
     }
+
+    // Starts moving users from the flat storage layout into the hashed one; only with storage.layout=hashed
+    @PostMapping("/storage/layout-migration")
+    public ResponseEntity<StorageLayoutMigrationResponseDto> startLayoutMigration(){
+        return storageLayoutMigrationService.start();
+    }
+
+    @GetMapping("/storage/layout-migration")
+    public ResponseEntity<StorageLayoutMigrationResponseDto> layoutMigrationStatus(){
+        return storageLayoutMigrationService.getStatus();
+    }
+
+    // Rewraps every file's data key with the active master key (aes.master-key-id); payloads are not re-encrypted
+    @PostMapping("/encryption/key-rotation")
+    public ResponseEntity<KeyRotationResponseDto> startKeyRotation(){
+        return keyRotationService.start();
+    }
+
+    @GetMapping("/encryption/key-rotation")
+    public ResponseEntity<KeyRotationResponseDto> keyRotationStatus(){
+        return keyRotationService.getStatus();
+    }
 }
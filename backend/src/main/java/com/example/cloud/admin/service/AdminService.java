@@ -2,6 +2,7 @@ package com.example.cloud.admin.service;
 
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.auth.security.service.PrincipalCache;
 import com.example.cloud.cloud.model.Plan;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -9,13 +10,17 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Map;
+
 @Service
 public class AdminService {
     private final MyUserRepository myUserRepository;
+    private final PrincipalCache principalCache;
 
     @Autowired
-    public AdminService(MyUserRepository myUserRepository) {
+    public AdminService(MyUserRepository myUserRepository, PrincipalCache principalCache) {
         this.myUserRepository = myUserRepository;
+        this.principalCache = principalCache;
     }
 
     @Transactional
@@ -28,6 +33,7 @@ public class AdminService {
             return new ResponseEntity<>("User is already banned", HttpStatus.CONFLICT);
         }
         myUser.setBanned(true);
+        principalCache.invalidate(username);
         return new ResponseEntity<>("User banned", HttpStatus.OK);
     }
 
@@ -41,13 +47,19 @@ public class AdminService {
             return new ResponseEntity<>("User is not banned", HttpStatus.CONFLICT);
         }
         myUser.setBanned(false);
+        principalCache.invalidate(username);
         return new ResponseEntity<>("User unbanned", HttpStatus.OK);
     }
 
+    public ResponseEntity<Map<String, Object>> principalCacheStats() {
+        return ResponseEntity.ok(principalCache.stats());
+    }
+
     @Transactional
     public ResponseEntity<String> changePlan(String username, Plan plan) {
         MyUser myUser = myUserRepository.findByUsername(username).orElseThrow(() -> new RuntimeException("User not found"));
         myUser.setPlan(plan);
+        principalCache.invalidate(username);
         return new ResponseEntity<>("Plan changed", HttpStatus.OK);
     }
 }
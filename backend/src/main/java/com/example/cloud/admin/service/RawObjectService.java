@@ -0,0 +1,151 @@
+package com.example.cloud.admin.service;
+
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageEntry;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Serves stored objects byte for byte, still encrypted, for backups and replication. Nothing is
+ * decrypted, so local files can go out with sendfile semantics: the servlet container's sendfile
+ * when it offers one, otherwise {@link FileChannel#transferTo} onto the response. Ranges are over
+ * the stored bytes, so an interrupted copy resumes where it stopped.
+ */
+@Service
+public class RawObjectService {
+    // Tomcat's sendfile contract: set these and leave the body empty, the connector writes the file itself
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end"; // Exclusive
+
+    private static final Logger logger = LoggerFactory.getLogger(RawObjectService.class);
+
+    private final UserStorageUtil userStorageUtil;
+    private final StorageBackend storageBackend;
+
+    @Autowired
+    public RawObjectService(UserStorageUtil userStorageUtil, StorageBackend storageBackend) {
+        this.userStorageUtil = userStorageUtil;
+        this.storageBackend = storageBackend;
+    }
+
+    public ResponseEntity<StreamingResponseBody> getRawObject(Long userId, String filePath, String rangeHeader,
+                                                              HttpServletRequest request) {
+        String relativePath = userStorageUtil.normalizeRelativePath(filePath);
+        String key = userStorageUtil.objectKey(userId, relativePath);
+
+        StorageEntry entry = stat(key).orElse(null);
+        if (entry == null || entry.isFolder()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        long storedSize = entry.getSize();
+        long start = 0;
+        long length = storedSize;
+        boolean partial = false;
+        if (rangeHeader != null && !rangeHeader.isBlank()) {
+            List<HttpRange> ranges = parseRanges(rangeHeader);
+            if (ranges.size() > 1) {
+                logger.debug("Serving the whole object for a multi-range request: {}", rangeHeader);
+            } else if (ranges.size() == 1) {
+                try {
+                    HttpRange range = ranges.get(0);
+                    start = range.getRangeStart(storedSize);
+                    length = range.getRangeEnd(storedSize) - start + 1;
+                    partial = true;
+                } catch (IllegalArgumentException e) {
+                    return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + storedSize)
+                        .build();
+                }
+            }
+        }
+
+        ResponseEntity.BodyBuilder response = partial
+            ? ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (start + length - 1) + "/" + storedSize)
+            : ResponseEntity.ok();
+        response
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + entry.getName() + "\"")
+            .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+            .contentLength(length);
+
+        Optional<Path> localFile = storageBackend.localPath(key)
+            .map(path -> userStorageUtil.getFolderPath(userStorageUtil.getUserRootDir(userId), relativePath));
+        if (localFile.isEmpty()) {
+            long rangeStart = start;
+            long rangeLength = length;
+            return response.body(out -> {
+                try (InputStream in = storageBackend.getRange(key, rangeStart, rangeLength)) {
+                    in.transferTo(out);
+                }
+            });
+        }
+
+        Path file = localFile.get();
+        if (length > 0 && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTR, file.toString());
+            request.setAttribute(SENDFILE_START_ATTR, start);
+            request.setAttribute(SENDFILE_END_ATTR, start + length);
+            return response.build();
+        }
+        long rangeStart = start;
+        long rangeLength = length;
+        return response.body(out -> transfer(file, rangeStart, rangeLength, Channels.newChannel(out)));
+    }
+
+    // transferTo may move fewer bytes than asked, so loop until the range is done
+    private static void transfer(Path file, long start, long length, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = start;
+            long end = start + length;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0 && position >= channel.size()) {
+                    throw new IOException("File " + file + " shrank while being sent");
+                }
+                position += sent;
+            }
+        }
+    }
+
+    // RFC 9110: a Range header that does not parse is ignored and the whole object is served
+    private static List<HttpRange> parseRanges(String rangeHeader) {
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Ignoring malformed Range header: {}", rangeHeader);
+            return List.of();
+        }
+    }
+
+    private Optional<StorageEntry> stat(String key) {
+        try {
+            return storageBackend.stat(key);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reading " + key, e);
+        }
+    }
+}
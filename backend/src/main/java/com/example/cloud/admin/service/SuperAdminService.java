@@ -2,6 +2,7 @@ package com.example.cloud.admin.service;
 
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.auth.security.service.PrincipalCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -12,10 +13,12 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class SuperAdminService {
     private final MyUserRepository myUserRepository;
+    private final PrincipalCache principalCache;
 
     @Autowired
-    public SuperAdminService(MyUserRepository myUserRepository) {
+    public SuperAdminService(MyUserRepository myUserRepository, PrincipalCache principalCache) {
         this.myUserRepository = myUserRepository;
+        this.principalCache = principalCache;
     }
 
     @Transactional
@@ -23,16 +26,19 @@ public class SuperAdminService {
         MyUser myUser = myUserRepository.findByUsername(username).orElseThrow(() -> new RuntimeException("User not found"));
         if (myUser.getRole().equals("ROLE_USER")) {
             myUser.setRole("ROLE_ADMIN");
+            principalCache.invalidate(username);
             return new ResponseEntity<>("Promoted to Admin", HttpStatus.OK);
         }else {
             return new ResponseEntity<>("User is already admin", HttpStatus.CONFLICT);
         }
     }
 
+    @Transactional
     public ResponseEntity<String> demoteToUser(String username) {
         MyUser myUser = myUserRepository.findByUsername(username).orElseThrow(() -> new RuntimeException("User not found"));
         if (myUser.getRole().equals("ROLE_ADMIN")) {
             myUser.setRole("ROLE_USER");
+            principalCache.invalidate(username);
             return new ResponseEntity<>("Demoted to User", HttpStatus.OK);
         }else {
             return new ResponseEntity<>("User is already user", HttpStatus.CONFLICT);
@@ -1,9 +1,12 @@
 package com.example.cloud.auth.model;
 
+import com.example.cloud.cloud.dto.LargestFileDto;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.List;
+
 @Getter
 @Setter
 @AllArgsConstructor
@@ -13,4 +16,7 @@ public class UserStatsResponseDto {
     private long usedStorageBytes;
     private long planStorageLimitBytes;
     private String planName;
+    private long storedBytes; // plaintext bytes of finished files, unlike usedStorageBytes which includes open uploads
+    private long diskBytes; // what those files actually take on storage, after compression
+    private List<LargestFileDto> largestFiles;
 }
@@ -2,11 +2,39 @@ package com.example.cloud.auth.repository;
 
 import com.example.cloud.auth.model.MyUser;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.Optional;
 
 @Repository
 public interface MyUserRepository extends JpaRepository<MyUser, Long> {
     Optional<MyUser> findByUsername(String username);
+
+    // Returns 0 when the reservation would exceed the limit; the check and the increment are one statement
+    @Transactional
+    @Modifying
+    @Query("update MyUser u set u.usedStorageBytes = coalesce(u.usedStorageBytes, 0) + :bytes " +
+        "where u.id = :id and coalesce(u.usedStorageBytes, 0) + :bytes <= :limit")
+    int tryReserveStorage(@Param("id") Long id, @Param("bytes") long bytes, @Param("limit") long limit);
+
+    @Transactional
+    @Modifying
+    @Query("update MyUser u set u.usedStorageBytes = case when coalesce(u.usedStorageBytes, 0) > :bytes " +
+        "then coalesce(u.usedStorageBytes, 0) - :bytes else 0 end where u.id = :id")
+    int releaseStorage(@Param("id") Long id, @Param("bytes") long bytes);
+
+    @Transactional
+    @Modifying
+    @Query("update MyUser u set u.usedStorageBytes = :bytes where u.id = :id")
+    int setUsedStorage(@Param("id") Long id, @Param("bytes") long bytes);
+
+    // Returns 0 when the counter no longer holds expected, so a reservation or release made meanwhile is kept
+    @Transactional
+    @Modifying
+    @Query("update MyUser u set u.usedStorageBytes = :bytes where u.id = :id and coalesce(u.usedStorageBytes, 0) = :expected")
+    int compareAndSetUsedStorage(@Param("id") Long id, @Param("expected") long expected, @Param("bytes") long bytes);
 }
@@ -4,6 +4,7 @@ import com.example.cloud.auth.security.jwt.JwtFilter;
 import com.example.cloud.auth.security.service.UserDetailsServiceImpl;
 import com.example.cloud.cloud.model.Plan;
 import com.example.cloud.cloud.repository.PlanRepository;
+import jakarta.servlet.DispatcherType;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
@@ -46,9 +47,14 @@ public class SecurityConfig {
             .csrf((csrf) -> csrf.disable())
             .cors(c -> c.configurationSource(corsConfigurationSource()))
             .authorizeHttpRequests(authorize -> authorize
+                // Streamed downloads finish on an async dispatch, which was already authorized on the way in
+                .dispatcherTypeMatchers(DispatcherType.ASYNC, DispatcherType.ERROR).permitAll()
                 .requestMatchers("/auth/registration", "/auth/login", "/file/download/**", "/cheat/**").permitAll()
                 .requestMatchers("/super-admin/**").hasRole("SUPER_ADMIN")
                 .requestMatchers("/admin/**").hasAnyRole("ADMIN", "SUPER_ADMIN")
+                // Served on the internal management port only; scrapers and probes carry no token
+                .requestMatchers("/actuator/health/**", "/actuator/prometheus").permitAll()
+                .requestMatchers("/actuator/**").hasAnyRole("ADMIN", "SUPER_ADMIN")
                 // Specific rule for user's own plan upgrade
                 .requestMatchers(HttpMethod.POST, "/plan/me/upgrade").authenticated()
                 // General rules for other /plan endpoints (like creating plans, listing all)
@@ -89,6 +95,8 @@ public class SecurityConfig {
         configuration.setAllowedOriginPatterns(List.of("http://localhost:*"));
         configuration.setAllowedMethods(List.of("GET", "POST", "PUT", "DELETE", "OPTIONS"));
         configuration.setAllowedHeaders(List.of("*"));
+        // Lets the frontend revalidate listings and downloads itself
+        configuration.setExposedHeaders(List.of("ETag"));
         configuration.setAllowCredentials(true);
 
         UrlBasedCorsConfigurationSource source = new UrlBasedCorsConfigurationSource();
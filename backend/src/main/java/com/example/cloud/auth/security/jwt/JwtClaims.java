@@ -0,0 +1,13 @@
+package com.example.cloud.auth.security.jwt;
+
+import lombok.Value;
+
+// Everything the app needs from a verified token, decoded once
+@Value
+public class JwtClaims {
+    String subject;
+    Long userId;   // null for tokens issued before the claim existed
+    String role;
+    Long planId;
+    String tokenId;
+}
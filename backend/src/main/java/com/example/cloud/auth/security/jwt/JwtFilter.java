@@ -1,5 +1,7 @@
 package com.example.cloud.auth.security.jwt;
 
+import com.example.cloud.auth.security.service.PrincipalCache;
+import com.example.cloud.auth.security.service.UserDetailsImpl;
 import com.example.cloud.auth.security.service.UserDetailsServiceImpl;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
@@ -16,18 +18,21 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
+import java.util.Optional;
 
 @Component
 public class JwtFilter extends OncePerRequestFilter {
     private final JwtUtil jwtUtil;
     private final UserDetailsServiceImpl userDetailsService;
+    private final PrincipalCache principalCache;
 
     private static final Logger logger = LoggerFactory.getLogger(JwtFilter.class); // Corrected logger class
 
     @Autowired
-    public JwtFilter(JwtUtil jwtUtil, UserDetailsServiceImpl userDetailsService) {
+    public JwtFilter(JwtUtil jwtUtil, UserDetailsServiceImpl userDetailsService, PrincipalCache principalCache) {
         this.jwtUtil = jwtUtil;
         this.userDetailsService = userDetailsService;
+        this.principalCache = principalCache;
     }
 
     @Override
@@ -37,21 +42,21 @@ public class JwtFilter extends OncePerRequestFilter {
                 String header = request.getHeader("Authorization");
                 if (header.startsWith("Bearer ")) {
                     String jwt = header.substring(7);
-                    if (jwt != null && jwtUtil.validateJwtToken(jwt)) {
-                        String username = jwtUtil.getUserNameFromJwtToken(jwt);
-                        UserDetails userDetails = userDetailsService.loadUserByUsername(username);
+                    Optional<JwtClaims> claims = jwtUtil.verify(jwt);
+                    if (claims.isPresent()) {
+                        JwtClaims jwtClaims = claims.get();
+                        UserDetails userDetails = isReadOnlyStorageRequest(request) && jwtClaims.getUserId() != null
+                            ? UserDetailsImpl.fromClaims(jwtClaims)
+                            : principalCache.get(jwtClaims.getSubject(), jwtClaims.getTokenId(), userDetailsService::loadUserByUsername);
 
                         UsernamePasswordAuthenticationToken authenticationToken =
                             new UsernamePasswordAuthenticationToken(userDetails, null, userDetails.getAuthorities());
                         authenticationToken.setDetails(new WebAuthenticationDetailsSource().buildDetails(request));
 
-                        logger.info("Setting SecurityContext for user: {}, authorities: {}", userDetails.getUsername(), userDetails.getAuthorities());
+                        logger.debug("Setting SecurityContext for user: {}, authorities: {}", userDetails.getUsername(), userDetails.getAuthorities());
                         SecurityContextHolder.getContext().setAuthentication(authenticationToken);
-                        logger.info("SecurityContext successfully set for user: {}", userDetails.getUsername());
                     } else {
-                        if (jwt != null) { // Only log if jwt was present but invalid
-                            logger.warn("JWT token is invalid or validation failed for token: {}", jwt);
-                        }
+                        logger.warn("JWT token is invalid or validation failed");
                     }
                 } else {
                      logger.warn("Authorization header does not start with Bearer: {}", header);
@@ -64,4 +69,11 @@ public class JwtFilter extends OncePerRequestFilter {
         }
         filterChain.doFilter(request, response);
     }
+
+    // Reads of the user's own storage only need the id, username and role, which the token already carries
+    private boolean isReadOnlyStorageRequest(HttpServletRequest request) {
+        String method = request.getMethod();
+        return ("GET".equals(method) || "HEAD".equals(method))
+            && request.getRequestURI().startsWith(request.getContextPath() + "/cloud/");
+    }
 }
@@ -3,48 +3,81 @@ package com.example.cloud.auth.security.jwt;
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
+import com.auth0.jwt.interfaces.DecodedJWT;
 import com.auth0.jwt.interfaces.JWTVerifier;
+import com.example.cloud.auth.model.MyUser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.Date;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @Component
 public class JwtUtil {
-    @Value("${jwt.secret}")
-    private String jwtSecret;
+    private static final String USER_ID_CLAIM = "uid";
+    private static final String ROLE_CLAIM = "role";
+    private static final String PLAN_ID_CLAIM = "pid";
 
-    @Value("${jwt.Expiration.Ms}")
-    private int jwtExpirationMs;
+    private static final Logger logger = LoggerFactory.getLogger(JwtUtil.class);
 
-    public String generateJwtToken(String username) {
+    private final int jwtExpirationMs;
+
+    // Both are immutable and thread-safe, so they are built once instead of per request
+    private final Algorithm algorithm;
+    private final JWTVerifier verifier;
+
+    private final Timer validTokens;
+    private final Timer invalidTokens;
+
+    public JwtUtil(@Value("${jwt.secret}") String jwtSecret, @Value("${jwt.Expiration.Ms}") int jwtExpirationMs,
+                   MeterRegistry meterRegistry) {
+        this.jwtExpirationMs = jwtExpirationMs;
+        this.algorithm = Algorithm.HMAC256(jwtSecret);
+        this.verifier = JWT.require(algorithm).build();
+        this.validTokens = Timer.builder("auth.jwt.verify").tag("result", "valid").register(meterRegistry);
+        this.invalidTokens = Timer.builder("auth.jwt.verify").tag("result", "invalid").register(meterRegistry);
+    }
+
+    public String generateJwtToken(MyUser user) {
 
         return JWT.create()
-            .withSubject(username)
+            .withSubject(user.getUsername())
+            .withJWTId(UUID.randomUUID().toString())
+            .withClaim(USER_ID_CLAIM, user.getId())
+            .withClaim(ROLE_CLAIM, user.getRole())
+            .withClaim(PLAN_ID_CLAIM, user.getPlan() != null ? user.getPlan().getId() : null)
             .withIssuedAt(new Date())
             .withExpiresAt(new Date((new Date()).getTime() + jwtExpirationMs))
-            .sign(Algorithm.HMAC256(jwtSecret));
+            .sign(algorithm);
     }
 
-    public String getUserNameFromJwtToken(String token) {
-        // Validation should be done by the caller (e.g., JwtFilter) before calling this method.
-        // This method assumes the token is already validated for signature and expiration.
-        return JWT.decode(token).getSubject();
-    }
-
-    public boolean validateJwtToken(String authToken) {
-        Logger logger = LoggerFactory.getLogger(this.getClass());
+    // Verifies signature and expiry and decodes the claims in a single parse
+    public Optional<JwtClaims> verify(String token) {
+        long start = System.nanoTime();
         try {
-            Algorithm algorithm = Algorithm.HMAC256(jwtSecret);
-            JWTVerifier verifier = JWT.require(algorithm).build();
-            verifier.verify(authToken);
-            return true;
+            DecodedJWT decoded = verifier.verify(token);
+            validTokens.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return Optional.of(new JwtClaims(
+                decoded.getSubject(),
+                decoded.getClaim(USER_ID_CLAIM).asLong(),
+                decoded.getClaim(ROLE_CLAIM).asString(),
+                decoded.getClaim(PLAN_ID_CLAIM).asLong(),
+                // Tokens issued before token ids existed fall back to their signature, which is just as unique
+                decoded.getId() != null ? decoded.getId() : decoded.getSignature()));
         } catch (JWTVerificationException e) {
-            logger.error("Invalid JWT token: {}", e.getMessage());
+            invalidTokens.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            logger.warn("Invalid JWT token: {}", e.getMessage());
+            return Optional.empty();
         }
+    }
 
-        return false;
+    public boolean validateJwtToken(String authToken) {
+        return verify(authToken).isPresent();
     }
 }
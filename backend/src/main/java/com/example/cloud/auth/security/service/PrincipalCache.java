@@ -0,0 +1,88 @@
+package com.example.cloud.auth.security.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Authenticated principals by (username, token id), so JwtFilter does not hit the database on every request.
+// Entries are immutable snapshots; every request gets its own MyUser built from one
+@Component
+public class PrincipalCache {
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    private final Cache<String, PrincipalSnapshot> cache;
+    // Bumped by every invalidation, so a load that overlapped one does not cache what it read
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public PrincipalCache(@Value("${security.principal-cache.max-size:10000}") long maxSize,
+                          @Value("${security.principal-cache.ttl-seconds:60}") long ttlSeconds,
+                          MeterRegistry meterRegistry) {
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+            .recordStats()
+            .build();
+        // Hits are lookups served without the database, misses the ones that loaded the user row
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "principals");
+    }
+
+    // Not cache.get(key, loader): that runs the user query inside a map compute, which pins the carrier of a
+    // virtual thread for the whole JDBC round trip. Two requests missing at once may both load, which is harmless
+    public UserDetailsImpl get(String username, String tokenId, Function<String, UserDetailsImpl> loader) {
+        String key = username + KEY_SEPARATOR + tokenId;
+        PrincipalSnapshot cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached.toUserDetails();
+        }
+        long generation = invalidations.get();
+        PrincipalSnapshot loaded = PrincipalSnapshot.of(loader.apply(username).getMyUser());
+        // An invalidation while the row was read may have come after the read, so that row is not cached
+        if (invalidations.get() == generation) {
+            cache.put(key, loaded);
+        }
+        return loaded.toUserDetails();
+    }
+
+    // Drops every cached token of the user; called by anything that changes role, ban state or plan
+    public void invalidate(String username) {
+        evict(username);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            // A request racing the transaction could cache the old row again, so evict once more after commit
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict(username);
+                }
+            });
+        }
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("size", cache.estimatedSize());
+        result.put("hitCount", stats.hitCount());
+        result.put("missCount", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictionCount", stats.evictionCount());
+        return result;
+    }
+
+    private void evict(String username) {
+        invalidations.incrementAndGet();
+        String prefix = username + KEY_SEPARATOR;
+        cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+}
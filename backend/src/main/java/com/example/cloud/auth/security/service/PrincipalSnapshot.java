@@ -0,0 +1,52 @@
+package com.example.cloud.auth.security.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.cloud.model.CompressionCodec;
+import com.example.cloud.cloud.model.Plan;
+import lombok.Value;
+
+// What PrincipalCache keeps of a user: the fields that only change together with an invalidation, held
+// immutably so requests sharing an entry cannot see each other's changes. Storage usage is never cached
+@Value
+public class PrincipalSnapshot {
+    Long id;
+    String username;
+    String password;
+    String role;
+    boolean banned;
+    Long planId;
+    String planName;
+    String planDescription;
+    Integer planPrice;
+    Long planStorageLimitBytes;
+    CompressionCodec planCompression;
+
+    public static PrincipalSnapshot of(MyUser user) {
+        Plan plan = user.getPlan();
+        return new PrincipalSnapshot(user.getId(), user.getUsername(), user.getPassword(), user.getRole(), user.isBanned(),
+            plan == null ? null : plan.getId(),
+            plan == null ? null : plan.getName(),
+            plan == null ? null : plan.getDescription(),
+            plan == null ? null : plan.getPrice(),
+            plan == null ? null : plan.getStorageLimitBytes(),
+            plan == null ? null : plan.getCompression());
+    }
+
+    // A fresh, detached user per request. usedStorageBytes is left null: read it from MyUserRepository
+    public UserDetailsImpl toUserDetails() {
+        MyUser user = new MyUser();
+        user.setId(id);
+        user.setUsername(username);
+        user.setPassword(password);
+        user.setRole(role);
+        user.setBanned(banned);
+        user.setUsedStorageBytes(null);
+        if (planId != null) {
+            Plan plan = new Plan(planName, planDescription, planPrice, planStorageLimitBytes);
+            plan.setId(planId);
+            plan.setCompression(planCompression);
+            user.setPlan(plan);
+        }
+        return new UserDetailsImpl(user);
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.cloud.auth.security.service;
 
 import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.security.jwt.JwtClaims;
 import lombok.Getter;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -21,6 +22,16 @@ public class UserDetailsImpl implements UserDetails {
         this.myUser = myUser;
     }
 
+    // Principal rebuilt from token claims without a database read. The MyUser only carries id, username and role,
+    // so it must never be saved and is only used for read-only requests.
+    public static UserDetailsImpl fromClaims(JwtClaims claims) {
+        MyUser user = new MyUser();
+        user.setId(claims.getUserId());
+        user.setUsername(claims.getSubject());
+        user.setRole(claims.getRole());
+        return new UserDetailsImpl(user);
+    }
+
     @Override
     public boolean isAccountNonLocked() {
         return !myUser.isBanned();
@@ -5,24 +5,25 @@ import com.example.cloud.auth.model.LoginRequestDto; // Import LoginRequestDto
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.auth.repository.MyUserRepository;
 import com.example.cloud.auth.security.jwt.JwtUtil;
+import com.example.cloud.auth.security.service.UserDetailsImpl;
 import com.example.cloud.cloud.model.Plan;
 import com.example.cloud.cloud.repository.PlanRepository;
 import com.example.cloud.cloud.service.PlanService;
+import com.example.cloud.cloud.model.UserStorageStats;
+import com.example.cloud.cloud.service.UserStorageStatsService;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.io.File;
-import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 import com.example.cloud.cloud.util.UserStorageUtil;
 import com.example.cloud.auth.model.UserStatsResponseDto;
 
@@ -38,8 +39,9 @@ public class MyUserService {
     private final UserStorageUtil userStorageUtil; // Added UserStorageUtil
 
     private final PlanService planService;
+    private final UserStorageStatsService userStorageStatsService;
     @Autowired
-    public MyUserService(MyUserRepository myUserRepository, JwtUtil jwtUtil, PasswordEncoder passwordEncoder, AuthenticationManager authenticationManager, ModelMapper modelMapper, PlanRepository planRepository, PlanService planService, UserStorageUtil userStorageUtil) {
+    public MyUserService(MyUserRepository myUserRepository, JwtUtil jwtUtil, PasswordEncoder passwordEncoder, AuthenticationManager authenticationManager, ModelMapper modelMapper, PlanRepository planRepository, PlanService planService, UserStorageUtil userStorageUtil, UserStorageStatsService userStorageStatsService) {
         this.myUserRepository = myUserRepository;
         this.jwtUtil = jwtUtil;
         this.passwordEncoder = passwordEncoder;
@@ -48,6 +50,7 @@ public class MyUserService {
         this.planRepository = planRepository;
         this.planService = planService;
         this.userStorageUtil = userStorageUtil; // Initialize UserStorageUtil
+        this.userStorageStatsService = userStorageStatsService;
     }
 
     @Transactional
@@ -82,26 +85,30 @@ public class MyUserService {
         UsernamePasswordAuthenticationToken authenticationToken =
             new UsernamePasswordAuthenticationToken(loginRequestDto.getUsername(), loginRequestDto.getPassword());
         Map<String, String> map = new HashMap<>();
+        Authentication authentication;
         try {
-            authenticationManager.authenticate(authenticationToken);
+            authentication = authenticationManager.authenticate(authenticationToken);
         }catch (Exception e){
             map.put("message", "Incorrect credentials");
             return new ResponseEntity<>(map, HttpStatus.FORBIDDEN);
         }
-        String token = jwtUtil.generateJwtToken(loginRequestDto.getUsername());
+        MyUser myUser = ((UserDetailsImpl) authentication.getPrincipal()).getMyUser();
+        String token = jwtUtil.generateJwtToken(myUser);
         map.put("jwt token", token);
         return new ResponseEntity<>(map, HttpStatus.OK);
     }
 
     @Transactional(readOnly = true)
     public ResponseEntity<UserStatsResponseDto> getUserStats() {
-        MyUser currentUser = userStorageUtil.getCurrentUser();
+        MyUser principal = userStorageUtil.getCurrentUser();
+        // The principal may come from the cache and carries no storage usage, so read the current row
+        MyUser currentUser = principal == null ? null : myUserRepository.findById(principal.getId()).orElse(null);
         if (currentUser == null || currentUser.getPlan() == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null); // Or throw an exception
         }
 
-        Path userRootDir = userStorageUtil.getUserRootDir(currentUser);
-        FileCounts counts = countFilesAndFolders(userRootDir.toFile());
+        // Running totals kept up to date on every write, so this is O(1) whatever the tree size
+        UserStorageStats storageStats = userStorageStatsService.getStats(currentUser.getId());
 
         Long usedStorage = currentUser.getUsedStorageBytes();
         if (usedStorage == null) {
@@ -125,40 +132,15 @@ public class MyUserService {
         }
 
         UserStatsResponseDto statsDto = new UserStatsResponseDto(
-                counts.fileCount,
-                counts.folderCount,
+                storageStats.getFileCount(),
+                storageStats.getFolderCount(),
                 usedStorage, // Use the potentially defaulted value
                 planStorageLimit, // Use the potentially defaulted value
-                currentUser.getPlan().getName()
+                currentUser.getPlan().getName(),
+                storageStats.getStoredBytes(),
+                storageStats.getDiskBytes(),
+                userStorageStatsService.getLargestFiles(currentUser.getId())
         );
         return ResponseEntity.ok(statsDto);
     }
-
-    private FileCounts countFilesAndFolders(File directory) {
-        long fileCount = 0;
-        long folderCount = 0;
-        if (directory.exists() && directory.isDirectory()) {
-            for (File file : Objects.requireNonNull(directory.listFiles())) {
-                if (file.isFile()) {
-                    fileCount++;
-                } else if (file.isDirectory()) {
-                    folderCount++;
-                    FileCounts subCounts = countFilesAndFolders(file);
-                    fileCount += subCounts.fileCount;
-                    folderCount += subCounts.folderCount;
-                }
-            }
-        }
-        return new FileCounts(fileCount, folderCount);
-    }
-
-    private static class FileCounts {
-        long fileCount;
-        long folderCount;
-
-        FileCounts(long fileCount, long folderCount) {
-            this.fileCount = fileCount;
-            this.folderCount = folderCount;
-        }
-    }
 }
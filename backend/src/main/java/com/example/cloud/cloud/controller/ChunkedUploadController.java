@@ -0,0 +1,49 @@
+package com.example.cloud.cloud.controller;
+
+import com.example.cloud.cloud.dto.UploadInitiateRequestDto;
+import com.example.cloud.cloud.dto.UploadSessionResponseDto;
+import com.example.cloud.cloud.service.ChunkedUploadService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.InputStream;
+
+@RestController
+@RequestMapping("/cloud/file/upload")
+@CrossOrigin
+public class ChunkedUploadController {
+    private final ChunkedUploadService chunkedUploadService;
+
+    @Autowired
+    public ChunkedUploadController(ChunkedUploadService chunkedUploadService) {
+        this.chunkedUploadService = chunkedUploadService;
+    }
+
+    @PostMapping
+    public ResponseEntity<UploadSessionResponseDto> initiate(@RequestBody UploadInitiateRequestDto request) {
+        return chunkedUploadService.initiate(request);
+    }
+
+    // Lets a client that lost its connection find out which chunks still have to be sent
+    @GetMapping("/{uploadId}")
+    public ResponseEntity<UploadSessionResponseDto> status(@PathVariable String uploadId) {
+        return chunkedUploadService.status(uploadId);
+    }
+
+    // Raw chunk bytes in the request body, no multipart wrapping
+    @PutMapping("/{uploadId}/chunk/{index}")
+    public ResponseEntity<UploadSessionResponseDto> putChunk(@PathVariable String uploadId, @PathVariable int index, InputStream body) {
+        return chunkedUploadService.putChunk(uploadId, index, body);
+    }
+
+    @PostMapping("/{uploadId}/complete")
+    public ResponseEntity<UploadSessionResponseDto> complete(@PathVariable String uploadId) {
+        return chunkedUploadService.complete(uploadId);
+    }
+
+    @DeleteMapping("/{uploadId}")
+    public ResponseEntity<String> abort(@PathVariable String uploadId) {
+        return chunkedUploadService.abort(uploadId);
+    }
+}
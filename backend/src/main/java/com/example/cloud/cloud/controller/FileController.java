@@ -1,13 +1,19 @@
 package com.example.cloud.cloud.controller;
 
+import com.example.cloud.cloud.dto.BatchUploadResponseDto;
+import com.example.cloud.cloud.service.BatchUploadService;
+import com.example.cloud.cloud.service.DerivativeService;
 import com.example.cloud.cloud.service.FileService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.List;
 
 
 @RestController
@@ -15,10 +21,14 @@ import org.springframework.web.multipart.MultipartFile;
 @CrossOrigin
 public class FileController {
     private final FileService fileService;
+    private final BatchUploadService batchUploadService;
+    private final DerivativeService derivativeService;
 
     @Autowired
-    public FileController(FileService fileService) {
+    public FileController(FileService fileService, BatchUploadService batchUploadService, DerivativeService derivativeService) {
         this.fileService = fileService;
+        this.batchUploadService = batchUploadService;
+        this.derivativeService = derivativeService;
     }
 
     // Handles POST /cloud/file/create (for root directory)
@@ -35,13 +45,36 @@ public class FileController {
         return new ResponseEntity<>("File created in folder", HttpStatus.CREATED);
     }
 
+    // Many files in one request, each part named "files"; answers with a result per part
+    @PostMapping(value = "/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BatchUploadResponseDto> batchUploadToRoot(@RequestParam("files") List<MultipartFile> files) {
+        return batchUploadService.uploadFiles(files, "");
+    }
+
+    @PostMapping(value = "/batch/{*folderPath}", consumes = MediaType.MULTIPART_FORM_DATA_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<BatchUploadResponseDto> batchUploadToFolder(@RequestParam("files") List<MultipartFile> files,
+                                                                      @PathVariable("folderPath") String folderPath) {
+        return batchUploadService.uploadFiles(files, folderPath);
+    }
+
     // Adjusted download to also have a root and specific path version for consistency, if needed.
     // Or ensure {*folderPath} correctly handles empty for root if that's the desired single-endpoint behavior.
     // For now, assuming {*folderPath} in download, change, delete might work for root if it matches empty.
     // If not, similar root/specific path handlers would be needed.
     @GetMapping("/download/{*folderPath}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String folderPath) {
-        return fileService.getDownloadFile(folderPath); // Download can often remain as PathVariable if it works
+    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable String folderPath,
+                                                              @RequestHeader(value = HttpHeaders.RANGE, required = false) String range,
+                                                              @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                              @RequestHeader(value = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince) {
+        return fileService.getDownloadFile(folderPath, range, ifRange, ifNoneMatch, ifModifiedSince); // Download can often remain as PathVariable if it works
+    }
+
+    // Thumbnail or text preview rendered after upload; 404 until it exists or for files that have none
+    @GetMapping("/preview/{*filePath}")
+    public ResponseEntity<byte[]> previewFile(@PathVariable String filePath,
+                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        return derivativeService.getPreview(filePath, ifNoneMatch);
     }
 
     @PutMapping("/rename") // Changed from "/change" to "/rename"
@@ -49,6 +82,19 @@ public class FileController {
         return fileService.changeFileName(itemPath, newFileName);
     }
 
+    // Into another folder; newFileName is optional and keeps the current name when left out
+    @PutMapping("/move")
+    public ResponseEntity<String> moveFile(@RequestParam String itemPath, @RequestParam String targetFolder,
+                                           @RequestParam(required = false) String newFileName) {
+        return fileService.moveFile(itemPath, targetFolder, newFileName);
+    }
+
+    @PostMapping("/copy")
+    public ResponseEntity<String> copyFile(@RequestParam String itemPath, @RequestParam String targetFolder,
+                                           @RequestParam(required = false) String newFileName) {
+        return fileService.copyFile(itemPath, targetFolder, newFileName);
+    }
+
     @DeleteMapping("/delete") // PathVariable removed
     public ResponseEntity<String> deleteFile(@RequestParam String itemPath) {
         return fileService.deleteFile(itemPath);
@@ -1,10 +1,18 @@
 package com.example.cloud.cloud.controller;
 
 import com.example.cloud.cloud.dto.FileFolderResponseDto;
+import com.example.cloud.cloud.dto.FolderCopyJobResponseDto;
+import com.example.cloud.cloud.dto.FolderDeleteJobResponseDto;
+import com.example.cloud.cloud.dto.FolderPageResponseDto;
+import com.example.cloud.cloud.service.FolderArchiveService;
+import com.example.cloud.cloud.service.FolderCopyJobService;
+import com.example.cloud.cloud.service.FolderDeleteJobService;
 import com.example.cloud.cloud.service.FolderService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.Map;
 import java.util.Optional; // Import Optional
@@ -14,10 +22,17 @@ import java.util.Optional; // Import Optional
 @CrossOrigin
 public class FolderController {
     private final FolderService folderService;
+    private final FolderDeleteJobService folderDeleteJobService;
+    private final FolderArchiveService folderArchiveService;
+    private final FolderCopyJobService folderCopyJobService;
 
     @Autowired
-    public FolderController(FolderService folderService) {
+    public FolderController(FolderService folderService, FolderDeleteJobService folderDeleteJobService,
+                            FolderArchiveService folderArchiveService, FolderCopyJobService folderCopyJobService) {
         this.folderService = folderService;
+        this.folderDeleteJobService = folderDeleteJobService;
+        this.folderArchiveService = folderArchiveService;
+        this.folderCopyJobService = folderCopyJobService;
     }
 
     // Handles /cloud/folder/create/path/to/folder
@@ -29,15 +44,51 @@ public class FolderController {
 
     // Specific handler for GET /cloud/folder/view (root)
     @GetMapping("/view")
-    public ResponseEntity<FileFolderResponseDto> viewRootFolder() {
-        return folderService.viewFolder(""); // Pass empty string to service for root
+    public ResponseEntity<FileFolderResponseDto> viewRootFolder(@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                                @RequestHeader(value = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince) {
+        return folderService.viewFolder("", ifNoneMatch, ifModifiedSince); // Pass empty string to service for root
     }
 
     // Handler for GET /cloud/folder/view/path/to/folder
     // Using {*folderPath} to capture multiple segments
     @GetMapping("/view/{*folderPath}")
-    public ResponseEntity<FileFolderResponseDto> viewSpecificFolder(@PathVariable String folderPath) {
-        return folderService.viewFolder(folderPath);
+    public ResponseEntity<FileFolderResponseDto> viewSpecificFolder(@PathVariable String folderPath,
+                                                                    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                                    @RequestHeader(value = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince) {
+        return folderService.viewFolder(folderPath, ifNoneMatch, ifModifiedSince);
+    }
+
+    // Paginated listing: GET /cloud/folder/list/path?limit=100&sort=size&direction=desc&prefix=IMG_&type=file&cursor=...
+    @GetMapping("/list")
+    public ResponseEntity<FolderPageResponseDto> listRootFolder(@RequestParam(required = false) String cursor,
+                                                                @RequestParam(defaultValue = "100") int limit,
+                                                                @RequestParam(defaultValue = "name") String sort,
+                                                                @RequestParam(defaultValue = "asc") String direction,
+                                                                @RequestParam(required = false) String prefix,
+                                                                @RequestParam(required = false) String type,
+                                                                @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                                @RequestHeader(value = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince) {
+        return folderService.listFolderPage("", cursor, limit, sort, direction, prefix, type, ifNoneMatch, ifModifiedSince);
+    }
+
+    @GetMapping("/list/{*folderPath}")
+    public ResponseEntity<FolderPageResponseDto> listSpecificFolder(@PathVariable String folderPath,
+                                                                    @RequestParam(required = false) String cursor,
+                                                                    @RequestParam(defaultValue = "100") int limit,
+                                                                    @RequestParam(defaultValue = "name") String sort,
+                                                                    @RequestParam(defaultValue = "asc") String direction,
+                                                                    @RequestParam(required = false) String prefix,
+                                                                    @RequestParam(required = false) String type,
+                                                                    @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+                                                                    @RequestHeader(value = HttpHeaders.IF_MODIFIED_SINCE, required = false) String ifModifiedSince) {
+        return folderService.listFolderPage(folderPath, cursor, limit, sort, direction, prefix, type, ifNoneMatch, ifModifiedSince);
+    }
+
+    // Whole folder as a streamed ZIP; already-compressed files are STORED unless store=false
+    @GetMapping("/download/{*folderPath}")
+    public ResponseEntity<StreamingResponseBody> downloadFolder(@PathVariable String folderPath,
+                                                                @RequestParam(defaultValue = "true") boolean store) {
+        return folderArchiveService.downloadFolder(folderPath, store);
     }
 
     // It's generally better to use @PutMapping for rename if it's idempotent
@@ -46,8 +97,33 @@ public class FolderController {
         return folderService.renameFolder(itemPath, newFolderName);
     }
 
+    // targetFolder "" is the root; newFolderName is optional and keeps the current name when left out
+    @PutMapping("/move")
+    public ResponseEntity<String> moveFolder(@RequestParam String itemPath, @RequestParam String targetFolder,
+                                             @RequestParam(required = false) String newFolderName) {
+        return folderService.moveFolder(itemPath, targetFolder, newFolderName);
+    }
+
+    // Starts a background copy and answers 202 with the job id to poll
+    @PostMapping("/copy")
+    public ResponseEntity<Map<String, String>> copyFolder(@RequestParam String itemPath, @RequestParam String targetFolder,
+                                                          @RequestParam(required = false) String newFolderName) {
+        return folderService.copyFolder(itemPath, targetFolder, newFolderName);
+    }
+
+    @GetMapping("/copy-jobs/{jobId}")
+    public ResponseEntity<FolderCopyJobResponseDto> getCopyJob(@PathVariable String jobId) {
+        return folderCopyJobService.getJob(jobId);
+    }
+
     @DeleteMapping("/delete") // PathVariable removed
-    public ResponseEntity<String> deleteFolder(@RequestParam String itemPath){
+    public ResponseEntity<Map<String, String>> deleteFolder(@RequestParam String itemPath){
         return folderService.deleteFolder(itemPath);
     }
+
+    // Progress of a background delete started by DELETE /cloud/folder/delete
+    @GetMapping("/delete-jobs/{jobId}")
+    public ResponseEntity<FolderDeleteJobResponseDto> getDeleteJob(@PathVariable String jobId) {
+        return folderDeleteJobService.getJob(jobId);
+    }
 }
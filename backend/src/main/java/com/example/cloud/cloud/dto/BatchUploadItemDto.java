@@ -0,0 +1,15 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// Outcome of one part of a batch upload; path is set for stored files, error for failed ones
+@Getter
+@AllArgsConstructor
+public class BatchUploadItemDto {
+    private String name;
+    private String path;
+    private String status;
+    private long size;
+    private String error;
+}
@@ -0,0 +1,14 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class BatchUploadResponseDto {
+    private int uploaded;
+    private int failed;
+    private List<BatchUploadItemDto> items; // in the order the parts were sent
+}
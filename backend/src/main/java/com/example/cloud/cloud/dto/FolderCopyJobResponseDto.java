@@ -0,0 +1,18 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class FolderCopyJobResponseDto {
+    private String jobId;
+    private String sourcePath;
+    private String targetPath;
+    private String status;
+    private long filesTotal;
+    private long filesCopied;
+    private long foldersCopied;
+    private long bytesCopied;
+    private long failures;
+}
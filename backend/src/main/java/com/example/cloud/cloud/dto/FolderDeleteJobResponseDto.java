@@ -0,0 +1,16 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class FolderDeleteJobResponseDto {
+    private String jobId;
+    private String folderPath;
+    private String status;
+    private long filesDeleted;
+    private long foldersDeleted;
+    private long bytesReclaimed;
+    private long failures;
+}
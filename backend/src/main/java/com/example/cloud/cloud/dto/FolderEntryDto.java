@@ -0,0 +1,15 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+@Getter
+@AllArgsConstructor
+public class FolderEntryDto {
+    private String name;
+    private boolean isFolder;
+    private long size;
+    private Instant modifiedAt;
+}
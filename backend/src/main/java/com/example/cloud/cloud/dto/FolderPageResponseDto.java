@@ -0,0 +1,13 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class FolderPageResponseDto {
+    private List<FolderEntryDto> items;
+    private String nextCursor; // null on the last page
+}
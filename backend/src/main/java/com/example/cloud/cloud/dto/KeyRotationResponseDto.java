@@ -0,0 +1,19 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+@Getter
+@AllArgsConstructor
+public class KeyRotationResponseDto {
+    private String status;
+    private String keyId;
+    private long filesRewrapped;
+    private long filesCurrent;
+    private long filesSkipped;
+    private long failures;
+    private Instant startedAt;
+    private Instant finishedAt;
+}
@@ -0,0 +1,11 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class LargestFileDto {
+    private String path;
+    private long size;
+}
@@ -0,0 +1,18 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+@Getter
+@AllArgsConstructor
+public class StorageLayoutMigrationResponseDto {
+    private String status;
+    private long usersMigrated;
+    private long usersSkipped;
+    private long linksRemoved;
+    private long failures;
+    private Instant startedAt;
+    private Instant finishedAt;
+}
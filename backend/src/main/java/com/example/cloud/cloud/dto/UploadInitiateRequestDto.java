@@ -0,0 +1,12 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class UploadInitiateRequestDto {
+    private String folderPath; // "" for the root folder
+    private String fileName;
+    private long totalSize;
+}
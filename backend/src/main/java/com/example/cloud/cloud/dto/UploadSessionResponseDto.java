@@ -0,0 +1,16 @@
+package com.example.cloud.cloud.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class UploadSessionResponseDto {
+    private String uploadId;
+    private long chunkSize;
+    private int totalChunks;
+    private List<Integer> receivedChunks;
+    private boolean completed;
+}
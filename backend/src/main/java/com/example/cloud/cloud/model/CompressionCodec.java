@@ -0,0 +1,26 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+// How file contents are compressed before encryption; the id is what the encrypted file header records
+@Getter
+public enum CompressionCodec {
+    NONE(0),
+    DEFLATE(1),
+    ZSTD(2);
+
+    private final int id;
+
+    CompressionCodec(int id) {
+        this.id = id;
+    }
+
+    public static CompressionCodec fromId(int id) {
+        for (CompressionCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec: " + id);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+import java.util.Locale;
+import java.util.Set;
+
+// Which derivative a file gets, by its extension; images and PDFs get a JPEG thumbnail, text a plain text head
+@Getter
+public enum DerivativeKind {
+    IMAGE("jpg", "image/jpeg", Set.of("jpg", "jpeg", "png", "gif", "bmp")),
+    PDF("jpg", "image/jpeg", Set.of("pdf")),
+    TEXT("txt", "text/plain;charset=UTF-8", Set.of("txt", "md", "csv", "log", "json", "xml", "yaml", "yml", "ini", "conf",
+        "html", "htm", "css", "js", "ts", "java", "py", "sh", "sql"));
+
+    private final String extension;
+    private final String contentType;
+    private final Set<String> sourceExtensions;
+
+    DerivativeKind(String extension, String contentType, Set<String> sourceExtensions) {
+        this.extension = extension;
+        this.contentType = contentType;
+        this.sourceExtensions = sourceExtensions;
+    }
+
+    // Null for files nothing is derived from
+    public static DerivativeKind forFileName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for (DerivativeKind kind : values()) {
+            if (kind.sourceExtensions.contains(extension)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of an asynchronous folder copy. reservedBytes were charged to the quota before the job started;
+// whatever was not copied in the end goes back in one update
+@Getter
+public class FolderCopyJob {
+    public enum Status { RUNNING, COMPLETED, FAILED }
+
+    private final String id;
+    private final Long userId;
+    private final String sourcePath;
+    private final String targetPath;
+    private final long filesTotal;
+    private final long reservedBytes;
+    private final Instant startedAt;
+    private final AtomicLong filesCopied = new AtomicLong();
+    private final AtomicLong foldersCopied = new AtomicLong();
+    private final AtomicLong bytesCopied = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Status status = Status.RUNNING;
+    private volatile Instant finishedAt;
+
+    public FolderCopyJob(String id, Long userId, String sourcePath, String targetPath, long filesTotal, long reservedBytes) {
+        this.id = id;
+        this.userId = userId;
+        this.sourcePath = sourcePath;
+        this.targetPath = targetPath;
+        this.filesTotal = filesTotal;
+        this.reservedBytes = reservedBytes;
+        this.startedAt = Instant.now();
+    }
+
+    public void finish() {
+        this.status = failures.get() == 0 ? Status.COMPLETED : Status.FAILED;
+        this.finishedAt = Instant.now();
+    }
+}
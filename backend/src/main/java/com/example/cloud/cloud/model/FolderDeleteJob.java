@@ -0,0 +1,41 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of an asynchronous folder delete. On local storage the folder has already been moved out of the user's
+// tree to tombstonePath; on other backends tombstonePath is null and the folder is deleted under storageKey
+@Getter
+public class FolderDeleteJob {
+    public enum Status { RUNNING, COMPLETED, FAILED }
+
+    private final String id;
+    private final Long userId;
+    private final String folderPath;
+    private final Path tombstonePath;
+    private final String storageKey;
+    private final Instant startedAt;
+    private final AtomicLong filesDeleted = new AtomicLong();
+    private final AtomicLong foldersDeleted = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Status status = Status.RUNNING;
+    private volatile Instant finishedAt;
+
+    public FolderDeleteJob(String id, Long userId, String folderPath, Path tombstonePath, String storageKey) {
+        this.id = id;
+        this.userId = userId;
+        this.folderPath = folderPath;
+        this.tombstonePath = tombstonePath;
+        this.storageKey = storageKey;
+        this.startedAt = Instant.now();
+    }
+
+    public void finish() {
+        this.status = failures.get() == 0 ? Status.COMPLETED : Status.FAILED;
+        this.finishedAt = Instant.now();
+    }
+}
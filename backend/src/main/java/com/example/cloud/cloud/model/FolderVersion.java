@@ -0,0 +1,34 @@
+package com.example.cloud.cloud.model;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.Instant;
+
+// Change counter of one folder's listing, the validator behind its ETag; path as in stored_object, "" is the root
+@Entity
+@Table(name = "folder_version", indexes = {
+    @Index(name = "ux_folder_version_owner_path", columnList = "owner_id, path", unique = true)
+})
+@Getter
+@Setter
+@NoArgsConstructor
+public class FolderVersion {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "owner_id", nullable = false)
+    private Long ownerId;
+
+    @Column(nullable = false, length = 2048)
+    private String path;
+
+    @Column(nullable = false)
+    private long version;
+
+    @Column(name = "changed_at", nullable = false)
+    private Instant changedAt;
+}
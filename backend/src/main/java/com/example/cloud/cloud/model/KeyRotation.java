@@ -0,0 +1,33 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of one pass moving stored files' data keys to the active master key
+@Getter
+public class KeyRotation {
+    public enum Status { RUNNING, COMPLETED, FAILED }
+
+    private final String keyId;
+    private final Instant startedAt;
+    private final AtomicLong filesRewrapped = new AtomicLong();
+    // Already wrapped by the target key, e.g. written after it became active or by an earlier pass
+    private final AtomicLong filesCurrent = new AtomicLong();
+    // Written before envelope encryption; they use aes.secret directly and have no data key to rewrap
+    private final AtomicLong filesSkipped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Status status = Status.RUNNING;
+    private volatile Instant finishedAt;
+
+    public KeyRotation(String keyId) {
+        this.keyId = keyId;
+        this.startedAt = Instant.now();
+    }
+
+    public void finish() {
+        this.status = failures.get() == 0 ? Status.COMPLETED : Status.FAILED;
+        this.finishedAt = Instant.now();
+    }
+}
@@ -27,6 +27,11 @@ public class Plan {
 
     private Long storageLimitBytes; // Added storage limit
 
+    // Codec for compressible uploads on this plan; null means storage.compression.default-codec
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16)
+    private CompressionCodec compression;
+
     public Plan(String name, String description, Integer price, Long storageLimitBytes) {
         this.name = name;
         this.description = description;
@@ -0,0 +1,14 @@
+package com.example.cloud.cloud.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// Result of UserStorageUtil.putFileInTheFolder: where the file landed and the SHA-256 of its plaintext
+@Getter
+@AllArgsConstructor
+public class SavedFile {
+    private final String relativePath;
+    private final String contentHash;
+    private final boolean deduplicated; // true when an existing blob was linked and no new ciphertext was kept
+    private final long storedSize; // bytes on storage: header plus ciphertext of the (possibly compressed) content
+}
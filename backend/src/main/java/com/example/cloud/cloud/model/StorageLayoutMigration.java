@@ -0,0 +1,30 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Progress of one pass moving flat user directories into the hashed layout
+@Getter
+public class StorageLayoutMigration {
+    public enum Status { RUNNING, COMPLETED, FAILED }
+
+    private final Instant startedAt;
+    private final AtomicLong usersMigrated = new AtomicLong();
+    // Users with an open chunked upload, left for the next pass
+    private final AtomicLong usersSkipped = new AtomicLong();
+    private final AtomicLong linksRemoved = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile Status status = Status.RUNNING;
+    private volatile Instant finishedAt;
+
+    public StorageLayoutMigration() {
+        this.startedAt = Instant.now();
+    }
+
+    public void finish() {
+        this.status = failures.get() == 0 ? Status.COMPLETED : Status.FAILED;
+        this.finishedAt = Instant.now();
+    }
+}
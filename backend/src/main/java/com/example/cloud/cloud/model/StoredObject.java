@@ -0,0 +1,62 @@
+package com.example.cloud.cloud.model;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.Instant;
+
+// Index row for one file or folder of a user's tree; paths are relative to the user root, "/"-separated, "" is the root
+@Entity
+@Table(name = "stored_object", indexes = {
+    @Index(name = "ux_stored_object_owner_parent_name", columnList = "owner_id, parent_path, name", unique = true),
+    @Index(name = "ix_stored_object_owner_parent_size", columnList = "owner_id, parent_path, size, name"),
+    @Index(name = "ix_stored_object_owner_parent_modified", columnList = "owner_id, parent_path, modified_at, name"),
+    @Index(name = "ix_stored_object_owner_type_size", columnList = "owner_id, type, size"),
+    @Index(name = "ix_stored_object_content_hash", columnList = "content_hash")
+})
+@Getter
+@Setter
+@NoArgsConstructor
+public class StoredObject {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "owner_id", nullable = false)
+    private Long ownerId;
+
+    @Column(name = "parent_path", nullable = false, length = 2048)
+    private String parentPath;
+
+    @Column(nullable = false, length = 1024)
+    private String name;
+
+    @Enumerated(EnumType.STRING)
+    @Column(nullable = false, length = 16)
+    private StoredObjectType type;
+
+    private long size; // plaintext bytes for files, 0 for folders
+
+    @Column(name = "modified_at", nullable = false)
+    private Instant modifiedAt;
+
+    // Hex SHA-256 of the plaintext, keyed into the blob name (UserStorageUtil#contentName); null for folders and files stored before hashing
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    // Bytes the file takes on storage (header plus ciphertext, after compression); 0 for folders and
+    // for rows written before this was tracked, which count their plaintext size until re-indexed
+    @Column(name = "disk_size", nullable = false, columnDefinition = "bigint not null default 0")
+    private long diskSize;
+
+    public StoredObject(Long ownerId, String parentPath, String name, StoredObjectType type, long size, Instant modifiedAt) {
+        this.ownerId = ownerId;
+        this.parentPath = parentPath;
+        this.name = name;
+        this.type = type;
+        this.size = size;
+        this.modifiedAt = modifiedAt;
+    }
+}
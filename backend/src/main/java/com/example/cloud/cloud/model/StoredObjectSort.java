@@ -0,0 +1,8 @@
+package com.example.cloud.cloud.model;
+
+// Sort keys for paginated folder listings; name is always the tie-breaker so keyset cursors stay stable
+public enum StoredObjectSort {
+    NAME,
+    SIZE,
+    MODIFIED
+}
@@ -0,0 +1,6 @@
+package com.example.cloud.cloud.model;
+
+public enum StoredObjectType {
+    FILE,
+    FOLDER
+}
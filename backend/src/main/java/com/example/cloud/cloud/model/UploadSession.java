@@ -0,0 +1,90 @@
+package com.example.cloud.cloud.model;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.BitSet;
+import java.util.List;
+
+// In-memory state of a resumable upload; chunks are persisted straight into partPath as they arrive
+@Getter
+public class UploadSession {
+    private final String id;
+    private final Long userId;
+    private final Path targetPath;
+    private final String relativePath;
+    private final Path partPath;
+    private final byte[] header;
+    private final long totalSize;
+    private final long chunkSize;
+    private final int totalChunks;
+    private final BitSet receivedChunks;
+    private volatile Instant lastActivity;
+    // Guarded by this
+    private final BitSet writingChunks;
+    private int writers;
+    private boolean completing;
+    private boolean failed;
+
+    public UploadSession(String id, Long userId, Path targetPath, String relativePath, Path partPath, byte[] header,
+                         long totalSize, long chunkSize) {
+        this.id = id;
+        this.userId = userId;
+        this.targetPath = targetPath;
+        this.relativePath = relativePath;
+        this.partPath = partPath;
+        this.header = header;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.totalChunks = (int) Math.max(1, (totalSize + chunkSize - 1) / chunkSize);
+        this.receivedChunks = new BitSet(totalChunks);
+        this.writingChunks = new BitSet(totalChunks);
+        this.lastActivity = Instant.now();
+    }
+
+    public long chunkLength(int index) {
+        return Math.min(chunkSize, totalSize - index * chunkSize);
+    }
+
+    // A chunk may be written unless the session is being completed or has failed, or the chunk is already in or
+    // being written. Every begin is paired with an endChunk
+    public synchronized boolean beginChunk(int index) {
+        if (completing || failed || receivedChunks.get(index) || writingChunks.get(index)) {
+            return false;
+        }
+        writingChunks.set(index);
+        writers++;
+        return true;
+    }
+
+    // A chunk failed after some of it may have been written; nothing can be written to or completed after this
+    public synchronized void fail() {
+        failed = true;
+    }
+
+    public synchronized void endChunk(int index, boolean received) {
+        writers--;
+        writingChunks.clear(index);
+        if (received) {
+            receivedChunks.set(index);
+        }
+    }
+
+    // Claims the session for completion once every chunk is in and none is still being written
+    public synchronized boolean beginComplete() {
+        if (completing || failed || writers > 0 || receivedChunks.cardinality() != totalChunks) {
+            return false;
+        }
+        completing = true;
+        return true;
+    }
+
+    public synchronized List<Integer> getReceivedChunkIndexes() {
+        return receivedChunks.stream().boxed().toList();
+    }
+
+    public void touch() {
+        lastActivity = Instant.now();
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.cloud.cloud.model;
+
+import jakarta.persistence.*;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import java.time.Instant;
+
+// Persisted copy of a user's running totals; UserStorageStatsService keeps the live values and writes them back in batches
+@Entity
+@Table(name = "user_storage_stats")
+@Getter
+@Setter
+@NoArgsConstructor
+public class UserStorageStats {
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Column(name = "file_count", nullable = false)
+    private long fileCount;
+
+    @Column(name = "folder_count", nullable = false)
+    private long folderCount;
+
+    @Column(name = "stored_bytes", nullable = false)
+    private long storedBytes; // plaintext bytes of all indexed files, what the quota charges
+
+    @Column(name = "disk_bytes", nullable = false, columnDefinition = "bigint not null default 0")
+    private long diskBytes; // bytes those files take on storage after compression and encryption
+
+    @Column(name = "updated_at", nullable = false)
+    private Instant updatedAt;
+
+    public UserStorageStats(Long userId, long fileCount, long folderCount, long storedBytes, long diskBytes, Instant updatedAt) {
+        this.userId = userId;
+        this.fileCount = fileCount;
+        this.folderCount = folderCount;
+        this.storedBytes = storedBytes;
+        this.diskBytes = diskBytes;
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.cloud.cloud.repository;
+
+import com.example.cloud.cloud.model.FolderVersion;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Optional;
+
+@Repository
+public interface FolderVersionRepository extends JpaRepository<FolderVersion, Long> {
+
+    Optional<FolderVersion> findByOwnerIdAndPath(Long ownerId, String path);
+
+    // Never lower than floor, so a folder whose row was dropped cannot count up to a version it had before
+    @Modifying
+    @Query(value = "insert into folder_version (owner_id, path, version, changed_at) values (:ownerId, :path, :floor, :changedAt) " +
+        "on conflict (owner_id, path) do update set version = greatest(folder_version.version + 1, excluded.version), " +
+        "changed_at = excluded.changed_at",
+        nativeQuery = true)
+    void bump(@Param("ownerId") Long ownerId, @Param("path") String path, @Param("floor") long floor,
+              @Param("changedAt") Instant changedAt);
+
+    @Modifying
+    @Query(value = "insert into folder_version (owner_id, path, version, changed_at) values (:ownerId, :path, :version, :changedAt) " +
+        "on conflict (owner_id, path) do nothing",
+        nativeQuery = true)
+    void insertIfAbsent(@Param("ownerId") Long ownerId, @Param("path") String path, @Param("version") long version,
+                        @Param("changedAt") Instant changedAt);
+
+    // The folder and every folder below it
+    @Modifying
+    @Query("delete from FolderVersion v where v.ownerId = :ownerId and (v.path = :path or v.path like :pathPrefix escape '!')")
+    int deleteSubtree(@Param("ownerId") Long ownerId, @Param("path") String path, @Param("pathPrefix") String pathPrefix);
+
+    @Modifying
+    @Query("delete from FolderVersion v where v.ownerId = :ownerId")
+    int deleteByOwner(@Param("ownerId") Long ownerId);
+}
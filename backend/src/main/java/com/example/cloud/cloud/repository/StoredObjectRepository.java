@@ -0,0 +1,112 @@
+package com.example.cloud.cloud.repository;
+
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface StoredObjectRepository extends JpaRepository<StoredObject, Long> {
+
+    Optional<StoredObject> findByOwnerIdAndParentPathAndName(Long ownerId, String parentPath, String name);
+
+    boolean existsByOwnerId(Long ownerId);
+
+    // Keyset page of the distinct content hashes files have; pass "" as afterHash for the first page
+    @Query("select distinct o.contentHash from StoredObject o where o.contentHash > :afterHash order by o.contentHash")
+    List<String> findContentHashesAfter(@Param("afterHash") String afterHash, Pageable pageable);
+
+    long countByOwnerIdAndType(Long ownerId, StoredObjectType type);
+
+    List<StoredObject> findTop10ByOwnerIdAndTypeOrderBySizeDescNameAsc(Long ownerId, StoredObjectType type);
+
+    @Query(value = "select coalesce(sum(case when type = 'FILE' then 1 else 0 end), 0) as files, " +
+        "coalesce(sum(case when type = 'FOLDER' then 1 else 0 end), 0) as folders, coalesce(sum(size), 0) as bytes, " +
+        "coalesce(sum(case when type = 'FILE' then coalesce(nullif(disk_size, 0), size) else 0 end), 0) as \"diskBytes\" " +
+        "from stored_object where owner_id = :ownerId", nativeQuery = true)
+    StoredObjectTotals totalsForOwner(@Param("ownerId") Long ownerId);
+
+    // Same as totalsForOwner, restricted to what deleteDescendants would remove
+    @Query(value = "select coalesce(sum(case when type = 'FILE' then 1 else 0 end), 0) as files, " +
+        "coalesce(sum(case when type = 'FOLDER' then 1 else 0 end), 0) as folders, coalesce(sum(size), 0) as bytes, " +
+        "coalesce(sum(case when type = 'FILE' then coalesce(nullif(disk_size, 0), size) else 0 end), 0) as \"diskBytes\" " +
+        "from stored_object where owner_id = :ownerId and (parent_path = :path or parent_path like :pathPrefix escape '!')",
+        nativeQuery = true)
+    StoredObjectTotals totalsForDescendants(@Param("ownerId") Long ownerId, @Param("path") String path,
+                                            @Param("pathPrefix") String pathPrefix);
+
+    // Keyset page of a folder's children ordered by name; pass "" as afterName for the first page
+    @Query("select o from StoredObject o where o.ownerId = :ownerId and o.parentPath = :parentPath and o.name > :afterName order by o.name")
+    List<StoredObject> findChildrenAfter(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath,
+                                         @Param("afterName") String afterName, Pageable pageable);
+
+    @Modifying
+    @Query(value = "insert into stored_object (owner_id, parent_path, name, type, size, modified_at, content_hash, disk_size) " +
+        "values (:ownerId, :parentPath, :name, :type, :size, :modifiedAt, :contentHash, :diskSize) " +
+        "on conflict (owner_id, parent_path, name) do update set type = excluded.type, size = excluded.size, " +
+        "modified_at = excluded.modified_at, content_hash = excluded.content_hash, disk_size = excluded.disk_size",
+        nativeQuery = true)
+    void upsert(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath, @Param("name") String name,
+                @Param("type") String type, @Param("size") long size, @Param("modifiedAt") Instant modifiedAt,
+                @Param("contentHash") String contentHash, @Param("diskSize") long diskSize);
+
+    // Creates the file row unless the path exists; 1 when it was created. Waits for a concurrent insert of the
+    // same path to commit, so of two writers racing on a new path exactly one sees it as new
+    @Modifying
+    @Query(value = "insert into stored_object (owner_id, parent_path, name, type, size, modified_at, content_hash, disk_size) " +
+        "values (:ownerId, :parentPath, :name, 'FILE', :size, :modifiedAt, :contentHash, :diskSize) " +
+        "on conflict (owner_id, parent_path, name) do nothing",
+        nativeQuery = true)
+    int insertFileIfAbsent(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath, @Param("name") String name,
+                           @Param("size") long size, @Param("modifiedAt") Instant modifiedAt,
+                           @Param("contentHash") String contentHash, @Param("diskSize") long diskSize);
+
+    // Reads the row and locks it until the transaction ends, so the values it returns are the ones an update replaces
+    @Query(value = "select * from stored_object where owner_id = :ownerId and parent_path = :parentPath and name = :name for update",
+        nativeQuery = true)
+    Optional<StoredObject> lockEntry(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath,
+                                     @Param("name") String name);
+
+    @Modifying
+    @Query(value = "insert into stored_object (owner_id, parent_path, name, type, size, modified_at) " +
+        "values (:ownerId, :parentPath, :name, 'FOLDER', 0, :modifiedAt) on conflict (owner_id, parent_path, name) do nothing",
+        nativeQuery = true)
+    int insertFolderIfAbsent(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath,
+                              @Param("name") String name, @Param("modifiedAt") Instant modifiedAt);
+
+    @Modifying
+    @Query("delete from StoredObject o where o.ownerId = :ownerId and o.parentPath = :parentPath and o.name = :name")
+    int deleteEntry(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath, @Param("name") String name);
+
+    // Everything below a folder: its direct children (parentPath = path) and deeper ones (parentPath like 'path/%')
+    @Modifying
+    @Query("delete from StoredObject o where o.ownerId = :ownerId and (o.parentPath = :path or o.parentPath like :pathPrefix escape '!')")
+    int deleteDescendants(@Param("ownerId") Long ownerId, @Param("path") String path, @Param("pathPrefix") String pathPrefix);
+
+    @Modifying
+    @Query("update StoredObject o set o.parentPath = :newParentPath, o.name = :newName, o.modifiedAt = :modifiedAt " +
+        "where o.ownerId = :ownerId and o.parentPath = :parentPath and o.name = :name")
+    int renameEntry(@Param("ownerId") Long ownerId, @Param("parentPath") String parentPath, @Param("name") String name,
+                    @Param("newParentPath") String newParentPath, @Param("newName") String newName,
+                    @Param("modifiedAt") Instant modifiedAt);
+
+    @Modifying
+    @Query("update StoredObject o set o.parentPath = concat(:newPath, substring(o.parentPath, :oldPathLength + 1)) " +
+        "where o.ownerId = :ownerId and (o.parentPath = :oldPath or o.parentPath like :oldPathPrefix escape '!')")
+    int moveDescendants(@Param("ownerId") Long ownerId, @Param("oldPath") String oldPath, @Param("oldPathPrefix") String oldPathPrefix,
+                        @Param("oldPathLength") int oldPathLength, @Param("newPath") String newPath);
+
+    List<StoredObject> findByOwnerIdAndContentHashIsNotNull(Long ownerId);
+
+    @Modifying
+    @Query("delete from StoredObject o where o.ownerId = :ownerId")
+    int deleteByOwner(@Param("ownerId") Long ownerId);
+}
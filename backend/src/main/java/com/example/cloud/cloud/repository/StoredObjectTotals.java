@@ -0,0 +1,12 @@
+package com.example.cloud.cloud.repository;
+
+// Aggregate over a set of stored_object rows: how many files and folders, and the plaintext and on-storage bytes of the files
+public interface StoredObjectTotals {
+    long getFiles();
+
+    long getFolders();
+
+    long getBytes();
+
+    long getDiskBytes();
+}
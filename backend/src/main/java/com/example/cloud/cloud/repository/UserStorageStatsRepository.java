@@ -0,0 +1,9 @@
+package com.example.cloud.cloud.repository;
+
+import com.example.cloud.cloud.model.UserStorageStats;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UserStorageStatsRepository extends JpaRepository<UserStorageStats, Long> {
+}
@@ -0,0 +1,212 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.cloud.dto.BatchUploadItemDto;
+import com.example.cloud.cloud.dto.BatchUploadResponseDto;
+import com.example.cloud.cloud.model.CompressionCodec;
+import com.example.cloud.cloud.model.SavedFile;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.util.CompressionUtil;
+import com.example.cloud.cloud.util.JobExecutors;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Stores many files from one request: the quota is reserved once for the whole batch, the parts are
+ * encrypted in parallel on a bounded pool, and all index rows are written in one transaction. Each
+ * part gets its own result, so one bad file does not fail the rest. If the index transaction fails the
+ * stored parts are deleted again and their bytes released, since no row would ever point at them.
+ */
+@Service
+public class BatchUploadService {
+    private final UserStorageUtil userStorageUtil;
+    private final CompressionUtil compressionUtil;
+    private final StorageQuotaService storageQuotaService;
+    private final StoredObjectIndexService storedObjectIndexService;
+    private final DerivativeService derivativeService;
+    private final StorageBackend storageBackend;
+    private final TransactionTemplate transactionTemplate;
+    private final ExecutorService pool;
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchUploadService.class);
+
+    private static final String CREATED = "CREATED";
+    private static final String FAILED = "FAILED";
+
+    @Autowired
+    public BatchUploadService(UserStorageUtil userStorageUtil, CompressionUtil compressionUtil, StorageQuotaService storageQuotaService,
+                              StoredObjectIndexService storedObjectIndexService, DerivativeService derivativeService,
+                              StorageBackend storageBackend, PlatformTransactionManager transactionManager, JobExecutors jobExecutors, @Value("${upload.batch.parallelism:4}") int parallelism) {
+        this.userStorageUtil = userStorageUtil;
+        this.compressionUtil = compressionUtil;
+        this.storageQuotaService = storageQuotaService;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.derivativeService = derivativeService;
+        this.storageBackend = storageBackend;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.pool = jobExecutors.newExecutor("batch-upload", parallelism);
+    }
+
+    public ResponseEntity<BatchUploadResponseDto> uploadFiles(List<MultipartFile> files, String folderPath) {
+        if (files == null || files.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        MyUser myUser = userStorageUtil.getCurrentUser();
+        BatchUploadItemDto[] results = new BatchUploadItemDto[files.size()];
+
+        // Parts with the same name would race for the same target, so only the first one is kept
+        Set<String> names = new HashSet<>();
+        long totalSize = 0;
+        for (int i = 0; i < files.size(); i++) {
+            MultipartFile file = files.get(i);
+            String name = file.getOriginalFilename();
+            if (name == null || name.isBlank()) {
+                results[i] = failed(file, "File name is missing");
+            } else if (!names.add(name)) {
+                results[i] = failed(file, "Duplicate file name in batch");
+            } else {
+                totalSize += file.getSize();
+            }
+        }
+
+        try {
+            storageQuotaService.reserveStorage(myUser, totalSize);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < files.size(); i++) {
+                if (results[i] == null) {
+                    results[i] = failed(files.get(i), e.getMessage());
+                }
+            }
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body(response(results));
+        }
+
+        CompressionCodec codec = compressionUtil.codecFor(myUser.getPlan());
+        Map<Integer, Future<SavedFile>> pending = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            if (results[i] == null) {
+                MultipartFile file = files.get(i);
+                pending.put(i, pool.submit(() -> userStorageUtil.putFileInTheFolder(myUser.getId(), folderPath, file, codec)));
+            }
+        }
+
+        Map<Integer, SavedFile> saved = new LinkedHashMap<>();
+        long failedBytes = 0;
+        // Failures found above are the client's; anything failing from here on is ours
+        boolean serverError = false;
+        for (Map.Entry<Integer, Future<SavedFile>> entry : pending.entrySet()) {
+            MultipartFile file = files.get(entry.getKey());
+            try {
+                saved.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException e) {
+                logger.warn("Batch upload of {} failed", file.getOriginalFilename(), e.getCause());
+                results[entry.getKey()] = failed(file, rootMessage(e.getCause()));
+                failedBytes += file.getSize();
+                serverError = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.getValue().cancel(true);
+                results[entry.getKey()] = failed(file, "Upload interrupted");
+                failedBytes += file.getSize();
+                serverError = true;
+            }
+        }
+
+        if (!saved.isEmpty()) {
+            try {
+                Long replaced = transactionTemplate.execute(status -> {
+                    long total = 0;
+                    for (Map.Entry<Integer, SavedFile> entry : saved.entrySet()) {
+                        SavedFile savedFile = entry.getValue();
+                        total += Math.max(0, storedObjectIndexService.recordFile(myUser.getId(), savedFile.getRelativePath(),
+                            files.get(entry.getKey()).getSize(), savedFile.getContentHash(), savedFile.getStoredSize()));
+                    }
+                    return total;
+                });
+                // Overwritten files were charged when they were uploaded
+                failedBytes += replaced == null ? 0 : replaced;
+                saved.values().forEach(savedFile ->
+                    derivativeService.schedule(myUser.getId(), savedFile.getRelativePath(), savedFile.getContentHash()));
+            } catch (RuntimeException e) {
+                logger.error("Indexing batch upload of {} files failed", saved.size(), e);
+                for (Map.Entry<Integer, SavedFile> entry : saved.entrySet()) {
+                    MultipartFile file = files.get(entry.getKey());
+                    discard(myUser.getId(), entry.getValue());
+                    results[entry.getKey()] = failed(file, "Failed to record file");
+                    failedBytes += file.getSize();
+                }
+                saved.clear();
+                serverError = true;
+            }
+        }
+        // Bytes of the parts that did not make it go back in one update, like the reservation
+        if (failedBytes > 0) {
+            storageQuotaService.releaseStorage(myUser.getId(), failedBytes);
+        }
+        saved.forEach((i, savedFile) -> results[i] = new BatchUploadItemDto(files.get(i).getOriginalFilename(),
+            savedFile.getRelativePath(), CREATED, files.get(i).getSize(), null));
+
+        BatchUploadResponseDto body = response(results);
+        HttpStatus status;
+        if (body.getFailed() == 0) {
+            status = HttpStatus.CREATED;
+        } else if (body.getUploaded() > 0) {
+            status = HttpStatus.MULTI_STATUS;
+        } else {
+            status = serverError ? HttpStatus.INTERNAL_SERVER_ERROR : HttpStatus.BAD_REQUEST;
+        }
+        return ResponseEntity.status(status).body(body);
+    }
+
+    // No index row points at the file, so nothing would ever delete it
+    private void discard(Long userId, SavedFile savedFile) {
+        String key = userStorageUtil.objectKey(userId, savedFile.getRelativePath());
+        try {
+            storageBackend.delete(key);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not delete unindexed batch upload {}", key, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static BatchUploadResponseDto response(BatchUploadItemDto[] results) {
+        int uploaded = (int) Arrays.stream(results).filter(item -> CREATED.equals(item.getStatus())).count();
+        return new BatchUploadResponseDto(uploaded, results.length - uploaded, List.of(results));
+    }
+
+    private static BatchUploadItemDto failed(MultipartFile file, String error) {
+        return new BatchUploadItemDto(file.getOriginalFilename(), null, FAILED, file.getSize(), error);
+    }
+
+    private static String rootMessage(Throwable e) {
+        Throwable root = e;
+        while (root.getCause() != null) {
+            root = root.getCause();
+        }
+        return root.getMessage() != null ? root.getMessage() : e.getMessage();
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.cloud.util.UserStorageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Removes blobs nobody links to any more. A blob's reference count is its hard link count minus the
+ * blob store's own entry, so a blob with a single link is garbage. Deleting user files and folders
+ * only ever drops links; the ciphertext goes away here.
+ *
+ * An upload may link a blob between the link count check and the delete, so a blob is first renamed to a
+ * tombstone nobody looks up and checked again there; one that gained a link meanwhile is put back.
+ */
+@Service
+public class BlobGarbageCollector {
+    private final UserStorageUtil userStorageUtil;
+
+    private static final String TOMBSTONE_PREFIX = ".gc-";
+
+    private static final Logger logger = LoggerFactory.getLogger(BlobGarbageCollector.class);
+
+    @Autowired
+    public BlobGarbageCollector(UserStorageUtil userStorageUtil) {
+        this.userStorageUtil = userStorageUtil;
+    }
+
+    @Scheduled(cron = "${storage.blobs.gc-cron:0 0 5 * * *}")
+    public void sweep() {
+        for (Path blobDir : userStorageUtil.getBlobDirs()) {
+            if (Files.isDirectory(blobDir)) {
+                sweep(blobDir);
+            }
+        }
+    }
+
+    private void sweep(Path blobDir) {
+        long[] swept = new long[2]; // blobs, ciphertext bytes
+        try {
+            Files.walkFileTree(blobDir, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path blob, BasicFileAttributes attrs) throws IOException {
+                    try {
+                        if (collect(blob)) {
+                            swept[0]++;
+                            swept[1] += attrs.size();
+                        }
+                    } catch (NoSuchFileException e) {
+                        // Tombstone of this sweep, or restored by it, after the directory was listed
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warn("Skipping {} while sweeping blobs: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (UnsupportedOperationException e) {
+            // Without link counts there is no way to tell live blobs from garbage, so keep everything
+            logger.warn("Blob store filesystem does not report link counts, skipping garbage collection");
+            return;
+        } catch (IOException e) {
+            logger.error("Blob garbage collection failed", e);
+            return;
+        }
+        if (swept[0] > 0) {
+            logger.info("Blob garbage collection removed {} blobs ({} bytes) from {}", swept[0], swept[1], blobDir);
+        }
+    }
+
+    // Leftover tombstones of an interrupted sweep get the same final check
+    private static boolean collect(Path blob) throws IOException {
+        String name = blob.getFileName().toString();
+        Path tombstone = blob;
+        if (name.startsWith(TOMBSTONE_PREFIX)) {
+            blob = blob.resolveSibling(name.substring(TOMBSTONE_PREFIX.length()));
+        } else {
+            if (linkCount(blob) != 1) {
+                return false;
+            }
+            tombstone = blob.resolveSibling(TOMBSTONE_PREFIX + name);
+            Files.move(blob, tombstone, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (linkCount(tombstone) == 1) {
+            Files.delete(tombstone);
+            return true;
+        }
+        try {
+            Files.createLink(blob, tombstone);
+        } catch (FileAlreadyExistsException e) {
+            // An upload of the same content made a new blob meanwhile; the linked files keep their data either way
+        }
+        Files.delete(tombstone);
+        return false;
+    }
+
+    private static int linkCount(Path blob) throws IOException {
+        try {
+            return (Integer) Files.getAttribute(blob, "unix:nlink");
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException(e);
+        }
+    }
+}
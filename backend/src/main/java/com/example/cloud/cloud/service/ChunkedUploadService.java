@@ -0,0 +1,265 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.cloud.dto.UploadInitiateRequestDto;
+import com.example.cloud.cloud.dto.UploadSessionResponseDto;
+import com.example.cloud.cloud.model.UploadSession;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+public class ChunkedUploadService {
+    private final UserStorageUtil userStorageUtil;
+    private final AesFileUtil aesFileUtil;
+    private final StorageQuotaService storageQuotaService;
+    private final StoredObjectIndexService storedObjectIndexService;
+    private final StorageBackend storageBackend;
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(ChunkedUploadService.class);
+
+    @Value("${upload.chunk-size-bytes:8388608}")
+    private long chunkSize;
+
+    @Value("${upload.session-ttl-minutes:1440}")
+    private long sessionTtlMinutes;
+
+    @Autowired
+    public ChunkedUploadService(UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil, StorageQuotaService storageQuotaService,
+                                StoredObjectIndexService storedObjectIndexService, StorageBackend storageBackend,
+                                MeterRegistry meterRegistry) {
+        this.userStorageUtil = userStorageUtil;
+        this.aesFileUtil = aesFileUtil;
+        this.storageQuotaService = storageQuotaService;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.storageBackend = storageBackend;
+        // Every open session holds a part file on disk and its full size against the owner's quota
+        Gauge.builder("cloud.upload.sessions", sessions, Map::size).register(meterRegistry);
+        Gauge.builder("cloud.upload.sessions.reserved", sessions,
+                open -> open.values().stream().mapToLong(UploadSession::getTotalSize).sum())
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    // Chunks are encrypted at their own offset, segment by segment, so each one has to start on a segment boundary
+    @PostConstruct
+    void checkChunkSize() {
+        if (chunkSize <= 0 || chunkSize % AesFileUtil.SEGMENT_SIZE != 0) {
+            throw new IllegalStateException("upload.chunk-size-bytes must be a positive multiple of "
+                + AesFileUtil.SEGMENT_SIZE + ", was " + chunkSize);
+        }
+    }
+
+    public ResponseEntity<UploadSessionResponseDto> initiate(UploadInitiateRequestDto request) {
+        if (request.getFileName() == null || request.getFileName().isBlank() || request.getTotalSize() < 0) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        // Chunks are written positionally into a local part file
+        if (!userStorageUtil.isLocalStorage()) {
+            return ResponseEntity.status(HttpStatus.NOT_IMPLEMENTED).build();
+        }
+        MyUser myUser = userStorageUtil.getCurrentUser();
+        // Sessions keep absolute paths; pinned until the session is registered, so a layout migration either
+        // sees it and skips the user or has moved the user before the paths are resolved
+        try {
+            return storageBackend.pinOwner(String.valueOf(myUser.getId()), () -> openSession(myUser, request));
+        } catch (IOException e) {
+            throw new RuntimeException("Error while creating upload session", e);
+        }
+    }
+
+    private ResponseEntity<UploadSessionResponseDto> openSession(MyUser myUser, UploadInitiateRequestDto request) {
+        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
+        String folderPath = request.getFolderPath() == null ? "" : request.getFolderPath();
+        Path folderPathOnDisk = userStorageUtil.getFolderPath(userDirPath, folderPath);
+        Path targetPath = userStorageUtil.getFolderPath(folderPathOnDisk, request.getFileName());
+
+        if (!Files.isDirectory(folderPathOnDisk)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        // The whole file is charged against the quota once, here, not chunk by chunk
+        storageQuotaService.reserveStorage(myUser, request.getTotalSize());
+
+        String uploadId = UUID.randomUUID().toString();
+        Path partPath = folderPathOnDisk.resolve(userStorageUtil.inFlightUploadName(uploadId));
+        byte[] header = aesFileUtil.newHeader();
+        try (FileChannel channel = FileChannel.open(partPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header));
+        } catch (IOException e) {
+            storageQuotaService.releaseStorage(myUser.getId(), request.getTotalSize());
+            throw new RuntimeException("Error while creating upload session", e);
+        }
+
+        UploadSession session = new UploadSession(uploadId, myUser.getId(), targetPath,
+            userStorageUtil.toRelativePath(userDirPath, targetPath), partPath, header, request.getTotalSize(), chunkSize);
+        sessions.put(uploadId, session);
+        return new ResponseEntity<>(toDto(session, false), HttpStatus.CREATED);
+    }
+
+    public ResponseEntity<UploadSessionResponseDto> status(String uploadId) {
+        UploadSession session = findOwnSession(uploadId);
+        if (session == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(toDto(session, false));
+    }
+
+    // Chunks are independent: each one is encrypted at its own offset, so they can arrive in parallel and in any order
+    public ResponseEntity<UploadSessionResponseDto> putChunk(String uploadId, int index, InputStream body) {
+        UploadSession session = findOwnSession(uploadId);
+        if (session == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        if (index < 0 || index >= session.getTotalChunks()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        // Once complete has claimed the session the part file is being moved into place and takes no more writes.
+        // A chunk is also written at most once: its segment nonces depend only on the offset, so other bytes
+        // under the same data key would reuse them
+        if (!session.beginChunk(index)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        session.touch();
+
+        boolean sealing = false;
+        boolean received = false;
+        long length = session.chunkLength(index);
+        try (FileChannel channel = FileChannel.open(session.getPartPath(), StandardOpenOption.WRITE)) {
+            sealing = true;
+            aesFileUtil.encryptAt(session.getHeader(), session.getTotalSize(), index * session.getChunkSize(), body, length, channel);
+            if (body.read() != -1) {
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+            }
+            received = true;
+        } catch (EOFException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        } catch (Exception e) {
+            throw new RuntimeException("Error while storing chunk " + index, e);
+        } finally {
+            // Segments sealed before the failure cannot be sealed again under this data key, so the session is
+            // dropped and the client has to start over with a new header
+            if (sealing && !received) {
+                session.fail();
+            }
+            session.endChunk(index, received);
+            if (sealing && !received && sessions.remove(uploadId, session)) {
+                logger.info("Upload session {} failed while storing chunk {}, discarding it", uploadId, index);
+                discard(session);
+            }
+        }
+        return ResponseEntity.ok(toDto(session, false));
+    }
+
+    public ResponseEntity<UploadSessionResponseDto> complete(String uploadId) {
+        UploadSession session = findOwnSession(uploadId);
+        if (session == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        // Fails while chunks are missing or still being written, and for a second complete of the same session
+        if (!session.beginComplete()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(toDto(session, false));
+        }
+        if (sessions.remove(uploadId) == null) {
+            // A concurrent complete or abort got there first
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        try {
+            try {
+                Files.move(session.getPartPath(), session.getTargetPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(session.getPartPath(), session.getTargetPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            discard(session);
+            throw new RuntimeException("Error while completing upload", e);
+        }
+        // Chunks are encrypted in place at their offsets, so chunked uploads are never compressed
+        long replaced = storedObjectIndexService.recordFile(session.getUserId(), session.getRelativePath(), session.getTotalSize(),
+            null, aesFileUtil.storedLength(session.getHeader(), session.getTotalSize()));
+        // The overwritten file's bytes were charged when it was uploaded
+        if (replaced > 0) {
+            storageQuotaService.releaseStorage(session.getUserId(), replaced);
+        }
+        return new ResponseEntity<>(toDto(session, true), HttpStatus.CREATED);
+    }
+
+    public ResponseEntity<String> abort(String uploadId) {
+        UploadSession session = findOwnSession(uploadId);
+        if (session == null || sessions.remove(uploadId) == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Upload not found");
+        }
+        discard(session);
+        return ResponseEntity.ok("Upload aborted");
+    }
+
+    // Open sessions hold absolute part file paths, which a storage layout migration must not pull away
+    public boolean hasOpenSessions(Long userId) {
+        return sessions.values().stream().anyMatch(session -> session.getUserId().equals(userId));
+    }
+
+    @Scheduled(fixedDelayString = "${upload.cleanup-interval-ms:600000}")
+    public void removeExpiredSessions() {
+        Instant cutoff = Instant.now().minus(Duration.ofMinutes(sessionTtlMinutes));
+        sessions.values().removeIf(session -> {
+            if (session.getLastActivity().isAfter(cutoff)) {
+                return false;
+            }
+            logger.info("Upload session {} expired, discarding {} reserved bytes", session.getId(), session.getTotalSize());
+            discard(session);
+            return true;
+        });
+    }
+
+    private void discard(UploadSession session) {
+        try {
+            Files.deleteIfExists(session.getPartPath());
+        } catch (IOException e) {
+            logger.warn("Could not delete partial upload {}", session.getPartPath(), e);
+        }
+        storageQuotaService.releaseStorage(session.getUserId(), session.getTotalSize());
+    }
+
+    private UploadSession findOwnSession(String uploadId) {
+        UploadSession session = sessions.get(uploadId);
+        if (session == null || !session.getUserId().equals(userStorageUtil.getCurrentUser().getId())) {
+            return null;
+        }
+        return session;
+    }
+
+    private UploadSessionResponseDto toDto(UploadSession session, boolean completed) {
+        return new UploadSessionResponseDto(session.getId(), session.getChunkSize(), session.getTotalChunks(),
+            session.getReceivedChunkIndexes(), completed);
+    }
+}
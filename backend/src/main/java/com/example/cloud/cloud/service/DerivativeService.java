@@ -0,0 +1,280 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.cloud.model.DerivativeKind;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageEntry;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.ConditionalRequests;
+import com.example.cloud.cloud.util.JobExecutors;
+import com.example.cloud.cloud.util.ThumbnailUtil;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Thumbnails and previews rendered in the background after an upload, so a grid view fetches a few
+ * kilobytes per file instead of decrypting the whole file. Derivatives are named by their source's content
+ * hash, keyed like blob names ({@link UserStorageUtil#contentName}), and stored encrypted under
+ * {@code .derivatives/ab/cd/<name>.<ext>} on the same backend as the files, so renames, moves and copies
+ * keep theirs, identical content shares one, their ETag never changes, and a listing of the backend does
+ * not tell which known files it holds. Served derivatives are kept decrypted in a size-bounded LRU cache.
+ */
+@Service
+public class DerivativeService {
+    private static final String DERIVATIVE_ROOT = ".derivatives";
+
+    // Derivatives of content nobody has any more are only removed once older than this, so an upload
+    // racing the sweep keeps the one just rendered for it
+    private static final Duration ORPHAN_GRACE = Duration.ofHours(1);
+
+    private static final int CONTENT_PAGE_SIZE = 10_000;
+
+    private static final Logger logger = LoggerFactory.getLogger(DerivativeService.class);
+
+    private final UserStorageUtil userStorageUtil;
+    private final AesFileUtil aesFileUtil;
+    private final ThumbnailUtil thumbnailUtil;
+    private final StoredObjectIndexService storedObjectIndexService;
+    private final StorageBackend storageBackend;
+    private final ConditionalRequests conditionalRequests;
+    // Rendering is CPU-bound; the executor runs at most storage.derivatives.parallelism renders at once
+    private final ExecutorService executor;
+
+    private final Cache<String, byte[]> cache;
+    // Sources that could not be rendered, so previews of them do not retry on every request
+    private final Cache<String, Boolean> unrenderable;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    @Value("${storage.derivatives.enabled:true}")
+    private boolean enabled;
+
+    @Value("${storage.derivatives.max-source-bytes:33554432}")
+    private long maxSourceBytes;
+
+    @Autowired
+    public DerivativeService(UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil, ThumbnailUtil thumbnailUtil,
+                             StoredObjectIndexService storedObjectIndexService, StorageBackend storageBackend,
+                             ConditionalRequests conditionalRequests, JobExecutors jobExecutors,
+                             @Value("${storage.derivatives.parallelism:2}") int parallelism,
+                             @Value("${storage.derivatives.cache-max-bytes:67108864}") long cacheMaxBytes) {
+        this.userStorageUtil = userStorageUtil;
+        this.aesFileUtil = aesFileUtil;
+        this.thumbnailUtil = thumbnailUtil;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.storageBackend = storageBackend;
+        this.conditionalRequests = conditionalRequests;
+        this.executor = jobExecutors.newExecutor("derivatives", parallelism);
+        this.cache = Caffeine.newBuilder()
+            .maximumWeight(cacheMaxBytes)
+            .<String, byte[]>weigher((key, bytes) -> bytes.length)
+            .build();
+        this.unrenderable = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterWrite(Duration.ofHours(1))
+            .build();
+    }
+
+    /**
+     * Queues rendering of a file's derivative once the file is recorded in the index; a no-op for files
+     * without one, without a content hash (chunked uploads), or whose derivative already exists.
+     */
+    public void schedule(Long userId, String relativePath, String contentHash) {
+        if (!enabled || contentHash == null) {
+            return;
+        }
+        DerivativeKind kind = DerivativeKind.forFileName(relativePath.substring(relativePath.lastIndexOf('/') + 1));
+        if (kind == null) {
+            return;
+        }
+        String key = derivativeKey(contentHash, kind);
+        if (unrenderable.getIfPresent(key) != null || !pending.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    render(userId, relativePath, contentHash, kind, key);
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.remove(key);
+            logger.warn("Could not queue the derivative of {}/{}", userId, relativePath, e);
+        }
+    }
+
+    // The 304 check needs only the index row, so a revalidation touches neither the disk nor the cipher
+    public ResponseEntity<byte[]> getPreview(String filePath, String ifNoneMatch) {
+        MyUser myUser = userStorageUtil.getCurrentUser();
+        String relativePath = userStorageUtil.normalizeRelativePath(filePath);
+
+        Optional<StoredObject> row = relativePath.isEmpty()
+            ? Optional.empty()
+            : storedObjectIndexService.find(myUser.getId(), relativePath);
+        if (row.isEmpty() || row.get().getType() != StoredObjectType.FILE || row.get().getContentHash() == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        DerivativeKind kind = DerivativeKind.forFileName(row.get().getName());
+        if (kind == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        String contentHash = row.get().getContentHash();
+        String key = derivativeKey(contentHash, kind);
+        String etag = ConditionalRequests.strongEtag(contentHash + "." + kind.getExtension());
+        if (conditionalRequests.notModified(ifNoneMatch, null, etag, null)) {
+            return conditionalRequests.withValidators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), etag, null).build();
+        }
+
+        byte[] derivative = cache.getIfPresent(key);
+        if (derivative == null) {
+            derivative = load(key);
+            if (derivative == null) {
+                // Not rendered yet, or swept while its file was briefly gone; the next request finds it
+                schedule(myUser.getId(), relativePath, contentHash);
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+            }
+            cache.put(key, derivative);
+        }
+        return conditionalRequests.withValidators(ResponseEntity.ok(), etag, null)
+            .contentType(MediaType.parseMediaType(kind.getContentType()))
+            .contentLength(derivative.length)
+            .body(derivative);
+    }
+
+    // Removes derivatives whose content no indexed file has any more. Names cannot be turned back into
+    // hashes, so the names of all indexed content are worked out first and the derivatives checked against them
+    @Scheduled(cron = "${storage.derivatives.gc-cron:0 30 5 * * *}")
+    public void sweep() {
+        Instant cutoff = Instant.now().minus(ORPHAN_GRACE);
+        long removed = 0;
+        try {
+            List<StorageEntry> buckets = storageBackend.list(DERIVATIVE_ROOT);
+            if (buckets.isEmpty()) {
+                return;
+            }
+            Set<String> live = liveContentNames();
+            for (StorageEntry first : buckets) {
+                for (StorageEntry second : storageBackend.list(first.getKey())) {
+                    for (StorageEntry derivative : storageBackend.list(second.getKey())) {
+                        String name = derivative.getName();
+                        int dot = name.indexOf('.');
+                        if (derivative.isFolder() || dot < 0 || derivative.getLastModified().isAfter(cutoff)
+                            || live.contains(name.substring(0, dot))) {
+                            continue;
+                        }
+                        storageBackend.delete(derivative.getKey());
+                        cache.invalidate(derivative.getKey());
+                        removed++;
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            logger.error("Derivative sweep failed after removing {} derivatives", removed, e);
+            return;
+        }
+        if (removed > 0) {
+            logger.info("Removed {} orphaned derivatives", removed);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void render(Long userId, String relativePath, String contentHash, DerivativeKind kind, String key) {
+        String sourceKey = userStorageUtil.objectKey(userId, relativePath);
+        try {
+            if (storageBackend.stat(key).isPresent()) {
+                return;
+            }
+            Optional<StoredObject> row = storedObjectIndexService.find(userId, relativePath);
+            if (row.isEmpty() || !contentHash.equals(row.get().getContentHash()) || row.get().getSize() > maxSourceBytes) {
+                return;
+            }
+            Optional<StorageEntry> source = storageBackend.stat(sourceKey);
+            if (source.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            aesFileUtil.decryptRange(source.get().getSize(), (position, length) -> storageBackend.getRange(sourceKey, position, length),
+                0, thumbnailUtil.sourceBytes(kind, row.get().getSize()), plain);
+            // The file may have been replaced while it was read; its new content gets its own derivative
+            Optional<StoredObject> after = storedObjectIndexService.find(userId, relativePath);
+            if (after.isEmpty() || !contentHash.equals(after.get().getContentHash())) {
+                return;
+            }
+            byte[] derivative = thumbnailUtil.render(kind, plain.toByteArray());
+            if (derivative == null) {
+                unrenderable.put(key, Boolean.TRUE);
+                return;
+            }
+            storageBackend.put(key, out -> aesFileUtil.encrypt(new ByteArrayInputStream(derivative), out));
+        } catch (Exception e) {
+            // Corrupt or unusual files are common enough in user uploads not to be an error
+            logger.debug("Could not render the derivative of {}", sourceKey, e);
+            unrenderable.put(key, Boolean.TRUE);
+        }
+    }
+
+    private byte[] load(String key) {
+        try (InputStream in = storageBackend.get(key)) {
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            aesFileUtil.decrypt(in, plain);
+            return plain.toByteArray();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (Exception e) {
+            throw new RuntimeException("Error while reading derivative " + key, e);
+        }
+    }
+
+    private Set<String> liveContentNames() {
+        Set<String> names = new HashSet<>();
+        String after = null;
+        List<String> page;
+        do {
+            page = storedObjectIndexService.contentHashesAfter(after, CONTENT_PAGE_SIZE);
+            for (String contentHash : page) {
+                names.add(userStorageUtil.contentName(contentHash));
+            }
+            after = page.isEmpty() ? after : page.get(page.size() - 1);
+        } while (page.size() == CONTENT_PAGE_SIZE);
+        return names;
+    }
+
+    private String derivativeKey(String contentHash, DerivativeKind kind) {
+        String name = userStorageUtil.contentName(contentHash);
+        return DERIVATIVE_ROOT + "/" + name.substring(0, 2) + "/" + name.substring(2, 4) + "/" + name + "." + kind.getExtension();
+    }
+}
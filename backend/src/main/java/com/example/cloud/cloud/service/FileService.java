@@ -3,23 +3,33 @@ package com.example.cloud.cloud.service;
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.auth.repository.MyUserRepository;
 import com.example.cloud.auth.security.jwt.JwtUtil;
-import com.example.cloud.cloud.model.Plan; // Import Plan
+import com.example.cloud.cloud.model.SavedFile;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageEntry;
 import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.CompressionUtil;
+import com.example.cloud.cloud.util.ConditionalRequests;
+import com.example.cloud.cloud.util.StorageMetrics;
 import com.example.cloud.cloud.util.UserStorageUtil;
 import org.slf4j.Logger; // Import Logger
 import org.slf4j.LoggerFactory; // Import LoggerFactory
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.nio.file.Path;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 
 @Service
 public class FileService {
@@ -30,15 +40,39 @@ public class FileService {
 
     private final AesFileUtil aesFileUtil;
 
+    private final StoredObjectIndexService storedObjectIndexService;
+
+    private final StorageQuotaService storageQuotaService;
+
+    private final StorageBackend storageBackend;
+
+    private final CompressionUtil compressionUtil;
+
+    private final StorageMetrics storageMetrics;
+
+    private final DerivativeService derivativeService;
+
+    private final ConditionalRequests conditionalRequests;
+
     private static final Logger logger = LoggerFactory.getLogger(FileService.class);
 
 
     @Autowired
-    public FileService(MyUserRepository myUserRepository, JwtUtil jwtUtil, UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil) {
+    public FileService(MyUserRepository myUserRepository, JwtUtil jwtUtil, UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil,
+                       StoredObjectIndexService storedObjectIndexService, StorageQuotaService storageQuotaService,
+                       StorageBackend storageBackend, CompressionUtil compressionUtil, StorageMetrics storageMetrics,
+                       DerivativeService derivativeService, ConditionalRequests conditionalRequests) {
         this.myUserRepository = myUserRepository;
         this.jwtUtil = jwtUtil;
         this.userStorageUtil = userStorageUtil;
         this.aesFileUtil = aesFileUtil;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.storageQuotaService = storageQuotaService;
+        this.storageBackend = storageBackend;
+        this.compressionUtil = compressionUtil;
+        this.storageMetrics = storageMetrics;
+        this.derivativeService = derivativeService;
+        this.conditionalRequests = conditionalRequests;
     }
 
     public void saveFile(MultipartFile fileToSave, String folderPath) {
@@ -48,131 +82,287 @@ public class FileService {
 
         MyUser myUser = userStorageUtil.getCurrentUser();
         long fileSize = fileToSave.getSize();
-        Plan userPlan = myUser.getPlan();
-
-        if (userPlan == null) {
-            throw new RuntimeException("User does not have a plan assigned.");
-        }
-
-        Long planStorageLimit = userPlan.getStorageLimitBytes();
-        if (planStorageLimit == null) {
-            logger.warn("Plan '{}' for user '{}' has null storageLimitBytes. Applying default.", userPlan.getName(), myUser.getUsername());
-            // Apply default based on plan name, similar to MyUserService
-            if ("FREE".equalsIgnoreCase(userPlan.getName())) {
-                planStorageLimit = 5L * 1024 * 1024 * 1024; // 5 GB
-            } else if ("PREMIUM".equalsIgnoreCase(userPlan.getName())) {
-                planStorageLimit = 100L * 1024 * 1024 * 1024; // 100 GB
-            } else {
-                planStorageLimit = 0L; // Restrictive default for unknown plans or plans missing this value
-                logger.error("Unknown plan '{}' or plan missing storage limit for user '{}'. Defaulting to 0 bytes.", userPlan.getName(), myUser.getUsername());
-                // Consider throwing an exception here if a plan MUST have a limit and it's not FREE/PREMIUM
-                // For now, defaulting to 0 will effectively block uploads for such misconfigured plans.
-            }
+
+        long start = System.nanoTime();
+        storageQuotaService.reserveStorage(myUser, fileSize);
+        storageMetrics.stage(StorageMetrics.STAGE_QUOTA, start);
+
+        SavedFile savedFile;
+        try {
+            savedFile = userStorageUtil.putFileInTheFolder(myUser.getId(), folderPath, fileToSave,
+                compressionUtil.codecFor(myUser.getPlan()));
+        } catch (RuntimeException e) {
+            storageQuotaService.releaseStorage(myUser.getId(), fileSize);
+            throw e;
+        }
+        // The quota keeps charging the plaintext size, however well the file compressed
+        long indexStart = System.nanoTime();
+        long replaced = storedObjectIndexService.recordFile(myUser.getId(), savedFile.getRelativePath(), fileSize,
+            savedFile.getContentHash(), savedFile.getStoredSize());
+        storageMetrics.stage(StorageMetrics.STAGE_INDEX, indexStart);
+        // The overwritten file's bytes were charged when it was uploaded
+        if (replaced > 0) {
+            storageQuotaService.releaseStorage(myUser.getId(), replaced);
         }
-        
-        Long currentUsedStorage = myUser.getUsedStorageBytes();
-        if (currentUsedStorage == null) { // Should have been initialized by MyUser or MyUserService
-            logger.warn("User '{}' has null usedStorageBytes. Defaulting to 0L for check.", myUser.getUsername());
-            currentUsedStorage = 0L;
+        storageMetrics.uploaded(start, fileSize);
+        derivativeService.schedule(myUser.getId(), savedFile.getRelativePath(), savedFile.getContentHash());
+    }
+
+    public ResponseEntity<StreamingResponseBody> getDownloadFile(String folderPath, String rangeHeader, String ifRange,
+                                                                 String ifNoneMatch, String ifModifiedSince) {
+        if (folderPath == null) {
+            throw new RuntimeException("File name is null");
         }
 
+        MyUser myUser = userStorageUtil.getCurrentUser();
 
-        if (currentUsedStorage + fileSize > planStorageLimit) {
-            throw new RuntimeException("Storage limit exceeded. Cannot upload file. Used: " + currentUsedStorage + ", File: " + fileSize + ", Limit: " + planStorageLimit);
+        String relativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        String key = userStorageUtil.objectKey(myUser.getId(), relativePath);
+
+        // Validators come from the index row, so a revalidation is answered without touching storage or the cipher.
+        // Files from chunked uploads have no content hash and are validated by date only
+        Optional<StoredObject> row = relativePath.isEmpty()
+            ? Optional.empty()
+            : storedObjectIndexService.find(myUser.getId(), relativePath).filter(indexed -> indexed.getType() == StoredObjectType.FILE);
+        String etag = row.map(StoredObject::getContentHash).map(ConditionalRequests::strongEtag).orElse(null);
+        Instant lastModified = row.map(StoredObject::getModifiedAt).orElse(null);
+        if (conditionalRequests.notModified(ifNoneMatch, ifModifiedSince, etag, lastModified)) {
+            return conditionalRequests.withValidators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), etag, lastModified).build();
+        }
+
+        StorageEntry entry = stat(key).orElseThrow(() -> new RuntimeException("File does not exist"));
+        if (entry.isFolder()) {
+            throw new RuntimeException("File is a directory");
         }
 
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path folderWhereToSave = userStorageUtil.getFolderPath(userDirPath, folderPath);
+        long storedSize = entry.getSize();
+        AesFileUtil.RangeReader reader = (position, length) -> storageBackend.getRange(key, position, length);
+        long plainLength;
+        try {
+            plainLength = aesFileUtil.plainLength(storedSize, reader);
+        } catch (Exception e) {
+            throw new RuntimeException("Error while reading encrypted file", e);
+        }
 
-        userStorageUtil.putFileInTheFolder(folderWhereToSave, fileToSave);
+        long start = 0;
+        long length = plainLength;
+        boolean partial = false;
+        // A range of a copy that has changed since would be spliced into the wrong bytes, so that gets the whole file
+        if (rangeHeader != null && !rangeHeader.isBlank() && conditionalRequests.rangeApplies(ifRange, etag, lastModified)) {
+            List<HttpRange> ranges = parseRanges(rangeHeader);
+            // Multipart byteranges are not worth it here; a single range covers scrubbing and resume
+            if (ranges.size() > 1) {
+                logger.debug("Serving the whole file for a multi-range request: {}", rangeHeader);
+            } else if (ranges.size() == 1) {
+                try {
+                    HttpRange range = ranges.get(0);
+                    start = range.getRangeStart(plainLength);
+                    length = range.getRangeEnd(plainLength) - start + 1;
+                    partial = true;
+                } catch (IllegalArgumentException e) {
+                    return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + plainLength)
+                        .build();
+                }
+            }
+        }
 
-        // Update used storage
-        myUser.setUsedStorageBytes(myUser.getUsedStorageBytes() + fileSize);
-        myUserRepository.save(myUser);
+        long rangeStart = start;
+        long rangeLength = length;
+        StreamingResponseBody body = out -> {
+            try {
+                long streamStart = System.nanoTime();
+                aesFileUtil.decryptRange(storedSize, reader, rangeStart, rangeLength, out);
+                storageMetrics.downloaded(streamStart, rangeLength);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error while decrypting file for download", e);
+            }
+        };
+
+        ResponseEntity.BodyBuilder response = partial
+            ? ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + (start + length - 1) + "/" + plainLength)
+            : ResponseEntity.ok();
+        return conditionalRequests.withValidators(response, etag, lastModified)
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + entry.getName() + "\"")
+            .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+            .contentType(MediaType.APPLICATION_OCTET_STREAM)
+            .contentLength(length)
+            .body(body);
     }
 
-    public ResponseEntity<Resource> getDownloadFile(String folderPath) {
-        if (folderPath == null) {
-            throw new RuntimeException("File name is null");
+    public ResponseEntity<String> changeFileName(String folderPath, String newFileName) {
+        MyUser myUser = userStorageUtil.getCurrentUser();
+
+        String oldRelativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        String oldKey = userStorageUtil.objectKey(myUser.getId(), oldRelativePath);
+
+        Optional<StorageEntry> oldFile = stat(oldKey);
+        if (oldFile.isEmpty() || oldFile.get().isFolder()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
+        }
+
+        String newRelativePath = userStorageUtil.childPath(UserStorageUtil.parentOf(oldRelativePath), newFileName);
+        String newKey = userStorageUtil.objectKey(myUser.getId(), newRelativePath);
+
+        if (stat(newKey).isPresent()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("File with this name already exists");
+        }
+
+        try {
+            storageBackend.move(oldKey, newKey);
+        } catch (IOException e) {
+            logger.error("Error renaming file {} to {}", oldKey, newKey, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to rename file");
         }
+        storedObjectIndexService.rename(myUser.getId(), oldRelativePath, newRelativePath, false);
+        return ResponseEntity.ok("File renamed successfully");
+    }
 
+    // Moves a file into another folder, optionally under a new name; the stored bytes are renamed, not rewritten
+    public ResponseEntity<String> moveFile(String filePath, String targetFolder, String newFileName) {
         MyUser myUser = userStorageUtil.getCurrentUser();
 
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path encryptedFilePath = userStorageUtil.getFolderPath(userDirPath, folderPath);
+        String oldRelativePath = userStorageUtil.normalizeRelativePath(filePath);
+        String oldKey = userStorageUtil.objectKey(myUser.getId(), oldRelativePath);
 
-        File encryptedFile = encryptedFilePath.toFile();
+        Optional<StorageEntry> oldFile = stat(oldKey);
+        if (oldFile.isEmpty() || oldFile.get().isFolder()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
+        }
 
-        if (!encryptedFile.exists()) {
-            throw new RuntimeException("File does not exist");
+        String newRelativePath;
+        try {
+            newRelativePath = targetPath(myUser.getId(), targetFolder,
+                newFileName == null || newFileName.isBlank() ? oldFile.get().getName() : newFileName);
+        } catch (SecurityException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Invalid file name or path.");
         }
-        if(encryptedFile.isDirectory()){
-            throw new RuntimeException("File is a directory");
+        if (newRelativePath == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Target folder not found");
         }
-        try {
-            File tempDecryptedFile = File.createTempFile("decrypted_", "_" + encryptedFile.getName());
-            aesFileUtil.decryptFile(encryptedFile, tempDecryptedFile);
+        String newKey = userStorageUtil.objectKey(myUser.getId(), newRelativePath);
 
-            Resource fileResource = new InputStreamResource(new FileInputStream(tempDecryptedFile));
+        if (stat(newKey).isPresent()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("File with this name already exists");
+        }
 
-            return ResponseEntity.ok()
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + encryptedFile.getName() + "\"")
-                .body(fileResource);
-        } catch (Exception e) {
-            throw new RuntimeException("Error while decrypting file for download", e);
+        try {
+            storageBackend.move(oldKey, newKey);
+        } catch (IOException e) {
+            logger.error("Error moving file {} to {}", oldKey, newKey, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to move file");
         }
+        storedObjectIndexService.rename(myUser.getId(), oldRelativePath, newRelativePath, false);
+        return ResponseEntity.ok("File moved successfully");
     }
 
-    public ResponseEntity<String> changeFileName(String folderPath, String newFileName) {
+    // Copies the ciphertext as it is: same key, same header, nothing decrypted or encrypted again
+    public ResponseEntity<String> copyFile(String filePath, String targetFolder, String newFileName) {
         MyUser myUser = userStorageUtil.getCurrentUser();
 
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path folderWhereFileIs = userStorageUtil.getFolderPath(userDirPath, folderPath);
-
-        File oldFile = folderWhereFileIs.toFile();
+        String sourceRelativePath = userStorageUtil.normalizeRelativePath(filePath);
+        String sourceKey = userStorageUtil.objectKey(myUser.getId(), sourceRelativePath);
 
-        if (!oldFile.exists() || !oldFile.isFile()) {
+        Optional<StorageEntry> sourceFile = stat(sourceKey);
+        if (sourceFile.isEmpty() || sourceFile.get().isFolder()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
         }
 
-        File parentDir = oldFile.getParentFile();
-
-        File newFile = new File(parentDir, newFileName);
+        String targetRelativePath;
+        try {
+            targetRelativePath = targetPath(myUser.getId(), targetFolder,
+                newFileName == null || newFileName.isBlank() ? sourceFile.get().getName() : newFileName);
+        } catch (SecurityException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Invalid file name or path.");
+        }
+        if (targetRelativePath == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Target folder not found");
+        }
+        String targetKey = userStorageUtil.objectKey(myUser.getId(), targetRelativePath);
 
-        if (newFile.exists()) {
+        if (stat(targetKey).isPresent()) {
             return ResponseEntity.status(HttpStatus.CONFLICT).body("File with this name already exists");
         }
 
-        boolean renamed = oldFile.renameTo(newFile);
-        if (renamed) {
-            return ResponseEntity.ok("File renamed successfully");
-        } else {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to rename file");
+        // Sizes and hash come from the source's index row; only an unindexed file needs its header read
+        Optional<StoredObject> sourceRow = storedObjectIndexService.find(myUser.getId(), sourceRelativePath);
+        long storedSize = sourceFile.get().getSize();
+        long fileSize = sourceRow.map(StoredObject::getSize).orElseGet(() -> plainSize(sourceKey, storedSize));
+        String contentHash = sourceRow.map(StoredObject::getContentHash).orElse(null);
+
+        try {
+            storageQuotaService.reserveStorage(myUser, fileSize);
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body(e.getMessage());
         }
+        try {
+            storageBackend.copy(sourceKey, targetKey);
+        } catch (IOException e) {
+            storageQuotaService.releaseStorage(myUser.getId(), fileSize);
+            logger.error("Error copying file {} to {}", sourceKey, targetKey, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to copy file");
+        }
+        storedObjectIndexService.recordFile(myUser.getId(), targetRelativePath, fileSize, contentHash, storedSize);
+        return ResponseEntity.status(HttpStatus.CREATED).body("File copied successfully");
     }
 
     public ResponseEntity<String> deleteFile(String filePath) {
         MyUser myUser = userStorageUtil.getCurrentUser();
 
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path folderWhereFileIs = userStorageUtil.getFolderPath(userDirPath, filePath);
-
-        File fileToDelete = folderWhereFileIs.toFile();
+        String relativePath = userStorageUtil.normalizeRelativePath(filePath);
+        String key = userStorageUtil.objectKey(myUser.getId(), relativePath);
 
-        if (!fileToDelete.exists() || !fileToDelete.isFile()) {
+        Optional<StorageEntry> fileToDelete = stat(key);
+        if (fileToDelete.isEmpty() || fileToDelete.get().isFolder()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("File not found");
         }
 
-        long fileSize = fileToDelete.length(); // Get file size before deleting
+        long fileSize = plainSize(key, fileToDelete.get().getSize()); // Uploads are charged by plaintext size, so credit the same
 
-        boolean deleted = fileToDelete.delete();
-        if (deleted) {
-            // Update used storage
-            myUser.setUsedStorageBytes(Math.max(0, myUser.getUsedStorageBytes() - fileSize)); // Ensure it doesn't go below 0
-            myUserRepository.save(myUser);
-            return ResponseEntity.ok("File deleted successfully");
-        } else {
+        try {
+            storageBackend.delete(key);
+        } catch (IOException e) {
+            logger.error("Error deleting file {}", key, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to delete file");
         }
+        storedObjectIndexService.removeFile(myUser.getId(), relativePath);
+        storageQuotaService.releaseStorage(myUser.getId(), fileSize);
+        return ResponseEntity.ok("File deleted successfully");
+    }
+
+    // Where a moved or copied file lands, or null if the target folder does not exist
+    private String targetPath(Long userId, String targetFolder, String name) {
+        String folderRelativePath = userStorageUtil.normalizeRelativePath(targetFolder == null ? "" : targetFolder);
+        if (!storedObjectIndexService.isFolder(userId, folderRelativePath)) {
+            return null;
+        }
+        return userStorageUtil.childPath(folderRelativePath, name);
+    }
+
+    // RFC 9110: a Range header that does not parse is ignored and the whole file is served
+    private static List<HttpRange> parseRanges(String rangeHeader) {
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Ignoring malformed Range header: {}", rangeHeader);
+            return List.of();
+        }
+    }
+
+    private Optional<StorageEntry> stat(String key) {
+        try {
+            return storageBackend.stat(key);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reading " + key, e);
+        }
+    }
+
+    private long plainSize(String key, long storedSize) {
+        try {
+            return aesFileUtil.plainLength(storedSize, (position, length) -> storageBackend.getRange(key, position, length));
+        } catch (Exception e) {
+            return storedSize;
+        }
     }
 }
@@ -0,0 +1,372 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.CompressionUtil;
+import com.example.cloud.cloud.util.JobExecutors;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a folder as a ZIP archive. Entries are written one after another, while the next few files
+ * are already being decrypted in the background; each decrypting file hands its plaintext over through
+ * a small bounded queue, so memory stays constant whatever the size of the folder. The tree is walked
+ * from the index a page of rows at a time, so a huge folder is never listed in full either. At most
+ * {@code storage.archive.parallelism} files are decrypted at once across all downloads; a file whose
+ * queue is full gives its slot up while it waits, so slow clients do not hold up anyone else's archive.
+ *
+ * Files that are compressed already (by extension) go in as STORED entries instead of being deflated
+ * again. A STORED entry needs its CRC before its data, so those files are decrypted twice: once to
+ * checksum them, once to send them. Decryption is much cheaper than deflating.
+ */
+@Service
+public class FolderArchiveService {
+    private final UserStorageUtil userStorageUtil;
+    private final AesFileUtil aesFileUtil;
+    private final StoredObjectIndexService storedObjectIndexService;
+    private final StorageBackend storageBackend;
+    private final ExecutorService pool;
+    private final Semaphore decryptSlots;
+    private final int prefetch;
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderArchiveService.class);
+
+    // Plaintext is handed to the writer in chunks of this size, at most QUEUED_CHUNKS per file ahead of it
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int QUEUED_CHUNKS = 16;
+
+    private static final byte[] END_OF_ENTRY = new byte[0];
+
+    // Index rows read per query while walking the tree; one page is held per folder level
+    private static final int PAGE_SIZE = 1000;
+
+    @Autowired
+    public FolderArchiveService(UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil, StoredObjectIndexService storedObjectIndexService,
+                                StorageBackend storageBackend, JobExecutors jobExecutors,
+                                @Value("${storage.archive.parallelism:4}") int parallelism,
+                                @Value("${storage.archive.prefetch:4}") int prefetch) {
+        this.userStorageUtil = userStorageUtil;
+        this.aesFileUtil = aesFileUtil;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.storageBackend = storageBackend;
+        this.pool = jobExecutors.newBlockingExecutor("folder-archive", parallelism);
+        this.decryptSlots = new Semaphore(parallelism);
+        this.prefetch = Math.max(1, prefetch);
+    }
+
+    public ResponseEntity<StreamingResponseBody> downloadFolder(String folderPath, boolean storeCompressed) {
+        MyUser myUser = userStorageUtil.getCurrentUser();
+
+        String relativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        if (!storedObjectIndexService.isFolder(myUser.getId(), relativePath)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        String archiveName = relativePath.isEmpty() ? "files" : relativePath.substring(relativePath.lastIndexOf('/') + 1);
+
+        Long userId = myUser.getId();
+        StreamingResponseBody body = out -> writeArchive(new EntryWalker(userId, relativePath), storeCompressed, out);
+        return ResponseEntity.ok()
+            .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + archiveName + ".zip\"")
+            .contentType(MediaType.parseMediaType("application/zip"))
+            .body(body);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private void writeArchive(EntryWalker walker, boolean storeCompressed, OutputStream out) throws IOException {
+        // Entries read ahead of the writer, files among them already decrypting; file is null for empty folders
+        Deque<QueuedEntry> queued = new ArrayDeque<>();
+        boolean walked = false;
+        ZipOutputStream zip = new ZipOutputStream(out);
+        try {
+            while (true) {
+                while (!walked && queued.size() < prefetch) {
+                    ArchiveEntry next = walker.next();
+                    if (next == null) {
+                        walked = true;
+                    } else if (next.key() == null) {
+                        queued.addLast(new QueuedEntry(next, null));
+                    } else {
+                        boolean store = storeCompressed && CompressionUtil.hasCompressedExtension(next.name());
+                        queued.addLast(new QueuedEntry(next, start(next, store)));
+                    }
+                }
+                QueuedEntry entry = queued.pollFirst();
+                if (entry == null) {
+                    break;
+                }
+                if (entry.file() == null) {
+                    zip.putNextEntry(new ZipEntry(entry.entry().name()));
+                    zip.closeEntry();
+                } else {
+                    writeEntry(zip, entry.file());
+                }
+            }
+            zip.finish();
+        } finally {
+            // Client gone or a file failed: stop the decryptions still running for this archive
+            for (QueuedEntry entry : queued) {
+                if (entry.file() != null) {
+                    entry.file().task().cancel(true);
+                }
+            }
+        }
+    }
+
+    private PendingFile start(ArchiveEntry entry, boolean store) {
+        BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUED_CHUNKS);
+        CompletableFuture<long[]> header = new CompletableFuture<>(); // plaintext length, and the CRC when stored
+        Future<?> task = pool.submit(() -> {
+            try {
+                String key = entry.key();
+                // Rows written before disk sizes were indexed have 0 there
+                long storedSize = entry.storedSize() > 0 ? entry.storedSize()
+                    : storageBackend.stat(key).orElseThrow(() -> new IOException(key + " is gone")).getSize();
+                AesFileUtil.RangeReader reader = (position, length) -> storageBackend.getRange(key, position, length);
+                decryptSlots.acquire();
+                try {
+                    long plainLength = aesFileUtil.plainLength(storedSize, reader);
+                    if (store) {
+                        CRC32 crc = new CRC32();
+                        aesFileUtil.decryptRange(storedSize, reader, 0, plainLength,
+                            new CheckedOutputStream(OutputStream.nullOutputStream(), crc));
+                        header.complete(new long[]{plainLength, crc.getValue()});
+                    } else {
+                        header.complete(new long[]{plainLength});
+                    }
+                    try (OutputStream pipe = new ChunkPipe(chunks, decryptSlots)) {
+                        aesFileUtil.decryptRange(storedSize, reader, 0, plainLength, pipe);
+                    }
+                } finally {
+                    decryptSlots.release();
+                }
+                chunks.put(END_OF_ENTRY);
+            } catch (InterruptedException | InterruptedIOException e) {
+                header.cancel(false);
+            } catch (Exception e) {
+                // The writer fails the archive when it reaches this entry
+                logger.warn("Could not decrypt {} for a folder download: {}", entry.name(), e.getMessage());
+                header.completeExceptionally(e);
+            }
+            return null;
+        });
+        return new PendingFile(entry, header, chunks, task);
+    }
+
+    private void writeEntry(ZipOutputStream zip, PendingFile file) throws IOException {
+        long[] header;
+        try {
+            header = file.header().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building archive");
+        } catch (ExecutionException e) {
+            throw new IOException("Error while reading " + file.entry().name(), e.getCause());
+        }
+
+        ZipEntry zipEntry = new ZipEntry(file.entry().name());
+        zipEntry.setLastModifiedTime(FileTime.from(file.entry().modifiedAt()));
+        if (header.length == 2) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(header[0]);
+            zipEntry.setCompressedSize(header[0]);
+            zipEntry.setCrc(header[1]);
+        } else {
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+        }
+        zip.putNextEntry(zipEntry);
+        try {
+            byte[] chunk;
+            while ((chunk = nextChunk(file)) != END_OF_ENTRY) {
+                zip.write(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while building archive");
+        }
+        zip.closeEntry();
+    }
+
+    // Waits for the next chunk, but notices a decryption that died instead of hanging on its queue
+    private static byte[] nextChunk(PendingFile file) throws InterruptedException, IOException {
+        while (true) {
+            byte[] chunk = file.chunks().poll(1, TimeUnit.SECONDS);
+            if (chunk != null) {
+                return chunk;
+            }
+            if (file.task().isDone() && file.chunks().isEmpty()) {
+                try {
+                    file.task().get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Error while reading " + file.entry().name(), e.getCause());
+                }
+                throw new IOException("Decryption of " + file.entry().name() + " stopped early");
+            }
+        }
+    }
+
+    // key is null for an empty folder
+    private record ArchiveEntry(String name, String key, long storedSize, Instant modifiedAt) {
+    }
+
+    private record PendingFile(ArchiveEntry entry, CompletableFuture<long[]> header, BlockingQueue<byte[]> chunks, Future<?> task) {
+    }
+
+    private record QueuedEntry(ArchiveEntry entry, PendingFile file) {
+    }
+
+    /**
+     * Walks a folder depth-first from the index, like FolderCopyJobService, so entries of one folder stay
+     * together; empty folders get an entry of their own. Only the current page of each level is held.
+     */
+    private class EntryWalker {
+        private final Long userId;
+        private final Deque<Level> levels = new ArrayDeque<>();
+
+        EntryWalker(Long userId, String folderPath) {
+            this.userId = userId;
+            levels.push(new Level(folderPath, ""));
+        }
+
+        // null once the whole tree has been walked
+        ArchiveEntry next() {
+            while (!levels.isEmpty()) {
+                Level level = levels.peek();
+                if (level.page == null || (level.index == level.page.size() && level.page.size() == PAGE_SIZE)) {
+                    boolean first = level.page == null;
+                    level.page = storedObjectIndexService.listChildren(userId, level.path, level.afterName, PAGE_SIZE);
+                    level.index = 0;
+                    if (!level.page.isEmpty()) {
+                        level.afterName = level.page.get(level.page.size() - 1).getName();
+                    } else if (first && !level.prefix.isEmpty()) {
+                        levels.pop();
+                        return new ArchiveEntry(level.prefix, null, 0, Instant.now());
+                    }
+                }
+                if (level.index == level.page.size()) {
+                    levels.pop();
+                    continue;
+                }
+                StoredObject row = level.page.get(level.index++);
+                String path = userStorageUtil.childPath(level.path, row.getName());
+                if (row.getType() == StoredObjectType.FOLDER) {
+                    levels.push(new Level(path, level.prefix + row.getName() + "/"));
+                } else {
+                    return new ArchiveEntry(level.prefix + row.getName(), userStorageUtil.objectKey(userId, path),
+                        row.getDiskSize(), row.getModifiedAt());
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Level {
+        private final String path;
+        private final String prefix;
+        private String afterName = "";
+        private List<StoredObject> page;
+        private int index;
+
+        Level(String path, String prefix) {
+            this.path = path;
+            this.prefix = prefix;
+        }
+    }
+
+    // OutputStream end of the hand-over queue; blocks while the writer is QUEUED_CHUNKS behind, without
+    // holding the decryption slot its caller took
+    private static class ChunkPipe extends OutputStream {
+        private final BlockingQueue<byte[]> chunks;
+        private final Semaphore slots;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int filled;
+
+        ChunkPipe(BlockingQueue<byte[]> chunks, Semaphore slots) {
+            this.chunks = chunks;
+            this.slots = slots;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, buffer.length - filled);
+                System.arraycopy(bytes, offset, buffer, filled, n);
+                filled += n;
+                offset += n;
+                length -= n;
+                if (filled == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (filled == 0) {
+                return;
+            }
+            byte[] chunk = Arrays.copyOf(buffer, filled);
+            if (!chunks.offer(chunk)) {
+                slots.release();
+                try {
+                    chunks.put(chunk);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Archive download was cancelled");
+                } finally {
+                    // The caller gives the slot back when it is done
+                    slots.acquireUninterruptibly();
+                }
+            }
+            filled = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
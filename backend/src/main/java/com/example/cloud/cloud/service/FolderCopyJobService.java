@@ -0,0 +1,217 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.cloud.dto.FolderCopyJobResponseDto;
+import com.example.cloud.cloud.model.FolderCopyJob;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Copies folder trees on a bounded fork-join pool. The tree is walked through the index, so sizes and
+ * content hashes come along without reading any file; every file is copied by the storage backend as
+ * stored ciphertext. Each page of copied files gets its index rows in one transaction.
+ */
+@Service
+public class FolderCopyJobService {
+    private final UserStorageUtil userStorageUtil;
+    private final StoredObjectIndexService storedObjectIndexService;
+    private final StorageQuotaService storageQuotaService;
+    private final StorageBackend storageBackend;
+    private final TransactionTemplate transactionTemplate;
+    private final ForkJoinPool pool;
+
+    private final Map<String, FolderCopyJob> jobs = new ConcurrentHashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderCopyJobService.class);
+
+    // Finished jobs stay pollable for this long
+    private static final Duration FINISHED_JOB_RETENTION = Duration.ofHours(1);
+
+    // Index rows read, copied and recorded at a time
+    private static final int PAGE_SIZE = 1000;
+
+    @Autowired
+    public FolderCopyJobService(UserStorageUtil userStorageUtil, StoredObjectIndexService storedObjectIndexService,
+                                StorageQuotaService storageQuotaService, StorageBackend storageBackend,
+                                PlatformTransactionManager transactionManager, @Value("${storage.copy.parallelism:4}") int parallelism) {
+        this.userStorageUtil = userStorageUtil;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.storageQuotaService = storageQuotaService;
+        this.storageBackend = storageBackend;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    // The target folder must exist already and reservedBytes must already be charged to the user
+    public FolderCopyJob start(Long userId, String sourcePath, String targetPath, long filesTotal, long reservedBytes) {
+        FolderCopyJob job = new FolderCopyJob(UUID.randomUUID().toString(), userId, sourcePath, targetPath, filesTotal, reservedBytes);
+        jobs.put(job.getId(), job);
+        pool.execute(() -> run(job));
+        return job;
+    }
+
+    public ResponseEntity<FolderCopyJobResponseDto> getJob(String jobId) {
+        FolderCopyJob job = jobs.get(jobId);
+        if (job == null || !job.getUserId().equals(userStorageUtil.getCurrentUser().getId())) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(new FolderCopyJobResponseDto(job.getId(), job.getSourcePath(), job.getTargetPath(),
+            job.getStatus().name(), job.getFilesTotal(), job.getFilesCopied().get(), job.getFoldersCopied().get(),
+            job.getBytesCopied().get(), job.getFailures().get()));
+    }
+
+    private void run(FolderCopyJob job) {
+        try {
+            new CopyTreeTask(job.getSourcePath(), job.getTargetPath(), job).invoke();
+        } catch (RuntimeException e) {
+            logger.error("Folder copy job {} failed", job.getId(), e);
+            job.getFailures().incrementAndGet();
+        }
+        // Files that failed, or were deleted from the source meanwhile, give their share of the reservation back
+        long unused = job.getReservedBytes() - job.getBytesCopied().get();
+        if (unused > 0) {
+            storageQuotaService.releaseStorage(job.getUserId(), unused);
+        }
+        job.finish();
+        if (job.getStatus() == FolderCopyJob.Status.FAILED) {
+            logger.warn("Folder copy job {} from {} to {} finished with {} failures", job.getId(), job.getSourcePath(),
+                job.getTargetPath(), job.getFailures().get());
+        }
+    }
+
+    // Running jobs hold a reservation for files that are not copied yet
+    public boolean hasRunningJobs(Long userId) {
+        return jobs.values().stream()
+            .anyMatch(job -> job.getUserId().equals(userId) && job.getStatus() == FolderCopyJob.Status.RUNNING);
+    }
+
+    @Scheduled(fixedDelay = 600_000)
+    public void forgetFinishedJobs() {
+        Instant cutoff = Instant.now().minus(FINISHED_JOB_RETENTION);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(cutoff));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    // Copies the files of one folder inline and forks a subtask per subfolder; failures are counted, not fatal
+    private class CopyTreeTask extends RecursiveAction {
+        private final String sourcePath;
+        private final String targetPath;
+        private final FolderCopyJob job;
+
+        CopyTreeTask(String sourcePath, String targetPath, FolderCopyJob job) {
+            this.sourcePath = sourcePath;
+            this.targetPath = targetPath;
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            Long userId = job.getUserId();
+            List<CopyTreeTask> subtasks = new ArrayList<>();
+            String afterName = "";
+            List<StoredObject> page;
+            do {
+                page = storedObjectIndexService.listChildren(userId, sourcePath, afterName, PAGE_SIZE);
+                List<StoredObject> copied = new ArrayList<>();
+                for (StoredObject entry : page) {
+                    String source = child(sourcePath, entry.getName());
+                    String target = child(targetPath, entry.getName());
+                    if (entry.getType() == StoredObjectType.FOLDER) {
+                        if (createFolder(target)) {
+                            CopyTreeTask subtask = new CopyTreeTask(source, target, job);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        }
+                    } else if (copyFile(source, target)) {
+                        copied.add(entry);
+                    }
+                }
+                record(copied);
+                if (!page.isEmpty()) {
+                    afterName = page.get(page.size() - 1).getName();
+                }
+            } while (page.size() == PAGE_SIZE);
+            for (CopyTreeTask subtask : subtasks) {
+                subtask.join();
+            }
+        }
+
+        private boolean createFolder(String target) {
+            try {
+                storageBackend.createFolder(userStorageUtil.objectKey(job.getUserId(), target));
+                storedObjectIndexService.recordFolder(job.getUserId(), target);
+                job.getFoldersCopied().incrementAndGet();
+                return true;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not create {} while copying: {}", target, e.getMessage());
+                job.getFailures().incrementAndGet();
+                return false;
+            }
+        }
+
+        private boolean copyFile(String source, String target) {
+            try {
+                storageBackend.copy(userStorageUtil.objectKey(job.getUserId(), source),
+                    userStorageUtil.objectKey(job.getUserId(), target));
+                return true;
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not copy {} to {}: {}", source, target, e.getMessage());
+                job.getFailures().incrementAndGet();
+                return false;
+            }
+        }
+
+        // Copied rows keep the source's sizes and content hash, so dedupe and stats see them like any upload
+        private void record(List<StoredObject> copied) {
+            if (copied.isEmpty()) {
+                return;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    for (StoredObject file : copied) {
+                        storedObjectIndexService.recordFile(job.getUserId(), child(targetPath, file.getName()), file.getSize(),
+                            file.getContentHash(), file.getDiskSize());
+                    }
+                });
+            } catch (RuntimeException e) {
+                // The copies exist but are not indexed; the next reconcile picks them up on local storage
+                logger.warn("Could not index {} copied files in {}: {}", copied.size(), targetPath, e.getMessage());
+                job.getFailures().addAndGet(copied.size());
+                return;
+            }
+            job.getFilesCopied().addAndGet(copied.size());
+            job.getBytesCopied().addAndGet(copied.stream().mapToLong(StoredObject::getSize).sum());
+        }
+    }
+
+    private static String child(String folderPath, String name) {
+        return folderPath.isEmpty() ? name : folderPath + "/" + name;
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.cloud.dto.FolderDeleteJobResponseDto;
+import com.example.cloud.cloud.model.FolderDeleteJob;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Deletes tombstoned folders on a bounded fork-join pool and credits the reclaimed bytes once per job. A job
+// resumed after a restart cannot know what its first run already deleted, so it rebuilds the user's usage instead
+@Service
+public class FolderDeleteJobService {
+    private final UserStorageUtil userStorageUtil;
+    private final AesFileUtil aesFileUtil;
+    private final StorageQuotaService storageQuotaService;
+    private final StorageBackend storageBackend;
+    private final StorageQuotaReconciler storageQuotaReconciler;
+    private final ForkJoinPool pool;
+
+    private final Map<String, FolderDeleteJob> jobs = new ConcurrentHashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderDeleteJobService.class);
+
+    // Finished jobs stay pollable for this long
+    private static final Duration FINISHED_JOB_RETENTION = Duration.ofHours(1);
+
+    @Autowired
+    public FolderDeleteJobService(UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil, StorageQuotaService storageQuotaService,
+                                  StorageBackend storageBackend, StorageQuotaReconciler storageQuotaReconciler,
+                                  @Value("${storage.delete.parallelism:4}") int parallelism) {
+        this.userStorageUtil = userStorageUtil;
+        this.aesFileUtil = aesFileUtil;
+        this.storageQuotaService = storageQuotaService;
+        this.storageBackend = storageBackend;
+        this.storageQuotaReconciler = storageQuotaReconciler;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public String newJobId() {
+        return UUID.randomUUID().toString();
+    }
+
+    // Tombstones live outside every user tree, named "<userId>-<jobId>" so leftovers can be resumed after a restart
+    public Path tombstonePath(Path userDirPath, Long userId, String jobId) throws IOException {
+        return userStorageUtil.getTrashDir(userDirPath).resolve(userId + "-" + jobId);
+    }
+
+    public FolderDeleteJob start(String jobId, Long userId, String folderPath, Path tombstonePath) {
+        FolderDeleteJob job = new FolderDeleteJob(jobId, userId, folderPath, tombstonePath, null);
+        jobs.put(jobId, job);
+        pool.execute(() -> run(job, false));
+        return job;
+    }
+
+    // For backends without local files: the backend deletes the folder in place (in parallel where it can),
+    // and the bytes to credit were taken from the index rows that were removed
+    public FolderDeleteJob startInPlace(String jobId, Long userId, String folderPath, String storageKey, long plainBytes) {
+        FolderDeleteJob job = new FolderDeleteJob(jobId, userId, folderPath, null, storageKey);
+        jobs.put(jobId, job);
+        pool.execute(() -> {
+            try {
+                storageBackend.delete(storageKey);
+                job.getBytesReclaimed().addAndGet(plainBytes);
+            } catch (IOException | RuntimeException e) {
+                logger.error("Folder delete job {} failed", job.getId(), e);
+                job.getFailures().incrementAndGet();
+            }
+            if (job.getBytesReclaimed().get() > 0) {
+                storageQuotaService.releaseStorage(userId, job.getBytesReclaimed().get());
+            }
+            job.finish();
+        });
+        return job;
+    }
+
+    public ResponseEntity<FolderDeleteJobResponseDto> getJob(String jobId) {
+        FolderDeleteJob job = jobs.get(jobId);
+        if (job == null || !job.getUserId().equals(userStorageUtil.getCurrentUser().getId())) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(new FolderDeleteJobResponseDto(job.getId(), job.getFolderPath(), job.getStatus().name(),
+            job.getFilesDeleted().get(), job.getFoldersDeleted().get(), job.getBytesReclaimed().get(), job.getFailures().get()));
+    }
+
+    private void run(FolderDeleteJob job, boolean resumed) {
+        try {
+            new DeleteTreeTask(job.getTombstonePath(), job).invoke();
+        } catch (RuntimeException e) {
+            logger.error("Folder delete job {} failed", job.getId(), e);
+            job.getFailures().incrementAndGet();
+        }
+        if (resumed) {
+            rebuildUsage(job.getUserId());
+        } else if (job.getBytesReclaimed().get() > 0) {
+            // One quota update for the whole tree instead of one per file
+            storageQuotaService.releaseStorage(job.getUserId(), job.getBytesReclaimed().get());
+        }
+        job.finish();
+        if (job.getStatus() == FolderDeleteJob.Status.FAILED) {
+            logger.warn("Folder delete job {} left {} entries behind in {}", job.getId(), job.getFailures().get(), job.getTombstonePath());
+        }
+    }
+
+    // Tombstones left by a restart or by failed jobs are picked up again
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeLeftoverTombstones() {
+        for (Path trashDir : userStorageUtil.getTrashDirs()) {
+            if (Files.isDirectory(trashDir)) {
+                resumeTombstones(trashDir);
+            }
+        }
+    }
+
+    private void resumeTombstones(Path trashDir) {
+        try (DirectoryStream<Path> tombstones = Files.newDirectoryStream(trashDir)) {
+            for (Path tombstone : tombstones) {
+                String name = tombstone.getFileName().toString();
+                int dash = name.indexOf('-');
+                if (dash <= 0) {
+                    continue;
+                }
+                try {
+                    Long userId = Long.valueOf(name.substring(0, dash));
+                    FolderDeleteJob job = new FolderDeleteJob(name.substring(dash + 1), userId, "", tombstone, null);
+                    jobs.put(job.getId(), job);
+                    pool.execute(() -> run(job, true));
+                } catch (NumberFormatException e) {
+                    logger.warn("Ignoring unexpected entry {} in trash", tombstone);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not scan trash directory {}", trashDir, e);
+        }
+    }
+
+    // The bytes deleted before the restart were never credited, so the counter is set from what is left on disk
+    private void rebuildUsage(Long userId) {
+        try {
+            if (!storageQuotaReconciler.reconcile(userId)) {
+                logger.info("Storage usage of user {} is left to the scheduled reconciliation", userId);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not rebuild storage usage of user {} after a resumed delete", userId, e);
+        }
+    }
+
+    @Scheduled(fixedDelay = 600_000)
+    public void forgetFinishedJobs() {
+        Instant cutoff = Instant.now().minus(FINISHED_JOB_RETENTION);
+        jobs.values().removeIf(job -> job.getFinishedAt() != null && job.getFinishedAt().isBefore(cutoff));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    // Deletes files of one directory inline and forks a subtask per subdirectory; failures are counted, not fatal
+    private class DeleteTreeTask extends RecursiveAction {
+        private final Path directory;
+        private final FolderDeleteJob job;
+
+        DeleteTreeTask(Path directory, FolderDeleteJob job) {
+            this.directory = directory;
+            this.job = job;
+        }
+
+        @Override
+        protected void compute() {
+            List<DeleteTreeTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                    if (attrs.isDirectory()) {
+                        DeleteTreeTask subtask = new DeleteTreeTask(entry, job);
+                        subtask.fork();
+                        subtasks.add(subtask);
+                    } else {
+                        deleteFile(entry, attrs);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Could not list {} while deleting: {}", directory, e.getMessage());
+                job.getFailures().incrementAndGet();
+            }
+            for (DeleteTreeTask subtask : subtasks) {
+                subtask.join();
+            }
+            try {
+                Files.delete(directory);
+                job.getFoldersDeleted().incrementAndGet();
+            } catch (IOException e) {
+                logger.warn("Could not delete {}: {}", directory, e.getMessage());
+                job.getFailures().incrementAndGet();
+            }
+        }
+
+        private void deleteFile(Path file, BasicFileAttributes attrs) {
+            long plainSize;
+            try {
+                plainSize = aesFileUtil.plainLength(file);
+            } catch (Exception e) {
+                plainSize = attrs.size();
+            }
+            try {
+                Files.delete(file);
+                job.getFilesDeleted().incrementAndGet();
+                if (!userStorageUtil.isInFlightUpload(file.getFileName().toString())) {
+                    job.getBytesReclaimed().addAndGet(plainSize);
+                }
+            } catch (IOException e) {
+                logger.warn("Could not delete {}: {}", file, e.getMessage());
+                job.getFailures().incrementAndGet();
+            }
+        }
+    }
+}
@@ -3,160 +3,385 @@ package com.example.cloud.cloud.service;
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.cloud.dto.FileFolderResponseDto;
 import com.example.cloud.cloud.dto.FileResponseDto;
+import com.example.cloud.cloud.dto.FolderEntryDto;
+import com.example.cloud.cloud.dto.FolderPageResponseDto;
 import com.example.cloud.cloud.dto.FolderResponseDto;
+import com.example.cloud.cloud.model.FolderCopyJob;
+import com.example.cloud.cloud.model.FolderVersion;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectSort;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.repository.StoredObjectTotals;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageEntry;
+import com.example.cloud.cloud.util.ConditionalRequests;
+import com.example.cloud.cloud.util.StorageMetrics;
 import com.example.cloud.cloud.util.UserStorageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
 import java.io.IOException; // Import IOException
 import java.nio.file.Files; // Import Files
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption; // Import StandardCopyOption
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 @Service
 public class FolderService {
     private final UserStorageUtil userStorageUtil;
+    private final StoredObjectIndexService storedObjectIndexService;
+    private final FolderDeleteJobService folderDeleteJobService;
+    private final FolderCopyJobService folderCopyJobService;
+    private final StorageQuotaService storageQuotaService;
+    private final StorageBackend storageBackend;
+    private final StorageMetrics storageMetrics;
+    private final ConditionalRequests conditionalRequests;
+
+    private static final Logger logger = LoggerFactory.getLogger(FolderService.class);
+
+    // Rows fetched per keyset query when a whole folder is listed
+    private static final int LISTING_PAGE_SIZE = 1000;
+    private static final int MAX_PAGE_SIZE = 1000;
 
     @Autowired
-    public FolderService(UserStorageUtil userStorageUtil) {
+    public FolderService(UserStorageUtil userStorageUtil, StoredObjectIndexService storedObjectIndexService,
+                         FolderDeleteJobService folderDeleteJobService, FolderCopyJobService folderCopyJobService,
+                         StorageQuotaService storageQuotaService, StorageBackend storageBackend,
+                         StorageMetrics storageMetrics, ConditionalRequests conditionalRequests) {
         this.userStorageUtil = userStorageUtil;
+        this.storedObjectIndexService = storedObjectIndexService;
+        this.folderDeleteJobService = folderDeleteJobService;
+        this.folderCopyJobService = folderCopyJobService;
+        this.storageQuotaService = storageQuotaService;
+        this.storageBackend = storageBackend;
+        this.storageMetrics = storageMetrics;
+        this.conditionalRequests = conditionalRequests;
     }
 
     public ResponseEntity<Map<String, String>> createFolder(String folderPath) {
         MyUser myUser = userStorageUtil.getCurrentUser();
 
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path foldersToCreate = userStorageUtil.getFolderPath(userDirPath, folderPath);
-
-        File targetFolder = foldersToCreate.toFile();
+        String relativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        String key = userStorageUtil.objectKey(myUser.getId(), relativePath);
 
-        if (targetFolder.exists()) {
+        if (stat(key).isPresent()) {
             return ResponseEntity
                 .status(HttpStatus.CONFLICT)
                 .body(Map.of("message", "Folder already exists"));
         }
 
-        boolean created = targetFolder.mkdirs();
-        if (created) {
-            return new ResponseEntity<>(Map.of("message", "Folder created"), HttpStatus.CREATED);
-        } else {
+        try {
+            storageBackend.createFolder(key);
+        } catch (IOException e) {
             return new ResponseEntity<>(Map.of("message", "Failed to create folder"), HttpStatus.INTERNAL_SERVER_ERROR);
         }
+        storedObjectIndexService.recordFolder(myUser.getId(), relativePath);
+        return new ResponseEntity<>(Map.of("message", "Folder created"), HttpStatus.CREATED);
     }
 
-    public ResponseEntity<FileFolderResponseDto> viewFolder(String folderPath) {
+    public ResponseEntity<FileFolderResponseDto> viewFolder(String folderPath, String ifNoneMatch, String ifModifiedSince) {
+        long start = System.nanoTime();
         MyUser myUser = userStorageUtil.getCurrentUser();
 
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path targetPath = userStorageUtil.getFolderPath(userDirPath, folderPath);
-
-        if (!targetPath.toFile().exists() || !targetPath.toFile().isDirectory()) {
+        // Served from the stored_object index instead of listing the directory
+        String relativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        if (!storedObjectIndexService.isFolder(myUser.getId(), relativePath)) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
         }
-
-        File[] filesAndFolders = targetPath.toFile().listFiles();
-        if (filesAndFolders == null || filesAndFolders.length == 0) {
-            return ResponseEntity.ok(new FileFolderResponseDto(Collections.emptyList(), Collections.emptyList()));
+        // Read before the rows, so a change racing the listing leaves the client with a version that is already stale
+        FolderVersion version = storedObjectIndexService.folderVersion(myUser.getId(), relativePath);
+        String etag = ConditionalRequests.strongEtag("v" + version.getVersion());
+        if (conditionalRequests.notModified(ifNoneMatch, ifModifiedSince, etag, version.getChangedAt())) {
+            return conditionalRequests.withValidators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), etag, version.getChangedAt()).build();
         }
 
         List<FileResponseDto> files = new ArrayList<>();
         List<FolderResponseDto> folders = new ArrayList<>();
 
-        for (File file : filesAndFolders) {
-            if (file.isDirectory()) {
-                folders.add(new FolderResponseDto(file.getName()));
-            } else {
-                files.add(new FileResponseDto(file.getName(), false, file.length()));
+        String afterName = "";
+        List<StoredObject> page;
+        do {
+            page = storedObjectIndexService.listChildren(myUser.getId(), relativePath, afterName, LISTING_PAGE_SIZE);
+            for (StoredObject entry : page) {
+                if (entry.getType() == StoredObjectType.FOLDER) {
+                    folders.add(new FolderResponseDto(entry.getName()));
+                } else {
+                    files.add(new FileResponseDto(entry.getName(), false, entry.getSize()));
+                }
+            }
+            if (!page.isEmpty()) {
+                afterName = page.get(page.size() - 1).getName();
             }
+        } while (page.size() == LISTING_PAGE_SIZE);
+
+        storageMetrics.folderViewed(start, files.size() + folders.size());
+        return conditionalRequests.withValidators(ResponseEntity.ok(), etag, version.getChangedAt())
+            .body(new FileFolderResponseDto(files, folders));
+    }
+
+    public ResponseEntity<FolderPageResponseDto> listFolderPage(String folderPath, String cursor, int limit, String sort,
+                                                                String direction, String namePrefix, String type,
+                                                                String ifNoneMatch, String ifModifiedSince) {
+        MyUser myUser = userStorageUtil.getCurrentUser();
+
+        String relativePath = userStorageUtil.normalizeRelativePath(folderPath);
+
+        StoredObjectSort sortKey;
+        StoredObjectType typeFilter;
+        StoredObject after;
+        try {
+            sortKey = StoredObjectSort.valueOf(sort.toUpperCase(Locale.ROOT));
+            typeFilter = type == null || type.isBlank() ? null : StoredObjectType.valueOf(type.toUpperCase(Locale.ROOT));
+            after = cursor == null || cursor.isBlank() ? null : decodeCursor(cursor, sortKey);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        boolean descending = "desc".equalsIgnoreCase(direction);
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+
+        if (!storedObjectIndexService.isFolder(myUser.getId(), relativePath)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        // Every page of a folder shares its version; each page is its own URL, so caches keep them apart
+        FolderVersion version = storedObjectIndexService.folderVersion(myUser.getId(), relativePath);
+        String etag = ConditionalRequests.strongEtag("v" + version.getVersion());
+        if (conditionalRequests.notModified(ifNoneMatch, ifModifiedSince, etag, version.getChangedAt())) {
+            return conditionalRequests.withValidators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), etag, version.getChangedAt()).build();
+        }
+
+        // One extra row tells us whether there is a next page without a count query
+        List<StoredObject> rows = storedObjectIndexService.listChildrenPage(myUser.getId(), relativePath, sortKey,
+            descending, namePrefix, typeFilter, after, pageSize + 1);
+        boolean hasMore = rows.size() > pageSize;
+        if (hasMore) {
+            rows = rows.subList(0, pageSize);
         }
-        return ResponseEntity.ok(new FileFolderResponseDto(files, folders));
+
+        List<FolderEntryDto> items = new ArrayList<>(rows.size());
+        for (StoredObject entry : rows) {
+            items.add(new FolderEntryDto(entry.getName(), entry.getType() == StoredObjectType.FOLDER, entry.getSize(),
+                entry.getModifiedAt()));
+        }
+        String nextCursor = hasMore ? encodeCursor(rows.get(rows.size() - 1), sortKey) : null;
+        return conditionalRequests.withValidators(ResponseEntity.ok(), etag, version.getChangedAt())
+            .body(new FolderPageResponseDto(items, nextCursor));
+    }
+
+    // Cursor = base64url("sortKey\nvalue\nname"); the name goes last since it is the only free-form part
+    private static String encodeCursor(StoredObject last, StoredObjectSort sort) {
+        String value = switch (sort) {
+            case NAME -> "";
+            case SIZE -> Long.toString(last.getSize());
+            case MODIFIED -> last.getModifiedAt().toString();
+        };
+        String raw = sort.name() + "\n" + value + "\n" + last.getName();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StoredObject decodeCursor(String cursor, StoredObjectSort sort) {
+        String[] parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 3);
+        if (parts.length != 3 || !parts[0].equals(sort.name())) {
+            throw new IllegalArgumentException("Cursor does not match the requested sort");
+        }
+        StoredObject after = new StoredObject();
+        after.setName(parts[2]);
+        try {
+            switch (sort) {
+                case SIZE -> after.setSize(Long.parseLong(parts[1]));
+                case MODIFIED -> after.setModifiedAt(Instant.parse(parts[1]));
+                default -> { }
+            }
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+        return after;
     }
 
     public ResponseEntity<String> renameFolder(String folderPath, String newFolderName) {
         MyUser myUser = userStorageUtil.getCurrentUser();
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path oldFolderPath = userStorageUtil.getFolderPath(userDirPath, folderPath);
-        File oldFolderFile = oldFolderPath.toFile();
+        String oldRelativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        String oldKey = userStorageUtil.objectKey(myUser.getId(), oldRelativePath);
 
-        if (!oldFolderFile.exists() || !oldFolderFile.isDirectory()) {
+        Optional<StorageEntry> oldFolder = stat(oldKey);
+        if (oldRelativePath.isEmpty() || oldFolder.isEmpty() || !oldFolder.get().isFolder()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Folder not found");
         }
 
-        // Construct the new path using Path objects for consistency
-        Path parentDirPath = oldFolderPath.getParent();
-        if (parentDirPath == null) {
-            // Should not happen if oldFolderPath is valid and within userDirPath
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Cannot determine parent directory.");
-        }
-        Path newFolderPath = parentDirPath.resolve(newFolderName).normalize();
-
-        // Security check: ensure new path is still within user's root directory
-        if (!newFolderPath.startsWith(userDirPath)) {
-             return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Invalid new folder name or path.");
+        // The new name stays next to the old folder; anything resolving elsewhere is refused
+        String newRelativePath;
+        try {
+            newRelativePath = userStorageUtil.childPath(UserStorageUtil.parentOf(oldRelativePath), newFolderName);
+        } catch (SecurityException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Invalid new folder name or path.");
         }
-        
-        File newFolderFile = newFolderPath.toFile();
+        String newKey = userStorageUtil.objectKey(myUser.getId(), newRelativePath);
 
-        if (newFolderFile.exists()) {
+        if (stat(newKey).isPresent()) {
             return ResponseEntity.status(HttpStatus.CONFLICT).body("A file or folder with the new name already exists.");
         }
 
         try {
-            Files.move(oldFolderPath, newFolderPath, StandardCopyOption.REPLACE_EXISTING);
+            storageBackend.move(oldKey, newKey);
+            storedObjectIndexService.rename(myUser.getId(), oldRelativePath, newRelativePath, true);
             return ResponseEntity.ok("Folder renamed successfully");
         } catch (IOException e) {
-            // Log the exception e.g., using SLF4J logger
-            // logger.error("Error renaming folder {} to {}:", folderPath, newFolderName, e);
+            logger.error("Error renaming folder {} to {}", oldKey, newKey, e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to rename folder: " + e.getMessage());
         }
     }
 
-    public ResponseEntity<String> deleteFolder(String folderPath) {
+    // Moves a folder with everything below it into another folder; on local storage this is a single rename
+    public ResponseEntity<String> moveFolder(String folderPath, String targetFolder, String newFolderName) {
         MyUser myUser = userStorageUtil.getCurrentUser();
-        Path userDirPath = userStorageUtil.getUserRootDir(myUser);
-        Path actualFolderPath = userStorageUtil.getFolderPath(userDirPath, folderPath);
-        File folderToDelete = actualFolderPath.toFile();
+        String oldRelativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        String oldKey = userStorageUtil.objectKey(myUser.getId(), oldRelativePath);
 
-        if (!folderToDelete.exists() || !folderToDelete.isDirectory()) {
+        Optional<StorageEntry> oldFolder = stat(oldKey);
+        if (oldRelativePath.isEmpty() || oldFolder.isEmpty() || !oldFolder.get().isFolder()) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Folder not found");
         }
 
+        String newRelativePath;
         try {
-            boolean deleted = deleteRecursively(folderToDelete);
-            if (deleted) {
-                return ResponseEntity.ok("Folder deleted successfully");
-            } else {
-                // This case might be hard to reach if deleteRecursively throws exceptions on failure
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to delete folder or some of its contents.");
-            }
+            newRelativePath = targetPath(myUser.getId(), oldRelativePath, targetFolder, newFolderName);
+        } catch (SecurityException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body("Invalid folder name or path.");
+        }
+        if (newRelativePath == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("Target folder not found");
+        }
+        if (isSameOrBelow(newRelativePath, oldRelativePath)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Cannot move a folder into itself");
+        }
+        String newKey = userStorageUtil.objectKey(myUser.getId(), newRelativePath);
+
+        if (stat(newKey).isPresent()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("A file or folder with this name already exists.");
+        }
+
+        try {
+            storageBackend.move(oldKey, newKey);
+            storedObjectIndexService.rename(myUser.getId(), oldRelativePath, newRelativePath, true);
+            return ResponseEntity.ok("Folder moved successfully");
         } catch (IOException e) {
-            // Log the exception e.g., using SLF4J logger
-            // logger.error("Error deleting folder: {}", folderPath, e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error deleting folder: " + e.getMessage());
+            logger.error("Error moving folder {} to {}", oldKey, newKey, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Failed to move folder: " + e.getMessage());
         }
     }
 
-    private boolean deleteRecursively(File fileOrDir) throws IOException {
-        if (fileOrDir.isDirectory()) {
-            File[] children = fileOrDir.listFiles();
-            if (children != null) {
-                for (File child : children) {
-                    if (!deleteRecursively(child)) {
-                        return false; // Stop if a child couldn't be deleted
-                    }
-                }
-            }
+    // The whole tree is charged to the quota up front and copied by a background job the client can poll;
+    // the target folder is created right away so a second copy to the same place gets a conflict
+    public ResponseEntity<Map<String, String>> copyFolder(String folderPath, String targetFolder, String newFolderName) {
+        MyUser myUser = userStorageUtil.getCurrentUser();
+        String sourceRelativePath = userStorageUtil.normalizeRelativePath(folderPath);
+
+        if (sourceRelativePath.isEmpty() || !storedObjectIndexService.isFolder(myUser.getId(), sourceRelativePath)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("message", "Folder not found"));
+        }
+
+        String targetRelativePath;
+        try {
+            targetRelativePath = targetPath(myUser.getId(), sourceRelativePath, targetFolder, newFolderName);
+        } catch (SecurityException e) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("message", "Invalid folder name or path."));
+        }
+        if (targetRelativePath == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("message", "Target folder not found"));
+        }
+        if (isSameOrBelow(targetRelativePath, sourceRelativePath)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Map.of("message", "Cannot copy a folder into itself"));
+        }
+        String targetKey = userStorageUtil.objectKey(myUser.getId(), targetRelativePath);
+
+        if (stat(targetKey).isPresent()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("message", "A file or folder with this name already exists."));
+        }
+
+        StoredObjectTotals totals = storedObjectIndexService.totalsBelow(myUser.getId(), sourceRelativePath);
+        try {
+            storageQuotaService.reserveStorage(myUser, totals.getBytes());
+        } catch (RuntimeException e) {
+            return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body(Map.of("message", e.getMessage()));
+        }
+
+        try {
+            storageBackend.createFolder(targetKey);
+        } catch (IOException e) {
+            storageQuotaService.releaseStorage(myUser.getId(), totals.getBytes());
+            return new ResponseEntity<>(Map.of("message", "Failed to create folder"), HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+        storedObjectIndexService.recordFolder(myUser.getId(), targetRelativePath);
+
+        FolderCopyJob job = folderCopyJobService.start(myUser.getId(), sourceRelativePath, targetRelativePath, totals.getFiles(),
+            totals.getBytes());
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("message", "Folder copy started", "jobId", job.getId()));
+    }
+
+    // Where a moved or copied folder lands, keeping its name unless a new one is given; null if the target folder is missing
+    private String targetPath(Long userId, String relativePath, String targetFolder, String newFolderName) {
+        String folderRelativePath = userStorageUtil.normalizeRelativePath(targetFolder == null ? "" : targetFolder);
+        if (!storedObjectIndexService.isFolder(userId, folderRelativePath)) {
+            return null;
         }
-        // Delete the file or now-empty directory
-        if (!fileOrDir.delete()) {
-            // Optional: throw an IOException if a file/empty dir can't be deleted
-            // throw new IOException("Failed to delete " + fileOrDir.getAbsolutePath());
-            return false; // Indicate failure
+        String name = newFolderName == null || newFolderName.isBlank()
+            ? relativePath.substring(relativePath.lastIndexOf('/') + 1) : newFolderName;
+        return userStorageUtil.childPath(folderRelativePath, name);
+    }
+
+    private static boolean isSameOrBelow(String path, String folderPath) {
+        return path.equals(folderPath) || path.startsWith(folderPath + "/");
+    }
+
+    // The folder is renamed to a tombstone outside the user's tree, so it disappears at once and the
+    // actual file removal runs as a background job the client can poll. Backends without local files
+    // have no cheap rename, so there the job deletes the folder where it is once the index rows are gone
+    public ResponseEntity<Map<String, String>> deleteFolder(String folderPath) {
+        MyUser myUser = userStorageUtil.getCurrentUser();
+        String relativePath = userStorageUtil.normalizeRelativePath(folderPath);
+        String key = userStorageUtil.objectKey(myUser.getId(), relativePath);
+
+        Optional<StorageEntry> folderToDelete = stat(key);
+        if (folderToDelete.isEmpty() || !folderToDelete.get().isFolder()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("message", "Folder not found"));
+        }
+        if (relativePath.isEmpty()) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(Map.of("message", "Cannot delete the root folder"));
+        }
+
+        String jobId = folderDeleteJobService.newJobId();
+        if (!userStorageUtil.isLocalStorage()) {
+            long bytes = storedObjectIndexService.removeFolder(myUser.getId(), relativePath);
+            folderDeleteJobService.startInPlace(jobId, myUser.getId(), relativePath, key, bytes);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("message", "Folder deletion started", "jobId", jobId));
+        }
+
+        Path actualFolderPath = storageBackend.localPath(key).orElseThrow();
+        Path tombstonePath;
+        try {
+            tombstonePath = folderDeleteJobService.tombstonePath(userStorageUtil.getUserRootDir(myUser), myUser.getId(), jobId);
+            Files.move(actualFolderPath, tombstonePath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(Map.of("message", "Error deleting folder: " + e.getMessage()));
+        }
+
+        storedObjectIndexService.removeFolder(myUser.getId(), relativePath);
+        folderDeleteJobService.start(jobId, myUser.getId(), relativePath, tombstonePath);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("message", "Folder deletion started", "jobId", jobId));
+    }
+
+    private Optional<StorageEntry> stat(String key) {
+        try {
+            return storageBackend.stat(key);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reading " + key, e);
         }
-        return true;
     }
 }
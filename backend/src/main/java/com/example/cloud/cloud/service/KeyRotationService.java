@@ -0,0 +1,245 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.cloud.dto.KeyRotationResponseDto;
+import com.example.cloud.cloud.model.KeyRotation;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageEntry;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.JobExecutors;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves every stored file's data key to the active master key ({@code aes.master-key-id}), so the
+ * previous master key can be dropped from {@code aes.master-keys} once a pass finishes without failures.
+ * Only key slots in file headers are rewritten, in parallel: in place on local volumes (a file reached
+ * through several hard links is done once), by storing the object again with the new header on remote
+ * backends. The remote write only goes through if the object is still the version the header was read
+ * from, so an upload or delete during the pass is never undone; such objects are looked at again. Files
+ * from before envelope encryption have no data key and are counted as skipped.
+ */
+@Service
+public class KeyRotationService {
+    private final AesFileUtil aesFileUtil;
+    private final StorageBackend storageBackend;
+    private final MyUserRepository myUserRepository;
+    private final int parallelism;
+    private final ExecutorService runner;
+    private final ExecutorService workers;
+
+    private final AtomicReference<KeyRotation> lastRun = new AtomicReference<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(KeyRotationService.class);
+
+    // Remote objects outside the user trees that are encrypted too
+    private static final String DERIVATIVE_ROOT = ".derivatives";
+
+    // Conditional rewrites of one remote object before it is counted as a failure
+    private static final int MAX_REMOTE_ATTEMPTS = 3;
+
+    @Autowired
+    public KeyRotationService(AesFileUtil aesFileUtil, StorageBackend storageBackend, MyUserRepository myUserRepository,
+                              JobExecutors jobExecutors, @Value("${aes.rotation.parallelism:8}") int parallelism) {
+        this.aesFileUtil = aesFileUtil;
+        this.storageBackend = storageBackend;
+        this.myUserRepository = myUserRepository;
+        this.parallelism = parallelism;
+        this.runner = jobExecutors.newExecutor("key-rotation", 1);
+        this.workers = jobExecutors.newExecutor("key-rotation-worker", parallelism);
+    }
+
+    public ResponseEntity<KeyRotationResponseDto> start() {
+        KeyRotation previous = lastRun.get();
+        if (previous != null && previous.getStatus() == KeyRotation.Status.RUNNING) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(toDto(previous));
+        }
+        KeyRotation rotation = new KeyRotation(aesFileUtil.activeMasterKeyId());
+        if (!lastRun.compareAndSet(previous, rotation)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        runner.execute(() -> run(rotation));
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(toDto(rotation));
+    }
+
+    public ResponseEntity<KeyRotationResponseDto> getStatus() {
+        KeyRotation rotation = lastRun.get();
+        if (rotation == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(toDto(rotation));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        runner.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private void run(KeyRotation rotation) {
+        // Bounds the files queued ahead of the workers, so the walk never holds the whole tree in memory
+        Semaphore slots = new Semaphore(parallelism * 4);
+        try {
+            if (storageBackend.localRoots().isEmpty()) {
+                for (MyUser user : myUserRepository.findAll()) {
+                    walkRemote(String.valueOf(user.getId()), rotation, slots);
+                }
+                walkRemote(DERIVATIVE_ROOT, rotation, slots);
+            } else {
+                // Blobs, trash and derivatives live below the roots too
+                Set<Object> linked = ConcurrentHashMap.newKeySet();
+                for (Path root : storageBackend.localRoots()) {
+                    walkLocal(root, rotation, slots, linked);
+                }
+            }
+            slots.acquire(parallelism * 4);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rotation.getFailures().incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Master key rotation failed", e);
+            rotation.getFailures().incrementAndGet();
+        } finally {
+            rotation.finish();
+            logger.info("Master key rotation to {} finished: {} files rewrapped, {} already current, {} skipped, {} failures",
+                rotation.getKeyId(), rotation.getFilesRewrapped().get(), rotation.getFilesCurrent().get(),
+                rotation.getFilesSkipped().get(), rotation.getFailures().get());
+        }
+    }
+
+    private void walkLocal(Path root, KeyRotation rotation, Semaphore slots, Set<Object> linked) throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || (attrs.fileKey() != null && linkCount(file) > 1 && !linked.add(attrs.fileKey()))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                submit(rotation, slots, file.toString(), () -> aesFileUtil.rewrap(file));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.warn("Skipping {} while rotating keys: {}", file, e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void walkRemote(String key, KeyRotation rotation, Semaphore slots) throws IOException {
+        for (StorageEntry entry : storageBackend.list(key)) {
+            if (entry.isFolder()) {
+                walkRemote(entry.getKey(), rotation, slots);
+            } else {
+                submit(rotation, slots, entry.getKey(), () -> rewrapRemote(entry.getKey()));
+            }
+        }
+    }
+
+    private AesFileUtil.RewrapResult rewrapRemote(String key) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            // Taken before anything is read: if the object is replaced or deleted after this, the write below misses
+            String version = storageBackend.version(key).orElseThrow(() -> new NoSuchFileException(key));
+            byte[] header;
+            try (InputStream in = storageBackend.getRange(key, 0, AesFileUtil.GCM_HEADER_LENGTH)) {
+                header = in.readNBytes(AesFileUtil.GCM_HEADER_LENGTH);
+            }
+            if (!AesFileUtil.isEnveloped(header)) {
+                return AesFileUtil.RewrapResult.NOT_ENVELOPED;
+            }
+            byte[] rewrapped = aesFileUtil.rewrapHeader(header);
+            if (rewrapped == null) {
+                return AesFileUtil.RewrapResult.CURRENT;
+            }
+            // The payload is copied as stored; it is neither decrypted nor encrypted again
+            boolean replaced;
+            try (InputStream in = storageBackend.get(key)) {
+                in.skipNBytes(AesFileUtil.GCM_HEADER_LENGTH);
+                replaced = storageBackend.replaceIfVersion(key, version, out -> {
+                    out.write(rewrapped);
+                    in.transferTo(out);
+                });
+            }
+            if (replaced) {
+                return AesFileUtil.RewrapResult.REWRAPPED;
+            }
+            // Written or deleted meanwhile; new content is usually under the active key already, so look again
+            if (attempt == MAX_REMOTE_ATTEMPTS) {
+                throw new IOException(key + " kept changing while its data key was being rewrapped");
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Rewrap {
+        AesFileUtil.RewrapResult run() throws Exception;
+    }
+
+    private void submit(KeyRotation rotation, Semaphore slots, String name, Rewrap rewrap) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Key rotation was interrupted", e);
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    switch (rewrap.run()) {
+                        case REWRAPPED -> rotation.getFilesRewrapped().incrementAndGet();
+                        case CURRENT -> rotation.getFilesCurrent().incrementAndGet();
+                        case NOT_ENVELOPED -> rotation.getFilesSkipped().incrementAndGet();
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted or moved since the walk saw it; a moved file is reached again on the next pass
+                } catch (Exception e) {
+                    logger.error("Could not rewrap the data key of {}", name, e);
+                    rotation.getFailures().incrementAndGet();
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    private static int linkCount(Path file) {
+        try {
+            return (Integer) Files.getAttribute(file, "unix:nlink");
+        } catch (IOException | IllegalArgumentException | UnsupportedOperationException e) {
+            return 1;
+        }
+    }
+
+    private static KeyRotationResponseDto toDto(KeyRotation rotation) {
+        return new KeyRotationResponseDto(rotation.getStatus().name(), rotation.getKeyId(), rotation.getFilesRewrapped().get(),
+            rotation.getFilesCurrent().get(), rotation.getFilesSkipped().get(), rotation.getFailures().get(),
+            rotation.getStartedAt(), rotation.getFinishedAt());
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.auth.security.service.PrincipalCache;
 import com.example.cloud.cloud.util.UserStorageUtil;
 import com.example.cloud.cloud.dto.PlanUpgradeRequestDto;
 
@@ -21,13 +22,15 @@ public class PlanService {
     private final PlanRepository planRepository;
     private final MyUserRepository myUserRepository;
     private final UserStorageUtil userStorageUtil;
+    private final PrincipalCache principalCache;
 
 
     @Autowired
-    public PlanService(PlanRepository planRepository, MyUserRepository myUserRepository, UserStorageUtil userStorageUtil) {
+    public PlanService(PlanRepository planRepository, MyUserRepository myUserRepository, UserStorageUtil userStorageUtil, PrincipalCache principalCache) {
         this.planRepository = planRepository;
         this.myUserRepository = myUserRepository;
         this.userStorageUtil = userStorageUtil;
+        this.principalCache = principalCache;
     }
 
     @Transactional
@@ -47,10 +50,13 @@ public class PlanService {
 
     @Transactional
     public ResponseEntity<Map<String, String>> upgradeUserPlan(PlanUpgradeRequestDto upgradeRequest) {
-        MyUser currentUser = userStorageUtil.getCurrentUser();
-        if (currentUser == null) {
+        MyUser principal = userStorageUtil.getCurrentUser();
+        if (principal == null) {
             return new ResponseEntity<>(Map.of("error", "User not authenticated"), HttpStatus.UNAUTHORIZED);
         }
+        // Work on a fresh row: saving the principal would write back its possibly stale usedStorageBytes
+        MyUser currentUser = myUserRepository.findById(principal.getId())
+                .orElseThrow(() -> new RuntimeException("User not found"));
 
         Plan targetPlan = planRepository.findByName(upgradeRequest.getPlanName())
                 .orElse(null);
@@ -68,6 +74,7 @@ public class PlanService {
 
         currentUser.setPlan(targetPlan);
         myUserRepository.save(currentUser);
+        principalCache.invalidate(currentUser.getUsername());
 
         return new ResponseEntity<>(Map.of("message", "User plan upgraded successfully to " + targetPlan.getName()), HttpStatus.OK);
     }
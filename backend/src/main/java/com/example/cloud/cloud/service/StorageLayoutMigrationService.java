@@ -0,0 +1,151 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.cloud.dto.StorageLayoutMigrationResponseDto;
+import com.example.cloud.cloud.model.StorageLayoutMigration;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageLayout;
+import com.example.cloud.cloud.util.JobExecutors;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves users from the flat layout into the hashed one while the service keeps running. Each user is a
+ * single directory rename on its own volume, and the backends look in the hashed place first, so a user is
+ * served from the new place from the moment it is moved. The symlink left in the old place covers requests
+ * that resolved the path just before; a later pass removes it once it is older than the grace period. Users
+ * with an open chunked upload are skipped, and their links kept, because sessions hold absolute paths.
+ * The move, the session check and the link happen while no write to the user is running or can start
+ * ({@link StorageBackend#migrateOwner}), so nothing recreates the old directory in between; users being
+ * written to are skipped for the next run.
+ */
+@Service
+public class StorageLayoutMigrationService {
+    private final StorageBackend storageBackend;
+    private final ChunkedUploadService chunkedUploadService;
+    private final StorageLayout layout;
+    private final Duration linkGrace;
+    private final ExecutorService executor;
+
+    private final AtomicReference<StorageLayoutMigration> lastRun = new AtomicReference<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageLayoutMigrationService.class);
+
+    @Autowired
+    public StorageLayoutMigrationService(StorageBackend storageBackend, ChunkedUploadService chunkedUploadService,
+                                         JobExecutors jobExecutors,
+                                         @Value("${storage.layout:flat}") StorageLayout layout,
+                                         @Value("${storage.layout.migration.link-grace-minutes:60}") long linkGraceMinutes) {
+        this.storageBackend = storageBackend;
+        this.chunkedUploadService = chunkedUploadService;
+        this.layout = layout;
+        this.linkGrace = Duration.ofMinutes(linkGraceMinutes);
+        this.executor = jobExecutors.newExecutor("layout-migration", 1);
+    }
+
+    public ResponseEntity<StorageLayoutMigrationResponseDto> start() {
+        if (layout != StorageLayout.HASHED || storageBackend.localRoots().isEmpty()) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        StorageLayoutMigration previous = lastRun.get();
+        if (previous != null && previous.getStatus() == StorageLayoutMigration.Status.RUNNING) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(toDto(previous));
+        }
+        StorageLayoutMigration migration = new StorageLayoutMigration();
+        if (!lastRun.compareAndSet(previous, migration)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        executor.execute(() -> run(migration));
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(toDto(migration));
+    }
+
+    public ResponseEntity<StorageLayoutMigrationResponseDto> getStatus() {
+        StorageLayoutMigration migration = lastRun.get();
+        if (migration == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        return ResponseEntity.ok(toDto(migration));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(StorageLayoutMigration migration) {
+        try {
+            for (Path root : storageBackend.localRoots()) {
+                migrateVolume(root, migration);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Storage layout migration failed", e);
+            migration.getFailures().incrementAndGet();
+        } finally {
+            migration.finish();
+            logger.info("Storage layout migration finished: {} users moved, {} skipped, {} links removed, {} failures",
+                migration.getUsersMigrated().get(), migration.getUsersSkipped().get(), migration.getLinksRemoved().get(),
+                migration.getFailures().get());
+        }
+    }
+
+    private void migrateVolume(Path root, StorageLayoutMigration migration) {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        // Only user directories have all-digit names; .trash, .blobs and the hashed buckets are left alone
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root, entry -> isUserId(entry.getFileName().toString()))) {
+            for (Path entry : entries) {
+                String owner = entry.getFileName().toString();
+                try {
+                    if (Files.isSymbolicLink(entry)) {
+                        removeLinkIfExpired(entry, Long.valueOf(owner), migration);
+                    } else if (storageBackend.migrateOwner(owner, () -> !chunkedUploadService.hasOpenSessions(Long.valueOf(owner)))) {
+                        migration.getUsersMigrated().incrementAndGet();
+                    } else {
+                        migration.getUsersSkipped().incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not move user {} on {} to the hashed layout", owner, root, e);
+                    migration.getFailures().incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Could not list storage volume {}", root, e);
+            migration.getFailures().incrementAndGet();
+        }
+    }
+
+    private void removeLinkIfExpired(Path link, Long userId, StorageLayoutMigration migration) throws IOException {
+        Instant created = Files.getLastModifiedTime(link, LinkOption.NOFOLLOW_LINKS).toInstant();
+        if (created.plus(linkGrace).isAfter(Instant.now()) || chunkedUploadService.hasOpenSessions(userId)) {
+            return;
+        }
+        Files.delete(link);
+        migration.getLinksRemoved().incrementAndGet();
+    }
+
+    private static boolean isUserId(String name) {
+        return !name.isEmpty() && name.chars().allMatch(Character::isDigit);
+    }
+
+    private static StorageLayoutMigrationResponseDto toDto(StorageLayoutMigration migration) {
+        return new StorageLayoutMigrationResponseDto(migration.getStatus().name(), migration.getUsersMigrated().get(),
+            migration.getUsersSkipped().get(), migration.getLinksRemoved().get(), migration.getFailures().get(),
+            migration.getStartedAt(), migration.getFinishedAt());
+    }
+}
@@ -0,0 +1,124 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+
+// Corrects usedStorageBytes drift (crashes mid-upload, restarts with open chunked sessions, manual disk changes).
+// The counter also holds reservations of writes that are not on disk yet, so users with writes in flight are
+// left for the next run, and the correction only lands if the counter did not move while the tree was walked
+@Service
+public class StorageQuotaReconciler {
+    // In-flight files written to this recently, and reservations made this recently, count as writes in progress;
+    // older in-flight files are leftovers of a crash
+    private static final Duration ACTIVE_WRITE_WINDOW = Duration.ofMinutes(10);
+
+    private final MyUserRepository myUserRepository;
+    private final UserStorageUtil userStorageUtil;
+    private final AesFileUtil aesFileUtil;
+    private final ChunkedUploadService chunkedUploadService;
+    private final FolderCopyJobService folderCopyJobService;
+    private final StorageQuotaService storageQuotaService;
+    // In-flight files not written to since before this are leftovers of the previous run
+    private final Instant startedAt = Instant.now();
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageQuotaReconciler.class);
+
+    @Autowired
+    public StorageQuotaReconciler(MyUserRepository myUserRepository, UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil,
+                                  ChunkedUploadService chunkedUploadService, FolderCopyJobService folderCopyJobService,
+                                  StorageQuotaService storageQuotaService) {
+        this.myUserRepository = myUserRepository;
+        this.userStorageUtil = userStorageUtil;
+        this.aesFileUtil = aesFileUtil;
+        this.chunkedUploadService = chunkedUploadService;
+        this.folderCopyJobService = folderCopyJobService;
+        this.storageQuotaService = storageQuotaService;
+    }
+
+    @Scheduled(cron = "${storage.quota.reconcile-cron:0 0 4 * * *}")
+    public void reconcileAll() {
+        if (!userStorageUtil.isLocalStorage()) {
+            return;
+        }
+        for (MyUser user : myUserRepository.findAll()) {
+            try {
+                reconcile(user.getId());
+            } catch (IOException e) {
+                logger.error("Could not reconcile storage usage of user {}", user.getId(), e);
+            }
+        }
+    }
+
+    // Returns false when the user was skipped or the counter moved meanwhile, so it is left to the next run
+    public boolean reconcile(Long userId) throws IOException {
+        if (chunkedUploadService.hasOpenSessions(userId) || folderCopyJobService.hasRunningJobs(userId)) {
+            logger.debug("Skipping storage reconciliation of user {}: uploads or copies are open", userId);
+            return false;
+        }
+        // Read before the walk: any reservation or release after this makes the compare-and-set below miss
+        long recorded = myUserRepository.findById(userId).map(MyUser::getUsedStorageBytes).orElse(0L);
+        Instant walkStart = Instant.now();
+        Instant activeSince = walkStart.minus(ACTIVE_WRITE_WINDOW);
+        if (activeSince.isBefore(startedAt)) {
+            activeSince = startedAt;
+        }
+        boolean[] writing = {false};
+        long actual = plainBytesOnDisk(userStorageUtil.getUserRootDir(userId), activeSince, writing);
+        if (writing[0] || storageQuotaService.reservedSince(userId, activeSince)) {
+            logger.debug("Skipping storage reconciliation of user {}: a write is in progress", userId);
+            return false;
+        }
+        if (actual != recorded) {
+            if (myUserRepository.compareAndSetUsedStorage(userId, recorded, actual) == 0) {
+                logger.debug("Storage usage of user {} changed during reconciliation, leaving it to the next run", userId);
+                return false;
+            }
+            logger.info("Correcting storage usage of user {} from {} to {} bytes", userId, recorded, actual);
+        }
+        return true;
+    }
+
+    // Sets writing[0] when an in-flight upload file was modified after activeSince
+    private long plainBytesOnDisk(Path userDirPath, Instant activeSince, boolean[] writing) throws IOException {
+        long[] total = {0};
+        Files.walkFileTree(userDirPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (userStorageUtil.isInFlightUpload(file.getFileName().toString())) {
+                    if (attrs.lastModifiedTime().toInstant().isAfter(activeSince)) {
+                        writing[0] = true;
+                    }
+                } else {
+                    try {
+                        total[0] += aesFileUtil.plainLength(file);
+                    } catch (Exception e) {
+                        total[0] += attrs.size();
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return total[0];
+    }
+}
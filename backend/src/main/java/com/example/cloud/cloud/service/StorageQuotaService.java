@@ -0,0 +1,83 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.cloud.model.Plan;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Quota accounting done in the database with conditional updates, so parallel uploads and deletes never lose an update
+@Service
+public class StorageQuotaService {
+    private final MyUserRepository myUserRepository;
+    private final Counter rejections;
+    // When each user last reserved, so the reconciler can leave alone users whose writes may still be in flight
+    private final Map<Long, Instant> lastReservations = new ConcurrentHashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(StorageQuotaService.class);
+
+    @Autowired
+    public StorageQuotaService(MyUserRepository myUserRepository, MeterRegistry meterRegistry) {
+        this.myUserRepository = myUserRepository;
+        this.rejections = Counter.builder("cloud.quota.rejections")
+            .description("Reservations refused because they would exceed the plan limit")
+            .register(meterRegistry);
+    }
+
+    // Counts the bytes as used before any data is written, or throws if that would go past the plan limit
+    public void reserveStorage(MyUser myUser, long bytes) {
+        Plan userPlan = myUser.getPlan();
+        if (userPlan == null) {
+            // Principals built from token claims carry no plan
+            userPlan = myUserRepository.findById(myUser.getId()).map(MyUser::getPlan).orElse(null);
+        }
+        if (userPlan == null) {
+            throw new RuntimeException("User does not have a plan assigned.");
+        }
+
+        long planStorageLimit = resolveStorageLimit(userPlan, myUser.getUsername());
+        lastReservations.put(myUser.getId(), Instant.now());
+        if (myUserRepository.tryReserveStorage(myUser.getId(), bytes, planStorageLimit) == 0) {
+            rejections.increment();
+            Long used = myUserRepository.findById(myUser.getId()).map(MyUser::getUsedStorageBytes).orElse(0L);
+            throw new RuntimeException("Storage limit exceeded. Cannot upload file. Used: " + used + ", File: " + bytes + ", Limit: " + planStorageLimit);
+        }
+    }
+
+    public boolean reservedSince(Long userId, Instant since) {
+        Instant last = lastReservations.get(userId);
+        return last != null && last.isAfter(since);
+    }
+
+    // Gives back bytes of deleted files or of uploads that did not complete; also used outside a request
+    public void releaseStorage(Long userId, long bytes) {
+        myUserRepository.releaseStorage(userId, bytes);
+    }
+
+    public long resolveStorageLimit(Plan userPlan, String username) {
+        Long planStorageLimit = userPlan.getStorageLimitBytes();
+        if (planStorageLimit == null) {
+            logger.warn("Plan '{}' for user '{}' has null storageLimitBytes. Applying default.", userPlan.getName(), username);
+            // Apply default based on plan name, similar to MyUserService
+            if ("FREE".equalsIgnoreCase(userPlan.getName())) {
+                planStorageLimit = 5L * 1024 * 1024 * 1024; // 5 GB
+            } else if ("PREMIUM".equalsIgnoreCase(userPlan.getName())) {
+                planStorageLimit = 100L * 1024 * 1024 * 1024; // 100 GB
+            } else {
+                planStorageLimit = 0L; // Restrictive default for unknown plans or plans missing this value
+                logger.error("Unknown plan '{}' or plan missing storage limit for user '{}'. Defaulting to 0 bytes.", userPlan.getName(), username);
+                // Consider throwing an exception here if a plan MUST have a limit and it's not FREE/PREMIUM
+                // For now, defaulting to 0 will effectively block uploads for such misconfigured plans.
+            }
+        }
+        return planStorageLimit;
+    }
+}
@@ -0,0 +1,395 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.cloud.model.FolderVersion;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectSort;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.repository.FolderVersionRepository;
+import com.example.cloud.cloud.repository.StoredObjectRepository;
+import com.example.cloud.cloud.repository.StoredObjectTotals;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// Keeps the stored_object table in step with the files on disk so listings and stats never have to walk the tree
+@Service
+public class StoredObjectIndexService {
+    private final StoredObjectRepository storedObjectRepository;
+    private final FolderVersionRepository folderVersionRepository;
+    private final MyUserRepository myUserRepository;
+    private final UserStorageUtil userStorageUtil;
+    private final AesFileUtil aesFileUtil;
+    private final EntityManager entityManager;
+    private final TransactionTemplate transactionTemplate;
+    private final UserStorageStatsService userStorageStatsService;
+
+    private static final Logger logger = LoggerFactory.getLogger(StoredObjectIndexService.class);
+
+    private static final int RECONCILE_BATCH_SIZE = 500;
+
+    @Autowired
+    public StoredObjectIndexService(StoredObjectRepository storedObjectRepository, FolderVersionRepository folderVersionRepository,
+                                    MyUserRepository myUserRepository,
+                                    UserStorageUtil userStorageUtil, AesFileUtil aesFileUtil, EntityManager entityManager,
+                                    PlatformTransactionManager transactionManager, UserStorageStatsService userStorageStatsService) {
+        this.storedObjectRepository = storedObjectRepository;
+        this.folderVersionRepository = folderVersionRepository;
+        this.myUserRepository = myUserRepository;
+        this.userStorageUtil = userStorageUtil;
+        this.aesFileUtil = aesFileUtil;
+        this.entityManager = entityManager;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.userStorageStatsService = userStorageStatsService;
+    }
+
+    // Every write below also reports its delta to UserStorageStatsService, which applies it after commit, and
+    // bumps the version of each folder whose listing it changes.
+    // size is the plaintext size the quota charges, diskSize what the file takes on storage
+    // Returns the plaintext size of the file this one replaced, or -1 when the path held no file
+    @Transactional
+    public long recordFile(Long ownerId, String relativePath, long size, String contentHash, long diskSize) {
+        String parent = parentOf(relativePath);
+        String name = nameOf(relativePath);
+        Instant now = Instant.now();
+        long previousSize = -1;
+        long previousDiskSize = 0;
+        // The existence check is the insert itself, and a replaced row is locked before its size is read, so two
+        // writers of one path never both count it as new nor both subtract the same previous size
+        if (storedObjectRepository.insertFileIfAbsent(ownerId, parent, name, size, now, contentHash, diskSize) == 0) {
+            Optional<StoredObject> previous = storedObjectRepository.lockEntry(ownerId, parent, name)
+                .filter(existing -> existing.getType() == StoredObjectType.FILE);
+            if (previous.isPresent()) {
+                previousSize = previous.get().getSize();
+                previousDiskSize = diskSizeOf(previous.get());
+            }
+            storedObjectRepository.upsert(ownerId, parent, name, StoredObjectType.FILE.name(), size, now, contentHash, diskSize);
+        }
+        userStorageStatsService.fileWritten(ownerId, relativePath, previousSize, size, previousDiskSize, diskSize);
+        folderChanged(ownerId, parent);
+        return previousSize;
+    }
+
+    // Records the folder and any missing ancestors, like mkdirs does on disk
+    @Transactional
+    public void recordFolder(Long ownerId, String relativePath) {
+        Instant now = Instant.now();
+        String parent = "";
+        int created = 0;
+        for (String segment : relativePath.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (storedObjectRepository.insertFolderIfAbsent(ownerId, parent, segment, now) > 0) {
+                folderChanged(ownerId, parent);
+                created++;
+            }
+            parent = parent.isEmpty() ? segment : parent + "/" + segment;
+        }
+        userStorageStatsService.foldersAdded(ownerId, created);
+    }
+
+    @Transactional
+    public void removeFile(Long ownerId, String relativePath) {
+        storedObjectRepository.findByOwnerIdAndParentPathAndName(ownerId, parentOf(relativePath), nameOf(relativePath))
+            .ifPresent(existing -> userStorageStatsService.fileRemoved(ownerId, relativePath, existing.getSize(), diskSizeOf(existing)));
+        storedObjectRepository.deleteEntry(ownerId, parentOf(relativePath), nameOf(relativePath));
+        folderChanged(ownerId, parentOf(relativePath));
+    }
+
+    // Returns the plaintext bytes of the files that were below the folder
+    @Transactional
+    public long removeFolder(Long ownerId, String relativePath) {
+        StoredObjectTotals below = storedObjectRepository.totalsForDescendants(ownerId, relativePath, likePrefix(relativePath));
+        boolean indexed = storedObjectRepository.findByOwnerIdAndParentPathAndName(ownerId, parentOf(relativePath), nameOf(relativePath)).isPresent();
+        userStorageStatsService.treeRemoved(ownerId, below.getFiles(), below.getFolders() + (indexed ? 1 : 0), below.getBytes(),
+            below.getDiskBytes());
+        storedObjectRepository.deleteDescendants(ownerId, relativePath, likePrefix(relativePath));
+        storedObjectRepository.deleteEntry(ownerId, parentOf(relativePath), nameOf(relativePath));
+        folderVersionRepository.deleteSubtree(ownerId, relativePath, likePrefix(relativePath));
+        folderChanged(ownerId, parentOf(relativePath));
+        return below.getBytes();
+    }
+
+    @Transactional
+    public void rename(Long ownerId, String oldRelativePath, String newRelativePath, boolean folder) {
+        userStorageStatsService.pathsChanged(ownerId);
+        if (folder) {
+            storedObjectRepository.moveDescendants(ownerId, oldRelativePath, likePrefix(oldRelativePath),
+                oldRelativePath.length(), newRelativePath);
+            // Listings below both paths start over from a fresh version, so no cached one matches them
+            folderVersionRepository.deleteSubtree(ownerId, oldRelativePath, likePrefix(oldRelativePath));
+            folderVersionRepository.deleteSubtree(ownerId, newRelativePath, likePrefix(newRelativePath));
+        }
+        storedObjectRepository.renameEntry(ownerId, parentOf(oldRelativePath), nameOf(oldRelativePath),
+            parentOf(newRelativePath), nameOf(newRelativePath), Instant.now());
+        // Both parents in a fixed order, so two moves in opposite directions cannot deadlock on their rows
+        String oldParent = parentOf(oldRelativePath);
+        String newParent = parentOf(newRelativePath);
+        folderChanged(ownerId, oldParent.compareTo(newParent) <= 0 ? oldParent : newParent);
+        if (!oldParent.equals(newParent)) {
+            folderChanged(ownerId, oldParent.compareTo(newParent) <= 0 ? newParent : oldParent);
+        }
+    }
+
+    /**
+     * The current version of a folder's listing, created on first use. Versions only ever grow, and a
+     * folder that is removed and created again starts above anything it had before, so a version names
+     * one state of the listing for good and can serve as a strong ETag.
+     */
+    @Transactional
+    public FolderVersion folderVersion(Long ownerId, String relativePath) {
+        Optional<FolderVersion> current = folderVersionRepository.findByOwnerIdAndPath(ownerId, relativePath);
+        if (current.isPresent()) {
+            return current.get();
+        }
+        Instant now = Instant.now();
+        folderVersionRepository.insertIfAbsent(ownerId, relativePath, versionFloor(now), now);
+        return folderVersionRepository.findByOwnerIdAndPath(ownerId, relativePath)
+            .orElseThrow(() -> new IllegalStateException("Folder version of " + relativePath + " was not created"));
+    }
+
+    public boolean isFolder(Long ownerId, String relativePath) {
+        if (relativePath.isEmpty()) {
+            return true;
+        }
+        Optional<StoredObject> entry = storedObjectRepository.findByOwnerIdAndParentPathAndName(
+            ownerId, parentOf(relativePath), nameOf(relativePath));
+        return entry.isPresent() && entry.get().getType() == StoredObjectType.FOLDER;
+    }
+
+    public Optional<StoredObject> find(Long ownerId, String relativePath) {
+        return storedObjectRepository.findByOwnerIdAndParentPathAndName(ownerId, parentOf(relativePath), nameOf(relativePath));
+    }
+
+    // Content hashes any user still has a file with, in keyset pages; null afterHash for the first page
+    public List<String> contentHashesAfter(String afterHash, int limit) {
+        return storedObjectRepository.findContentHashesAfter(afterHash == null ? "" : afterHash, PageRequest.ofSize(limit));
+    }
+
+    // Files, folders and plaintext bytes below a folder, without the folder itself
+    public StoredObjectTotals totalsBelow(Long ownerId, String relativePath) {
+        return storedObjectRepository.totalsForDescendants(ownerId, relativePath, likePrefix(relativePath));
+    }
+
+    public List<StoredObject> listChildren(Long ownerId, String relativePath, String afterName, int limit) {
+        return storedObjectRepository.findChildrenAfter(ownerId, relativePath, afterName == null ? "" : afterName,
+            PageRequest.ofSize(limit));
+    }
+
+    /**
+     * One page of a folder's children in keyset order. {@code after} carries the sort values of the last row
+     * of the previous page (null for the first page); only {@code limit} rows are ever loaded.
+     */
+    public List<StoredObject> listChildrenPage(Long ownerId, String parentPath, StoredObjectSort sort, boolean descending,
+                                               String namePrefix, StoredObjectType type, StoredObject after, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<StoredObject> query = cb.createQuery(StoredObject.class);
+        Root<StoredObject> root = query.from(StoredObject.class);
+
+        List<Predicate> where = new ArrayList<>();
+        where.add(cb.equal(root.get("ownerId"), ownerId));
+        where.add(cb.equal(root.get("parentPath"), parentPath));
+        if (namePrefix != null && !namePrefix.isEmpty()) {
+            where.add(cb.like(root.get("name"), escapeLike(namePrefix) + "%", '!'));
+        }
+        if (type != null) {
+            where.add(cb.equal(root.get("type"), type));
+        }
+
+        Expression<String> name = root.get("name");
+        Expression<?> key = switch (sort) {
+            case NAME -> name;
+            case SIZE -> root.<Long>get("size");
+            case MODIFIED -> root.<Instant>get("modifiedAt");
+        };
+
+        if (after != null) {
+            Predicate nameAfter = descending ? cb.lessThan(name, after.getName()) : cb.greaterThan(name, after.getName());
+            switch (sort) {
+                case NAME -> where.add(nameAfter);
+                case SIZE -> where.add(keysetAfter(cb, root.get("size"), after.getSize(), nameAfter, descending));
+                case MODIFIED -> where.add(keysetAfter(cb, root.get("modifiedAt"), after.getModifiedAt(), nameAfter, descending));
+            }
+        }
+
+        query.select(root)
+            .where(where.toArray(new Predicate[0]))
+            .orderBy(descending ? cb.desc(key) : cb.asc(key), descending ? cb.desc(name) : cb.asc(name));
+        return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+    }
+
+    // (key > value) or (key = value and name > lastName), mirrored for descending order
+    private static <T extends Comparable<? super T>> Predicate keysetAfter(CriteriaBuilder cb, Expression<T> key, T value,
+                                                                           Predicate nameAfter, boolean descending) {
+        Predicate keyAfter = descending ? cb.lessThan(key, value) : cb.greaterThan(key, value);
+        return cb.or(keyAfter, cb.and(cb.equal(key, value), nameAfter));
+    }
+
+    // Users stored before the index existed get their rows built once at startup
+    @Async
+    @EventListener(ApplicationReadyEvent.class)
+    public void indexUnindexedUsers() {
+        if (!userStorageUtil.isLocalStorage()) {
+            return;
+        }
+        for (MyUser user : myUserRepository.findAll()) {
+            if (!storedObjectRepository.existsByOwnerId(user.getId())) {
+                reconcile(user);
+            }
+        }
+    }
+
+    @Scheduled(cron = "${storage.index.reconcile-cron:0 30 3 * * *}")
+    public void reconcileAll() {
+        // Rebuilding from a remote bucket would mean a ranged GET per object; the index is authoritative there
+        if (!userStorageUtil.isLocalStorage()) {
+            return;
+        }
+        for (MyUser user : myUserRepository.findAll()) {
+            reconcile(user);
+        }
+    }
+
+    // Rebuilds one user's rows from what is actually on disk, in a single transaction so readers never see a half-built index
+    public void reconcile(MyUser user) {
+        transactionTemplate.executeWithoutResult(status -> {
+            rebuild(user);
+            // The rebuild may have picked up changes made behind the index's back
+            folderVersionRepository.deleteByOwner(user.getId());
+            userStorageStatsService.recompute(user.getId());
+        });
+    }
+
+    private void rebuild(MyUser user) {
+        Path userDirPath = userStorageUtil.getUserRootDir(user);
+        List<StoredObject> batch = new ArrayList<>();
+        // Content hashes cannot be recovered from the ciphertext cheaply, so carry them over for paths that still exist
+        Map<String, String> contentHashes = new HashMap<>();
+        for (StoredObject hashed : storedObjectRepository.findByOwnerIdAndContentHashIsNotNull(user.getId())) {
+            contentHashes.put(hashed.getParentPath() + "/" + hashed.getName(), hashed.getContentHash());
+        }
+        try {
+            storedObjectRepository.deleteByOwner(user.getId());
+            Files.walkFileTree(userDirPath, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (!dir.equals(userDirPath)) {
+                        add(dir, StoredObjectType.FOLDER, 0, attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!userStorageUtil.isInFlightUpload(file.getFileName().toString())) {
+                        add(file, StoredObjectType.FILE, plainSize(file, attrs), attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    logger.warn("Skipping {} while reconciling index: {}", file, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void add(Path path, StoredObjectType type, long size, BasicFileAttributes attrs) {
+                    String relativePath = userStorageUtil.toRelativePath(userDirPath, path);
+                    StoredObject entry = new StoredObject(user.getId(), parentOf(relativePath), nameOf(relativePath), type, size,
+                        attrs.lastModifiedTime().toInstant());
+                    if (type == StoredObjectType.FILE) {
+                        entry.setContentHash(contentHashes.get(entry.getParentPath() + "/" + entry.getName()));
+                        entry.setDiskSize(attrs.size());
+                    }
+                    batch.add(entry);
+                    if (batch.size() >= RECONCILE_BATCH_SIZE) {
+                        flush(batch);
+                    }
+                }
+            });
+            flush(batch);
+        } catch (IOException e) {
+            throw new RuntimeException("Error while reconciling index for user " + user.getId(), e);
+        }
+    }
+
+    private void folderChanged(Long ownerId, String relativePath) {
+        Instant now = Instant.now();
+        folderVersionRepository.bump(ownerId, relativePath, versionFloor(now), now);
+    }
+
+    // Microseconds since the epoch; fresh versions start here rather than at 1
+    private static long versionFloor(Instant now) {
+        return ChronoUnit.MICROS.between(Instant.EPOCH, now);
+    }
+
+    private void flush(List<StoredObject> batch) {
+        storedObjectRepository.saveAll(batch);
+        storedObjectRepository.flush();
+        entityManager.clear();
+        batch.clear();
+    }
+
+    private long plainSize(Path file, BasicFileAttributes attrs) {
+        try {
+            return aesFileUtil.plainLength(file);
+        } catch (Exception e) {
+            return attrs.size();
+        }
+    }
+
+    // Matches the fallback of the totals queries for rows written before disk sizes were tracked
+    private static long diskSizeOf(StoredObject file) {
+        return file.getDiskSize() > 0 ? file.getDiskSize() : file.getSize();
+    }
+
+    static String parentOf(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        return slash < 0 ? "" : relativePath.substring(0, slash);
+    }
+
+    static String nameOf(String relativePath) {
+        return relativePath.substring(relativePath.lastIndexOf('/') + 1);
+    }
+
+    private static String likePrefix(String relativePath) {
+        return escapeLike(relativePath) + "/%";
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+}
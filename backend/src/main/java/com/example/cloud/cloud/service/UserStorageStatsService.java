@@ -0,0 +1,381 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.cloud.dto.LargestFileDto;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.model.UserStorageStats;
+import com.example.cloud.cloud.repository.StoredObjectRepository;
+import com.example.cloud.cloud.repository.StoredObjectTotals;
+import com.example.cloud.cloud.repository.UserStorageStatsRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-user file/folder/byte totals and largest files, kept in memory and moved by deltas from
+ * StoredObjectIndexService, so /me/stats never counts anything. Dirty totals are written back to
+ * user_storage_stats on a timer, and a nightly verifier repairs any drift against the index.
+ * A crash loses the deltas of the last {@code storage.stats.flush-interval-ms} (the index itself is
+ * unaffected); the persisted totals stay that far behind until the next verify or reconcile.
+ */
+@Service
+public class UserStorageStatsService {
+    private final UserStorageStatsRepository userStorageStatsRepository;
+    private final StoredObjectRepository storedObjectRepository;
+    private final MyUserRepository myUserRepository;
+
+    private final Map<Long, Counters> counters = new ConcurrentHashMap<>();
+
+    private static final Logger logger = LoggerFactory.getLogger(UserStorageStatsService.class);
+
+    // Matches findTop10ByOwnerIdAndTypeOrderBySizeDescNameAsc
+    private static final int LARGEST_FILES = 10;
+
+    private static final int VERIFY_ATTEMPTS = 3;
+    private static final long VERIFY_RETRY_DELAY_MS = 100;
+
+    @Autowired
+    public UserStorageStatsService(UserStorageStatsRepository userStorageStatsRepository,
+                                   StoredObjectRepository storedObjectRepository, MyUserRepository myUserRepository) {
+        this.userStorageStatsRepository = userStorageStatsRepository;
+        this.storedObjectRepository = storedObjectRepository;
+        this.myUserRepository = myUserRepository;
+    }
+
+    public UserStorageStats getStats(Long userId) {
+        Counters c = countersOf(userId);
+        synchronized (c) {
+            return new UserStorageStats(userId, c.files, c.folders, c.bytes, c.diskBytes, c.updatedAt);
+        }
+    }
+
+    public List<LargestFileDto> getLargestFiles(Long userId) {
+        Counters c = countersOf(userId);
+        long version;
+        synchronized (c) {
+            if (c.largest != null) {
+                return List.copyOf(c.largest);
+            }
+            version = c.version;
+        }
+        // Queried outside the monitor: a virtual thread blocking on JDBC inside synchronized would pin its carrier
+        List<LargestFileDto> largest = new ArrayList<>(LARGEST_FILES);
+        for (StoredObject file : storedObjectRepository.findTop10ByOwnerIdAndTypeOrderBySizeDescNameAsc(userId, StoredObjectType.FILE)) {
+            String parent = file.getParentPath();
+            largest.add(new LargestFileDto(parent.isEmpty() ? file.getName() : parent + "/" + file.getName(), file.getSize()));
+        }
+        synchronized (c) {
+            // A write that landed meanwhile may not be in the result, so only cache it if nothing changed
+            if (c.version == version) {
+                c.largest = largest;
+            }
+        }
+        return List.copyOf(largest);
+    }
+
+    // previousSize is -1 when the file did not exist before; sizes are plaintext, disk sizes what storage holds
+    public void fileWritten(Long userId, String path, long previousSize, long size, long previousDiskSize, long diskSize) {
+        Counters c = countersOf(userId);
+        afterCommit(c, () -> {
+            synchronized (c) {
+                if (previousSize < 0) {
+                    c.files++;
+                    c.bytes += size;
+                    c.diskBytes += diskSize;
+                } else {
+                    c.bytes += size - previousSize;
+                    c.diskBytes += diskSize - previousDiskSize;
+                }
+                c.touch();
+                if (c.largest != null) {
+                    boolean wasListed = c.largest.removeIf(entry -> entry.getPath().equals(path));
+                    if (wasListed && size < previousSize) {
+                        // Something outside the list may now be bigger; reload on next read
+                        c.largest = null;
+                    } else if (c.largest.size() < LARGEST_FILES || size > c.largest.get(c.largest.size() - 1).getSize()) {
+                        int at = 0;
+                        while (at < c.largest.size() && c.largest.get(at).getSize() >= size) {
+                            at++;
+                        }
+                        c.largest.add(at, new LargestFileDto(path, size));
+                        if (c.largest.size() > LARGEST_FILES) {
+                            c.largest.remove(LARGEST_FILES);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public void fileRemoved(Long userId, String path, long size, long diskSize) {
+        Counters c = countersOf(userId);
+        afterCommit(c, () -> {
+            synchronized (c) {
+                c.files--;
+                c.bytes -= size;
+                c.diskBytes -= diskSize;
+                c.touch();
+                if (c.largest != null && c.largest.stream().anyMatch(entry -> entry.getPath().equals(path))) {
+                    c.largest = null;
+                }
+            }
+        });
+    }
+
+    public void foldersAdded(Long userId, long count) {
+        if (count == 0) {
+            return;
+        }
+        Counters c = countersOf(userId);
+        afterCommit(c, () -> {
+            synchronized (c) {
+                c.folders += count;
+                c.touch();
+            }
+        });
+    }
+
+    // A folder and everything below it went away in one statement
+    public void treeRemoved(Long userId, long files, long folders, long bytes, long diskBytes) {
+        Counters c = countersOf(userId);
+        afterCommit(c, () -> {
+            synchronized (c) {
+                c.files -= files;
+                c.folders -= folders;
+                c.bytes -= bytes;
+                c.diskBytes -= diskBytes;
+                c.touch();
+                if (files > 0) {
+                    c.largest = null;
+                }
+            }
+        });
+    }
+
+    // Renames keep every total but may change paths in the largest-files list
+    public void pathsChanged(Long userId) {
+        Counters c = countersOf(userId);
+        afterCommit(c, () -> {
+            synchronized (c) {
+                c.largest = null;
+                c.version++;
+            }
+        });
+    }
+
+    // Called after the index of a user was rebuilt from disk
+    public void recompute(Long userId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    verify(userId);
+                }
+            });
+        } else {
+            verify(userId);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${storage.stats.flush-interval-ms:5000}")
+    public void flushDirty() {
+        List<UserStorageStats> dirty = new ArrayList<>();
+        counters.forEach((userId, c) -> {
+            synchronized (c) {
+                if (c.dirty) {
+                    dirty.add(new UserStorageStats(userId, c.files, c.folders, c.bytes, c.diskBytes, c.updatedAt));
+                    c.dirty = false;
+                }
+            }
+        });
+        if (dirty.isEmpty()) {
+            return;
+        }
+        try {
+            userStorageStatsRepository.saveAll(dirty);
+        } catch (RuntimeException e) {
+            logger.warn("Could not flush storage stats of {} users, retrying on next run", dirty.size(), e);
+            for (UserStorageStats stats : dirty) {
+                Counters c = counters.get(stats.getUserId());
+                if (c != null) {
+                    synchronized (c) {
+                        c.dirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    @Scheduled(cron = "${storage.stats.verify-cron:0 30 4 * * *}")
+    public void verifyAll() {
+        for (MyUser user : myUserRepository.findAll()) {
+            verify(user.getId());
+        }
+        flushDirty();
+    }
+
+    /**
+     * Replaces the totals with a count over the index. The count is only applied when no delta was pending
+     * or applied while it ran, since the count may or may not include such a write; otherwise it is retried,
+     * and given up on until the next run if the user keeps writing. Repaired totals are written back at once.
+     */
+    public void verify(Long userId) {
+        Counters c = countersOf(userId);
+        for (int attempt = 0; attempt < VERIFY_ATTEMPTS; attempt++) {
+            if (attempt > 0 && !pause(VERIFY_RETRY_DELAY_MS * attempt)) {
+                return;
+            }
+            long version;
+            synchronized (c) {
+                if (c.pending > 0) {
+                    continue;
+                }
+                version = c.version;
+            }
+            StoredObjectTotals actual = storedObjectRepository.totalsForOwner(userId);
+            UserStorageStats repaired = null;
+            synchronized (c) {
+                if (c.pending > 0 || c.version != version) {
+                    continue;
+                }
+                if (c.files != actual.getFiles() || c.folders != actual.getFolders() || c.bytes != actual.getBytes()
+                    || c.diskBytes != actual.getDiskBytes()) {
+                    logger.info("Repairing storage stats of user {}: files {} -> {}, folders {} -> {}, bytes {} -> {}, disk bytes {} -> {}",
+                        userId, c.files, actual.getFiles(), c.folders, actual.getFolders(), c.bytes, actual.getBytes(),
+                        c.diskBytes, actual.getDiskBytes());
+                    c.files = actual.getFiles();
+                    c.folders = actual.getFolders();
+                    c.bytes = actual.getBytes();
+                    c.diskBytes = actual.getDiskBytes();
+                    c.touch();
+                    // Stays dirty as well, in case a flush that read the old totals saves them after this
+                    repaired = new UserStorageStats(userId, c.files, c.folders, c.bytes, c.diskBytes, c.updatedAt);
+                }
+                c.largest = null;
+                c.version++;
+            }
+            if (repaired != null) {
+                save(repaired, c);
+            }
+            return;
+        }
+        logger.debug("Storage stats of user {} kept changing, verifying them on the next run", userId);
+    }
+
+    private static boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void save(UserStorageStats stats, Counters c) {
+        try {
+            userStorageStatsRepository.save(stats);
+        } catch (RuntimeException e) {
+            logger.warn("Could not save storage stats of user {}, retrying on next flush", stats.getUserId(), e);
+            synchronized (c) {
+                c.dirty = true;
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushDirty();
+    }
+
+    // Mutators load the counters before their own write is visible, so a first load from the index is never counted twice
+    // Not computeIfAbsent, which would run the queries of load() while holding a map bin lock
+    private Counters countersOf(Long userId) {
+        Counters c = counters.get(userId);
+        if (c != null) {
+            return c;
+        }
+        Counters loaded = load(userId);
+        c = counters.putIfAbsent(userId, loaded);
+        return c != null ? c : loaded;
+    }
+
+    // Persisted totals when there are any, otherwise one aggregate over the index
+    private Counters load(Long userId) {
+        Counters c = new Counters();
+        UserStorageStats stored = userStorageStatsRepository.findById(userId).orElse(null);
+        if (stored != null) {
+            c.files = stored.getFileCount();
+            c.folders = stored.getFolderCount();
+            c.bytes = stored.getStoredBytes();
+            c.diskBytes = stored.getDiskBytes();
+            c.updatedAt = stored.getUpdatedAt();
+        } else {
+            StoredObjectTotals totals = storedObjectRepository.totalsForOwner(userId);
+            c.files = totals.getFiles();
+            c.folders = totals.getFolders();
+            c.bytes = totals.getBytes();
+            c.diskBytes = totals.getDiskBytes();
+            c.touch();
+        }
+        return c;
+    }
+
+    // Deltas describe committed rows only; a rolled back index write must not move the counters. Until the
+    // transaction ends the delta counts as pending, so verify does not replace the totals underneath it
+    private static void afterCommit(Counters c, Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            synchronized (c) {
+                c.pending++;
+            }
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    try {
+                        if (status == STATUS_COMMITTED) {
+                            action.run();
+                        }
+                    } finally {
+                        synchronized (c) {
+                            c.pending--;
+                        }
+                    }
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    // Guarded by its own monitor
+    private static class Counters {
+        long files;
+        long folders;
+        long bytes;
+        long diskBytes;
+        Instant updatedAt;
+        boolean dirty;
+        List<LargestFileDto> largest; // null until loaded or after a change that may have reordered it
+        long version; // bumped by every change, so a list queried without the monitor can tell it went stale
+        int pending; // deltas of index writes whose transaction has not ended yet
+
+        void touch() {
+            updatedAt = Instant.now();
+            dirty = true;
+            version++;
+        }
+    }
+}
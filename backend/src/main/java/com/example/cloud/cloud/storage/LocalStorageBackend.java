@@ -0,0 +1,323 @@
+package com.example.cloud.cloud.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Objects are plain files below one root directory. Below the owner's directory keys map one-to-one onto
+ * relative paths; where the owner's directory itself sits is up to the {@link StorageLayout}.
+ */
+public class LocalStorageBackend implements StorageBackend {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Same prefix UserStorageUtil uses, so listings and reconcilers skip half-written objects
+    private static final String TEMP_PREFIX = ".upload-";
+
+    private static final int OWNER_LOCK_STRIPES = 256;
+
+    private final Path root;
+    private final StorageLayout layout;
+
+    // Owners known to be in their hashed place; migration only ever moves users there, so this never goes stale
+    private final Map<String, Path> hashedOwners = new ConcurrentHashMap<>();
+
+    // Writes below an owner hold the read side of its stripe, a migration moving the owner the write side; hashed
+    // layout only. Striped so the locks stay fixed however many owners are written to; owners sharing a stripe
+    // only make a migration skip a few more users, as it never waits for the write side
+    private final ReadWriteLock[] ownerLocks = new ReadWriteLock[OWNER_LOCK_STRIPES];
+
+    public LocalStorageBackend(Path root) {
+        this(root, StorageLayout.FLAT);
+    }
+
+    public LocalStorageBackend(Path root, StorageLayout layout) {
+        this.root = root.toAbsolutePath().normalize();
+        this.layout = layout;
+        for (int i = 0; i < ownerLocks.length; i++) {
+            ownerLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    // Whether the owner has a directory here, in either place
+    public boolean hasOwner(String owner) {
+        return Files.isDirectory(ownerDir(owner));
+    }
+
+    @Override
+    public void put(String key, ContentWriter writer) throws IOException {
+        pinOwner(key, () -> {
+            Path target = resolve(key);
+            Files.createDirectories(target.getParent());
+            Path tempFile = Files.createTempFile(target.getParent(), TEMP_PREFIX, ".part");
+            try {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE)) {
+                    writer.writeTo(out);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Error while writing " + key, e);
+                }
+                moveIntoPlace(tempFile, target, true);
+                tempFile = null;
+            } finally {
+                if (tempFile != null) {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        return Files.newInputStream(resolve(key));
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ);
+        channel.position(offset);
+        return new LimitedInputStream(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public List<StorageEntry> list(String key) throws IOException {
+        List<StorageEntry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(resolve(key))) {
+            for (Path child : children) {
+                BasicFileAttributes attrs = Files.readAttributes(child, BasicFileAttributes.class);
+                entries.add(toEntry(childKey(key, child.getFileName().toString()), attrs));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public void move(String fromKey, String toKey) throws IOException {
+        pinOwner(toKey, () -> {
+            Path source = resolve(fromKey);
+            Path target = resolve(toKey);
+            if (Files.exists(target)) {
+                throw new FileAlreadyExistsException(toKey);
+            }
+            Files.createDirectories(target.getParent());
+            moveIntoPlace(source, target, false);
+            return null;
+        });
+    }
+
+    // New content only ever arrives by renaming a new file over an object. The one in-place write is a key
+    // rotation rewrapping a header key slot (AesFileUtil#rewrap), which leaves the plaintext identical and
+    // suits every link alike, so a second hard link is as good as a copy and costs no data. Filesystems
+    // without links get a byte copy instead
+    @Override
+    public void copy(String fromKey, String toKey) throws IOException {
+        pinOwner(toKey, () -> {
+            Path source = resolve(fromKey);
+            Path target = resolve(toKey);
+            if (Files.exists(target)) {
+                throw new FileAlreadyExistsException(toKey);
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.createLink(target, source);
+                return null;
+            } catch (FileAlreadyExistsException | NoSuchFileException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // Fall through to copying the ciphertext
+            }
+            Path tempFile = Files.createTempFile(target.getParent(), TEMP_PREFIX, ".part");
+            try {
+                Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+                moveIntoPlace(tempFile, target, false);
+                tempFile = null;
+            } finally {
+                if (tempFile != null) {
+                    Files.deleteIfExists(tempFile);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        Path path = resolve(key);
+        if (!Files.isDirectory(path)) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public Optional<StorageEntry> stat(String key) throws IOException {
+        try {
+            return Optional.of(toEntry(key, Files.readAttributes(resolve(key), BasicFileAttributes.class)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void createFolder(String key) throws IOException {
+        pinOwner(key, () -> Files.createDirectories(resolve(key)));
+    }
+
+    @Override
+    public Optional<Path> localPath(String key) {
+        return Optional.of(resolve(key));
+    }
+
+    @Override
+    public List<Path> localRoots() {
+        return List.of(root);
+    }
+
+    @Override
+    public <T> T pinOwner(String key, OwnerWrite<T> write) throws IOException {
+        String owner = ownerOf(key);
+        if (layout == StorageLayout.FLAT || owner.startsWith(".")) {
+            return write.run();
+        }
+        Lock lock = ownerLock(owner).readLock();
+        lock.lock();
+        try {
+            return write.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Never waits for pinned writes: a user being written to is left for the next run instead of stalling them
+    @Override
+    public boolean migrateOwner(String owner, BooleanSupplier canMove) throws IOException {
+        if (layout != StorageLayout.HASHED) {
+            return false;
+        }
+        Lock lock = ownerLock(owner).writeLock();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        try {
+            return canMove.getAsBoolean() && StorageLayout.migrate(root, owner);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReadWriteLock ownerLock(String owner) {
+        return ownerLocks[Math.floorMod(owner.hashCode(), ownerLocks.length)];
+    }
+
+    private static String ownerOf(String key) {
+        int slash = key.indexOf('/');
+        return slash < 0 ? key : key.substring(0, slash);
+    }
+
+    private Path resolve(String key) {
+        int slash = key.indexOf('/');
+        String owner = ownerOf(key);
+        if (owner.isEmpty() || owner.equals(".") || owner.equals("..")) {
+            throw new SecurityException("Access denied: key is outside the storage root");
+        }
+        Path ownerDir = ownerDir(owner);
+        Path path = slash < 0 ? ownerDir : ownerDir.resolve(key.substring(slash + 1)).normalize();
+        if (!path.startsWith(ownerDir)) {
+            throw new SecurityException("Access denied: key is outside the storage root");
+        }
+        return path;
+    }
+
+    private Path ownerDir(String owner) {
+        // Dot-prefixed owners are service-wide trees (derivatives), kept directly under the root like .blobs
+        if (layout == StorageLayout.FLAT || owner.startsWith(".")) {
+            return root.resolve(owner);
+        }
+        Path cached = hashedOwners.get(owner);
+        if (cached != null) {
+            return cached;
+        }
+        Path hashed = StorageLayout.HASHED.ownerDir(root, owner);
+        Path flat = StorageLayout.FLAT.ownerDir(root, owner);
+        if (!Files.isDirectory(hashed) && Files.isDirectory(flat)) {
+            // Not migrated yet; checked again on every access so the move is picked up as soon as it happens
+            return flat;
+        }
+        hashedOwners.put(owner, hashed);
+        return hashed;
+    }
+
+    private static String childKey(String parentKey, String name) {
+        return parentKey.isEmpty() ? name : parentKey + "/" + name;
+    }
+
+    private static StorageEntry toEntry(String key, BasicFileAttributes attrs) {
+        String name = key.substring(key.lastIndexOf('/') + 1);
+        return new StorageEntry(key, name, attrs.isDirectory(), attrs.isDirectory() ? 0 : attrs.size(),
+            attrs.lastModifiedTime().toInstant());
+    }
+
+    private static void moveIntoPlace(Path source, Path target, boolean replace) throws IOException {
+        StandardCopyOption[] options = replace
+            ? new StandardCopyOption[]{StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING}
+            : new StandardCopyOption[]{StandardCopyOption.ATOMIC_MOVE};
+        try {
+            Files.move(source, target, options);
+        } catch (AtomicMoveNotSupportedException e) {
+            if (replace) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.move(source, target);
+            }
+        }
+    }
+}
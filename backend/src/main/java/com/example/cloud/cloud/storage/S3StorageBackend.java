@@ -0,0 +1,402 @@
+package com.example.cloud.cloud.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Objects in one bucket of an S3-compatible store (AWS, MinIO, ...). Folders are key prefixes plus an
+ * empty "key/" marker so empty folders survive. Large writes go up as a multipart upload with several
+ * parts in flight, and range reads are plain ranged GETs.
+ */
+public class S3StorageBackend implements StorageBackend, AutoCloseable {
+    // S3 rejects multipart parts below 5 MiB, except the last one
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private static final Logger logger = LoggerFactory.getLogger(S3StorageBackend.class);
+
+    private final S3Client client;
+    private final String bucket;
+    private final int partSize;
+    private final int parallelism;
+    private final ExecutorService transferPool;
+
+    // transferPool carries part uploads and folder copies; it should run parallelism tasks at once and is shut down on close
+    public S3StorageBackend(S3Client client, String bucket, int partSize, int parallelism, ExecutorService transferPool) {
+        this.client = client;
+        this.bucket = bucket;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.parallelism = parallelism;
+        this.transferPool = transferPool;
+    }
+
+    @Override
+    public void put(String key, ContentWriter writer) throws IOException {
+        write(key, null, writer);
+    }
+
+    // If-Match on the PUT or the multipart completion, so S3 itself refuses to overwrite a newer object
+    @Override
+    public boolean replaceIfVersion(String key, String version, ContentWriter writer) throws IOException {
+        return write(key, version, writer);
+    }
+
+    @Override
+    public Optional<String> version(String key) throws IOException {
+        try {
+            return Optional.of(client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build()).eTag());
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) {
+                return Optional.empty();
+            }
+            throw new IOException("Error while reading " + key, e);
+        }
+    }
+
+    private boolean write(String key, String ifMatch, ContentWriter writer) throws IOException {
+        MultipartOutputStream out = new MultipartOutputStream(key, ifMatch);
+        try {
+            writer.writeTo(out);
+            if (!out.finish()) {
+                out.abort();
+                return false;
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            out.abort();
+            throw e;
+        } catch (GeneralSecurityException e) {
+            out.abort();
+            throw new IOException("Error while writing " + key, e);
+        }
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        try {
+            return client.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
+        } catch (NoSuchKeyException e) {
+            throw new NoSuchFileException(key);
+        } catch (S3Exception e) {
+            throw new IOException("Error while reading " + key, e);
+        }
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        if (length == 0) {
+            return InputStream.nullInputStream();
+        }
+        try {
+            return client.getObject(GetObjectRequest.builder().bucket(bucket).key(key)
+                .range("bytes=" + offset + "-" + (offset + length - 1)).build());
+        } catch (NoSuchKeyException e) {
+            throw new NoSuchFileException(key);
+        } catch (S3Exception e) {
+            throw new IOException("Error while reading " + key, e);
+        }
+    }
+
+    @Override
+    public List<StorageEntry> list(String key) throws IOException {
+        String prefix = folderPrefix(key);
+        List<StorageEntry> entries = new ArrayList<>();
+        try {
+            ListObjectsV2Request request = ListObjectsV2Request.builder().bucket(bucket).prefix(prefix).delimiter("/").build();
+            for (ListObjectsV2Response page : client.listObjectsV2Paginator(request)) {
+                for (CommonPrefix folder : page.commonPrefixes()) {
+                    String folderKey = folder.prefix().substring(0, folder.prefix().length() - 1);
+                    entries.add(new StorageEntry(folderKey, nameOf(folderKey), true, 0, null));
+                }
+                for (S3Object object : page.contents()) {
+                    if (!object.key().equals(prefix)) {
+                        entries.add(new StorageEntry(object.key(), nameOf(object.key()), false, object.size(), object.lastModified()));
+                    }
+                }
+            }
+        } catch (S3Exception e) {
+            throw new IOException("Error while listing " + key, e);
+        }
+        return entries;
+    }
+
+    @Override
+    public void move(String fromKey, String toKey) throws IOException {
+        StorageEntry source = stat(fromKey).orElseThrow(() -> new NoSuchFileException(fromKey));
+        if (stat(toKey).isPresent()) {
+            throw new FileAlreadyExistsException(toKey);
+        }
+        try {
+            if (!source.isFolder()) {
+                copyObject(fromKey, toKey);
+                client.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(fromKey).build());
+                return;
+            }
+            // No rename in S3: copy every object below the folder in parallel, then drop the originals
+            String fromPrefix = folderPrefix(fromKey);
+            String toPrefix = folderPrefix(toKey);
+            List<String> keys = keysBelow(fromPrefix);
+            List<CompletableFuture<Void>> copies = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                copies.add(CompletableFuture.runAsync(() -> copyObject(key, toPrefix + key.substring(fromPrefix.length())), transferPool));
+            }
+            CompletableFuture.allOf(copies.toArray(new CompletableFuture[0])).join();
+            deleteKeys(keys);
+        } catch (CompletionException e) {
+            throw new IOException("Error while moving " + fromKey + " to " + toKey, e.getCause());
+        } catch (S3Exception e) {
+            throw new IOException("Error while moving " + fromKey + " to " + toKey, e);
+        }
+    }
+
+    // Server-side CopyObject: the ciphertext never leaves the bucket
+    @Override
+    public void copy(String fromKey, String toKey) throws IOException {
+        if (stat(toKey).isPresent()) {
+            throw new FileAlreadyExistsException(toKey);
+        }
+        try {
+            copyObject(fromKey, toKey);
+        } catch (NoSuchKeyException e) {
+            throw new NoSuchFileException(fromKey);
+        } catch (S3Exception e) {
+            throw new IOException("Error while copying " + fromKey + " to " + toKey, e);
+        }
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        try {
+            List<String> keys = keysBelow(folderPrefix(key));
+            keys.add(key);
+            deleteKeys(keys);
+        } catch (S3Exception e) {
+            throw new IOException("Error while deleting " + key, e);
+        }
+    }
+
+    @Override
+    public Optional<StorageEntry> stat(String key) throws IOException {
+        try {
+            HeadObjectResponse head = client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+            return Optional.of(new StorageEntry(key, nameOf(key), false, head.contentLength(), head.lastModified()));
+        } catch (NoSuchKeyException e) {
+            // Not an object; it is a folder if anything sits below it
+        } catch (S3Exception e) {
+            if (e.statusCode() != 404) {
+                throw new IOException("Error while reading " + key, e);
+            }
+        }
+        try {
+            ListObjectsV2Response below = client.listObjectsV2(ListObjectsV2Request.builder()
+                .bucket(bucket).prefix(folderPrefix(key)).maxKeys(1).build());
+            return below.keyCount() != null && below.keyCount() > 0
+                ? Optional.of(new StorageEntry(key, nameOf(key), true, 0, null))
+                : Optional.empty();
+        } catch (S3Exception e) {
+            throw new IOException("Error while reading " + key, e);
+        }
+    }
+
+    @Override
+    public void createFolder(String key) throws IOException {
+        try {
+            client.putObject(PutObjectRequest.builder().bucket(bucket).key(folderPrefix(key)).build(), RequestBody.empty());
+        } catch (S3Exception e) {
+            throw new IOException("Error while creating " + key, e);
+        }
+    }
+
+    @Override
+    public Optional<Path> localPath(String key) {
+        return Optional.empty();
+    }
+
+    @Override
+    public List<Path> localRoots() {
+        return List.of();
+    }
+
+    @Override
+    public void close() {
+        transferPool.shutdown();
+        client.close();
+    }
+
+    // Single-request copy, which S3 allows up to 5 GiB; uploads here are far below that
+    private void copyObject(String fromKey, String toKey) {
+        client.copyObject(CopyObjectRequest.builder()
+            .sourceBucket(bucket).sourceKey(fromKey)
+            .destinationBucket(bucket).destinationKey(toKey)
+            .build());
+    }
+
+    private List<String> keysBelow(String prefix) {
+        List<String> keys = new ArrayList<>();
+        ListObjectsV2Request request = ListObjectsV2Request.builder().bucket(bucket).prefix(prefix).build();
+        for (ListObjectsV2Response page : client.listObjectsV2Paginator(request)) {
+            for (S3Object object : page.contents()) {
+                keys.add(object.key());
+            }
+        }
+        return keys;
+    }
+
+    private void deleteKeys(List<String> keys) {
+        for (int from = 0; from < keys.size(); from += DELETE_BATCH_SIZE) {
+            List<ObjectIdentifier> batch = keys.subList(from, Math.min(from + DELETE_BATCH_SIZE, keys.size())).stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .toList();
+            client.deleteObjects(DeleteObjectsRequest.builder().bucket(bucket)
+                .delete(Delete.builder().objects(batch).quiet(true).build())
+                .build());
+        }
+    }
+
+    private static String folderPrefix(String key) {
+        return key.isEmpty() ? "" : key + "/";
+    }
+
+    private static String nameOf(String key) {
+        return key.substring(key.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Buffers one part at a time. Small objects become a single PUT on finish; anything larger starts a
+     * multipart upload and hands full parts to the transfer pool, with at most {@code parallelism}
+     * parts buffered or in flight so memory stays bounded.
+     */
+    private class MultipartOutputStream extends OutputStream {
+        private final String key;
+        private final String ifMatch;
+        private final Semaphore inFlight = new Semaphore(parallelism);
+        private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        private byte[] buffer = new byte[partSize];
+        private int count;
+        private String uploadId;
+
+        MultipartOutputStream(String key, String ifMatch) {
+            this.key = key;
+            this.ifMatch = ifMatch;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushPart();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    flushPart();
+                }
+                int n = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, n);
+                count += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // False if the object no longer matched ifMatch; the upload is then left for abort()
+        boolean finish() throws IOException {
+            try {
+                if (uploadId == null) {
+                    client.putObject(PutObjectRequest.builder().bucket(bucket).key(key).ifMatch(ifMatch).build(),
+                        RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, count), count));
+                    return true;
+                }
+                if (count > 0) {
+                    flushPart();
+                }
+                List<CompletedPart> completed = new ArrayList<>(parts.size());
+                for (CompletableFuture<CompletedPart> part : parts) {
+                    completed.add(part.join());
+                }
+                completed.sort(Comparator.comparing(CompletedPart::partNumber));
+                client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket).key(key).uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .ifMatch(ifMatch)
+                    .build());
+                return true;
+            } catch (CompletionException e) {
+                throw new IOException("Error while uploading " + key, e.getCause());
+            } catch (S3Exception e) {
+                // 412: replaced since; 404: deleted since; 409: another conditional write got there first
+                if (ifMatch != null && (e.statusCode() == 412 || e.statusCode() == 404 || e.statusCode() == 409)) {
+                    return false;
+                }
+                throw new IOException("Error while uploading " + key, e);
+            }
+        }
+
+        void abort() {
+            if (uploadId == null) {
+                return;
+            }
+            parts.forEach(part -> part.cancel(false));
+            try {
+                client.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build());
+            } catch (S3Exception e) {
+                logger.warn("Could not abort multipart upload {} of {}", uploadId, key, e);
+            }
+        }
+
+        private void flushPart() throws IOException {
+            try {
+                if (uploadId == null) {
+                    uploadId = client.createMultipartUpload(CreateMultipartUploadRequest.builder().bucket(bucket).key(key).build())
+                        .uploadId();
+                }
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading " + key, e);
+            } catch (S3Exception e) {
+                throw new IOException("Error while uploading " + key, e);
+            }
+            int partNumber = parts.size() + 1;
+            byte[] part = buffer;
+            int length = count;
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    String eTag = client.uploadPart(UploadPartRequest.builder()
+                            .bucket(bucket).key(key).uploadId(uploadId).partNumber(partNumber).build(),
+                        RequestBody.fromInputStream(new ByteArrayInputStream(part, 0, length), length)).eTag();
+                    return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+                } finally {
+                    inFlight.release();
+                }
+            }, transferPool));
+            buffer = new byte[partSize];
+            count = 0;
+        }
+    }
+}
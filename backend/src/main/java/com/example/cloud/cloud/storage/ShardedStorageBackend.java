@@ -0,0 +1,136 @@
+package com.example.cloud.cloud.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Spreads users over several local volumes. Every key of a user lives on the same volume, so moves
+ * stay single renames and hard links keep working. The volume is picked by rendezvous hashing on the
+ * user id, so adding a volume only moves the users that now hash to it. A user whose directory already
+ * exists somewhere stays where it is.
+ */
+public class ShardedStorageBackend implements StorageBackend {
+    private final List<LocalStorageBackend> volumes;
+    private final Map<String, LocalStorageBackend> placement = new ConcurrentHashMap<>();
+
+    public ShardedStorageBackend(List<Path> roots) {
+        this(roots, StorageLayout.FLAT);
+    }
+
+    public ShardedStorageBackend(List<Path> roots, StorageLayout layout) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one storage volume is required");
+        }
+        this.volumes = roots.stream().map(root -> new LocalStorageBackend(root, layout)).toList();
+    }
+
+    @Override
+    public void put(String key, ContentWriter writer) throws IOException {
+        volumeFor(key).put(key, writer);
+    }
+
+    @Override
+    public InputStream get(String key) throws IOException {
+        return volumeFor(key).get(key);
+    }
+
+    @Override
+    public InputStream getRange(String key, long offset, long length) throws IOException {
+        return volumeFor(key).getRange(key, offset, length);
+    }
+
+    @Override
+    public List<StorageEntry> list(String key) throws IOException {
+        return volumeFor(key).list(key);
+    }
+
+    @Override
+    public void move(String fromKey, String toKey) throws IOException {
+        LocalStorageBackend volume = volumeFor(fromKey);
+        if (volume != volumeFor(toKey)) {
+            throw new IOException("Cannot move " + fromKey + " to " + toKey + " across storage volumes");
+        }
+        volume.move(fromKey, toKey);
+    }
+
+    @Override
+    public void copy(String fromKey, String toKey) throws IOException {
+        LocalStorageBackend volume = volumeFor(fromKey);
+        if (volume != volumeFor(toKey)) {
+            throw new IOException("Cannot copy " + fromKey + " to " + toKey + " across storage volumes");
+        }
+        volume.copy(fromKey, toKey);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        volumeFor(key).delete(key);
+    }
+
+    @Override
+    public Optional<StorageEntry> stat(String key) throws IOException {
+        return volumeFor(key).stat(key);
+    }
+
+    @Override
+    public void createFolder(String key) throws IOException {
+        volumeFor(key).createFolder(key);
+    }
+
+    @Override
+    public Optional<Path> localPath(String key) {
+        return volumeFor(key).localPath(key);
+    }
+
+    @Override
+    public List<Path> localRoots() {
+        return volumes.stream().map(LocalStorageBackend::getRoot).toList();
+    }
+
+    @Override
+    public <T> T pinOwner(String key, OwnerWrite<T> write) throws IOException {
+        return volumeFor(key).pinOwner(key, write);
+    }
+
+    @Override
+    public boolean migrateOwner(String owner, BooleanSupplier canMove) throws IOException {
+        return volumeFor(owner).migrateOwner(owner, canMove);
+    }
+
+    private LocalStorageBackend volumeFor(String key) {
+        int slash = key.indexOf('/');
+        String owner = slash < 0 ? key : key.substring(0, slash);
+        return placement.computeIfAbsent(owner, this::place);
+    }
+
+    private LocalStorageBackend place(String owner) {
+        for (LocalStorageBackend volume : volumes) {
+            if (volume.hasOwner(owner)) {
+                return volume;
+            }
+        }
+        LocalStorageBackend best = volumes.get(0);
+        long bestScore = Long.MIN_VALUE;
+        for (LocalStorageBackend volume : volumes) {
+            long score = mix(owner.hashCode() * 31L + volume.getRoot().toString().hashCode());
+            if (score > bestScore) {
+                bestScore = score;
+                best = volume;
+            }
+        }
+        return best;
+    }
+
+    // 64-bit finalizer from SplitMix64, spreads neighbouring ids evenly
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.cloud.cloud.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Where encrypted objects live. Keys are "/"-separated, starting with the owner's id
+ * ({@code "42/photos/cat.jpg"}); a folder is a key other keys sit below. Implementations store
+ * ciphertext as-is and never see plaintext.
+ */
+public interface StorageBackend {
+
+    @FunctionalInterface
+    interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException, GeneralSecurityException;
+    }
+
+    @FunctionalInterface
+    interface OwnerWrite<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Stores what {@code writer} produces under {@code key}, replacing any existing object. The object
+     * only becomes visible if the writer returns normally; a failed writer leaves nothing behind.
+     */
+    void put(String key, ContentWriter writer) throws IOException;
+
+    /**
+     * Like {@link #put}, but only replaces the object while it is still at {@code version} (see
+     * {@link #version}); false, with nothing stored, if it was replaced or deleted since. Remote backends only.
+     */
+    default boolean replaceIfVersion(String key, String version, ContentWriter writer) throws IOException {
+        throw new UnsupportedOperationException("Conditional writes are not supported by " + getClass().getSimpleName());
+    }
+
+    // Names the current content of a file key (an ETag), for replaceIfVersion; empty if there is no such object
+    default Optional<String> version(String key) throws IOException {
+        throw new UnsupportedOperationException("Object versions are not supported by " + getClass().getSimpleName());
+    }
+
+    InputStream get(String key) throws IOException;
+
+    // Exactly {@code length} bytes starting at {@code offset}, fetched without reading the rest of the object
+    InputStream getRange(String key, long offset, long length) throws IOException;
+
+    // Direct children of a folder key, in no particular order
+    List<StorageEntry> list(String key) throws IOException;
+
+    // Moves a file, or a folder with everything below it; the target must not exist
+    void move(String fromKey, String toKey) throws IOException;
+
+    /**
+     * Copies a single file's stored bytes as they are, without decrypting them, in the cheapest way the
+     * backend has (a hard link, a server-side copy); the target must not exist.
+     */
+    void copy(String fromKey, String toKey) throws IOException;
+
+    // Deletes a file, or a folder with everything below it; missing keys are ignored
+    void delete(String key) throws IOException;
+
+    Optional<StorageEntry> stat(String key) throws IOException;
+
+    void createFolder(String key) throws IOException;
+
+    /**
+     * The file behind a key when objects are plain files on a local filesystem, for the features that
+     * need one (hard-link dedupe, positional chunk writes, tombstone deletes). Empty for remote backends.
+     */
+    Optional<Path> localPath(String key);
+
+    // Every local root objects may be stored under; empty for remote backends
+    List<Path> localRoots();
+
+    /**
+     * Runs {@code write} while the owner of {@code key} stays where it is, for writers that take a
+     * {@link #localPath} and create files below it themselves. Backends that never move owners just run it.
+     */
+    default <T> T pinOwner(String key, OwnerWrite<T> write) throws IOException {
+        return write.run();
+    }
+
+    /**
+     * Moves an owner from the flat to the hashed layout ({@link StorageLayout#migrate}) if no write is pinning
+     * it, checking {@code canMove} once none can start. False if the owner was not moved.
+     */
+    default boolean migrateOwner(String owner, BooleanSupplier canMove) throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.cloud.cloud.storage;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+// What stat and list report about one key; size is the stored (ciphertext) size, 0 for folders
+@Getter
+@AllArgsConstructor
+public class StorageEntry {
+    private final String key;
+    private final String name;
+    private final boolean folder;
+    private final long size;
+    private final Instant lastModified;
+}
@@ -0,0 +1,96 @@
+package com.example.cloud.cloud.storage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Where a user's directory sits below a local storage root. FLAT keeps every user directly under the root
+ * ({@code <root>/42}); HASHED fans users out over two levels of two hex characters of a hash of their id
+ * ({@code <root>/users/a1/fe/42}), so no directory holds more than a few dozen users even with millions of
+ * them. The buckets sit in their own directory because a two-digit bucket could otherwise be taken for a
+ * flat user. A HASHED backend still finds users left in the flat spot until {@link #migrate} moves them.
+ */
+public enum StorageLayout {
+    FLAT,
+    HASHED;
+
+    // User ids are numeric, so this never clashes with a flat user directory
+    private static final String HASHED_DIR_NAME = "users";
+
+    public Path ownerDir(Path root, String owner) {
+        if (this == FLAT) {
+            return root.resolve(owner);
+        }
+        String hash = HexFormat.of().formatHex(sha256(owner));
+        return root.resolve(HASHED_DIR_NAME).resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(owner);
+    }
+
+    /**
+     * Renames a flat user directory to its hashed place and leaves a symlink behind, so requests that
+     * resolved the old path just before keep working until the link is removed. If the hashed place exists
+     * already (an interrupted run), the flat tree is merged into it instead. Returns false if the user is
+     * not in the flat spot (already migrated, or a link left by an earlier run). Callers keep writes to the
+     * user out until it returns; see {@link LocalStorageBackend#migrateOwner}.
+     */
+    public static boolean migrate(Path root, String owner) throws IOException {
+        Path flat = FLAT.ownerDir(root, owner);
+        if (Files.isSymbolicLink(flat) || !Files.isDirectory(flat)) {
+            return false;
+        }
+        Path hashed = HASHED.ownerDir(root, owner);
+        Files.createDirectories(hashed.getParent());
+        if (Files.exists(hashed, LinkOption.NOFOLLOW_LINKS)) {
+            merge(flat, hashed);
+        } else {
+            try {
+                // Same filesystem, so this is one rename however large the tree is
+                Files.move(flat, hashed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                merge(flat, hashed);
+            }
+        }
+        Files.createSymbolicLink(flat, flat.getParent().relativize(hashed));
+        return true;
+    }
+
+    // Moves everything below source into target, the newer file winning where both have one, then removes source
+    private static void merge(Path source, Path target) throws IOException {
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(source)) {
+            for (Path child : children) {
+                Path other = target.resolve(child.getFileName().toString());
+                boolean childIsDir = Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS);
+                if (!Files.exists(other, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.move(child, other, StandardCopyOption.ATOMIC_MOVE);
+                } else if (childIsDir != Files.isDirectory(other, LinkOption.NOFOLLOW_LINKS)) {
+                    // Nothing sensible to pick; the flat tree stays and the migration reports a failure
+                    throw new FileAlreadyExistsException(other.toString(), child.toString(), "file and folder of the same name");
+                } else if (childIsDir) {
+                    merge(child, other);
+                } else if (Files.getLastModifiedTime(child).compareTo(Files.getLastModifiedTime(other)) > 0) {
+                    Files.move(child, other, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.delete(child);
+                }
+            }
+        }
+        Files.delete(source);
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,47 +1,1160 @@
 package com.example.cloud.cloud.util;
 
+import com.example.cloud.cloud.model.CompressionCodec;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
 
+/**
+ * Streaming file encryption.
+ *
+ * Files written by this class start with a small header:
+ * <pre>
+ *   magic "SQTU" (4 bytes) | version (1 byte) | IV (16 bytes) | ciphertext...
+ * </pre>
+ * Version 1 uses AES/CTR/NoPadding, so ciphertext and plaintext have the same length and any
+ * plaintext offset maps to a known cipher block. Files without the magic are treated as the legacy
+ * format (whole-file AES/ECB/PKCS5Padding); ECB is block-addressable too, so both formats support
+ * {@link #plainLength(Path)} and {@link #decryptRange(Path, long, long, OutputStream)}.
+ *
+ * Version 2 is version 1 over compressed plaintext. Its header adds the codec and the plaintext length:
+ * <pre>
+ *   magic "SQTU" | 2 | IV (16 bytes) | codec id (1 byte) | plaintext length (8 bytes) | ciphertext...
+ * </pre>
+ * The length comes from the header, but a range has to be decompressed from the start of the file.
+ *
+ * Version 3 is envelope encryption, the format new files get. Each file has a random AES-256 data key,
+ * wrapped with AES-GCM by a master key named in the header, and the (optionally compressed) payload is
+ * AES-GCM in segments of {@link #SEGMENT_SIZE} plaintext bytes:
+ * <pre>
+ *   magic "SQTU" | 3 | codec id (1 byte) | plaintext length (8 bytes) | nonce prefix (7 bytes)
+ *     | active slot (1 byte) | key slot 0 | key slot 1 | segments...
+ *   key slot = master key id (16 bytes, zero-padded) | nonce (12 bytes) | wrapped data key (32 bytes) | tag (16 bytes)
+ *   segment  = ciphertext | tag (16 bytes), nonce = prefix | segment index (4 bytes) | last-segment flag (1 byte)
+ * </pre>
+ * Every segment authenticates the header up to the nonce prefix, and the flag makes a file cut at a
+ * segment boundary fail to decrypt. The plaintext length is only recorded for compressed files; otherwise
+ * it follows from the size. Any segment can be decrypted on its own, so ranges and parallel chunk writes
+ * work as with version 1. Rotating the master key rewraps the data key into the inactive slot and then
+ * flips the active byte ({@link #rewrap(Path)}), so the payload is never rewritten.
+ */
 @Component
 public class AesFileUtil {
 
+    static final byte[] MAGIC = {'S', 'Q', 'T', 'U'};
+    static final byte VERSION_CTR = 1;
+    static final byte VERSION_CTR_COMPRESSED = 2;
+    static final int IV_LENGTH = 16;
+    private static final int BLOCK_SIZE = 16;
+    public static final int HEADER_LENGTH = MAGIC.length + 1 + IV_LENGTH;
+    public static final int COMPRESSED_HEADER_LENGTH = HEADER_LENGTH + 1 + Long.BYTES;
+
+    static final byte VERSION_GCM = 3;
+    // Plaintext bytes per GCM segment; large enough that the AES-NI and carry-less multiply work dwarfs the per-segment setup
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int TAG_LENGTH = 16;
+    private static final int NONCE_LENGTH = 12;
+    private static final int NONCE_PREFIX_LENGTH = 7;
+    private static final int KEY_ID_LENGTH = 16;
+    private static final int DATA_KEY_LENGTH = 32;
+    private static final int KEY_SLOT_LENGTH = KEY_ID_LENGTH + NONCE_LENGTH + DATA_KEY_LENGTH + TAG_LENGTH;
+    // Magic, version, codec, plaintext length and nonce prefix: the part of the header every segment authenticates
+    private static final int GCM_FIXED_LENGTH = MAGIC.length + 1 + 1 + Long.BYTES + NONCE_PREFIX_LENGTH;
+    private static final int ACTIVE_SLOT_OFFSET = GCM_FIXED_LENGTH;
+    private static final int KEY_SLOTS_OFFSET = ACTIVE_SLOT_OFFSET + 1;
+    public static final int GCM_HEADER_LENGTH = KEY_SLOTS_OFFSET + 2 * KEY_SLOT_LENGTH;
+    private static final long MAX_SEGMENTS = 1L << 32;
+
+    static final String DEFAULT_KEY_ID = "default";
+
+    // Every transfer works through buffers of this size, whatever the file size
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String CTR_TRANSFORMATION = "AES/CTR/NoPadding";
+    private static final String LEGACY_TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final String LEGACY_BLOCK_TRANSFORMATION = "AES/ECB/NoPadding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+
+    public enum RewrapResult { REWRAPPED, CURRENT, NOT_ENVELOPED }
+
+    private final SecureRandom secureRandom = new SecureRandom();
+
     @Value("${aes.secret}")
     private String SECRET;
 
-    private SecretKey getSecretKey() throws Exception {
+    // Master keys as comma-separated id:base64 pairs; "default" is derived from aes.secret unless listed
+    @Value("${aes.master-keys:}")
+    private String masterKeySpec;
+
+    // Wraps the data keys of new files, and is the key a rotation moves existing files to
+    @Value("${aes.master-key-id:default}")
+    private String masterKeyId = DEFAULT_KEY_ID;
+
+    // Off writes versions 1 and 2 again; files in every version stay readable either way
+    @Value("${aes.envelope.enabled:true}")
+    private boolean envelope = true;
+
+    private volatile KeyRing keyRing;
+
+    // Version 1 and 2 files and legacy files are encrypted with this directly
+    private SecretKey getSecretKey() {
         byte[] key = SECRET.getBytes();
         return new SecretKeySpec(key, 0, 16, "AES");
     }
 
-    public void encryptFile(File inputFile, File outputFile) throws Exception {
-        SecretKey secretKey = getSecretKey();
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+    // Fails startup on a malformed key list rather than on the first upload
+    @PostConstruct
+    void checkMasterKeys() {
+        keyRing();
+    }
+
+    public String activeMasterKeyId() {
+        return keyRing().activeId();
+    }
 
-        try (FileInputStream fis = new FileInputStream(inputFile);
-             FileOutputStream fos = new FileOutputStream(outputFile)) {
-            byte[] inputBytes = fis.readAllBytes();
-            byte[] outputBytes = cipher.doFinal(inputBytes);
-            fos.write(outputBytes);
+    public void encryptFile(File inputFile, File outputFile) throws Exception {
+        try (InputStream in = new FileInputStream(inputFile);
+             OutputStream out = new FileOutputStream(outputFile)) {
+            encrypt(in, out);
         }
     }
 
     public void decryptFile(File inputFile, File outputFile) throws Exception {
-        SecretKey secretKey = getSecretKey();
-        Cipher cipher = Cipher.getInstance("AES");
-        cipher.init(Cipher.DECRYPT_MODE, secretKey);
+        try (InputStream in = new FileInputStream(inputFile);
+             OutputStream out = new FileOutputStream(outputFile)) {
+            decrypt(in, out);
+        }
+    }
+
+    /**
+     * Encrypts {@code in} into {@code out} in the current format and returns the number of bytes written.
+     * Neither stream is closed.
+     */
+    public long encrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        if (envelope) {
+            return encryptSegments(in, out, CompressionCodec.NONE, 0);
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance(CTR_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(), new IvParameterSpec(iv));
+
+        out.write(MAGIC);
+        out.write(VERSION_CTR);
+        out.write(iv);
+        return HEADER_LENGTH + pump(cipher, in, out);
+    }
+
+    /**
+     * Compresses {@code in} with {@code codec} and encrypts the result into {@code out} (version 3, or 2
+     * with envelopes off), or falls back to {@link #encrypt(InputStream, OutputStream)} for {@link CompressionCodec#NONE}.
+     * {@code in} must hold exactly {@code plainLength} bytes, which the header records. Returns the
+     * number of bytes written; neither stream is closed.
+     */
+    public long encrypt(InputStream in, OutputStream out, CompressionCodec codec, long plainLength)
+        throws IOException, GeneralSecurityException {
+        if (codec == CompressionCodec.NONE) {
+            return encrypt(in, out);
+        }
+        if (envelope) {
+            return encryptSegments(in, out, codec, plainLength);
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+
+        Cipher cipher = Cipher.getInstance(CTR_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(), new IvParameterSpec(iv));
+
+        ByteBuffer header = ByteBuffer.allocate(COMPRESSED_HEADER_LENGTH);
+        header.put(MAGIC).put(VERSION_CTR_COMPRESSED).put(iv).put((byte) codec.getId()).putLong(plainLength);
+        out.write(header.array());
+
+        EncryptingOutputStream sink = new EncryptingOutputStream(cipher, out);
+        long read = 0;
+        try (OutputStream compressor = CompressionUtil.compress(codec, sink)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                compressor.write(buffer, 0, n);
+                read += n;
+            }
+        }
+        if (read != plainLength) {
+            throw new IOException("Expected " + plainLength + " bytes but read " + read);
+        }
+        return COMPRESSED_HEADER_LENGTH + sink.written;
+    }
+
+    private long encryptSegments(InputStream in, OutputStream out, CompressionCodec codec, long plainLength)
+        throws IOException, GeneralSecurityException {
+        byte[] header = new byte[GCM_HEADER_LENGTH];
+        Envelope envelope = newEnvelope(codec, plainLength, header);
+        out.write(header);
+
+        SegmentWriter sink = new SegmentWriter(envelope, out);
+        if (codec == CompressionCodec.NONE) {
+            sink.transferFrom(in);
+            sink.close();
+            return GCM_HEADER_LENGTH + sink.written;
+        }
+        long read = 0;
+        try (OutputStream compressor = CompressionUtil.compress(codec, sink)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                compressor.write(buffer, 0, n);
+                read += n;
+            }
+        }
+        if (read != plainLength) {
+            throw new IOException("Expected " + plainLength + " bytes but read " + read);
+        }
+        return GCM_HEADER_LENGTH + sink.written;
+    }
+
+    /**
+     * Decrypts {@code in} into {@code out}, sniffing the header to pick the format. Neither stream is closed.
+     */
+    public void decrypt(InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        PushbackInputStream pin = new PushbackInputStream(in, MAGIC.length + 1);
+        byte[] head = new byte[MAGIC.length + 1];
+        int read = pin.readNBytes(head, 0, head.length);
+
+        Cipher cipher;
+        if (read == head.length && Arrays.equals(head, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            byte version = head[MAGIC.length];
+            if (version == VERSION_GCM) {
+                decryptSegments(pin, head, out);
+                return;
+            }
+            if (version != VERSION_CTR && version != VERSION_CTR_COMPRESSED) {
+                throw new IOException("Unsupported encrypted file version: " + version);
+            }
+            byte[] iv = pin.readNBytes(IV_LENGTH);
+            if (iv.length != IV_LENGTH) {
+                throw new IOException("Truncated encrypted file header");
+            }
+            cipher = Cipher.getInstance(CTR_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new IvParameterSpec(iv));
+            if (version == VERSION_CTR_COMPRESSED) {
+                byte[] rest = pin.readNBytes(1 + Long.BYTES);
+                if (rest.length != 1 + Long.BYTES) {
+                    throw new IOException("Truncated encrypted file header");
+                }
+                try (InputStream plain = CompressionUtil.decompress(codecOf(rest[0]),
+                    new DecryptingInputStream(CompressionUtil.keepOpen(pin), cipher))) {
+                    plain.transferTo(out);
+                }
+                return;
+            }
+        } else {
+            // Legacy file: no header, the sniffed bytes are already ciphertext
+            pin.unread(head, 0, read);
+            cipher = Cipher.getInstance(LEGACY_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getSecretKey());
+        }
+        pump(cipher, pin, out);
+    }
+
+    private void decryptSegments(InputStream in, byte[] head, OutputStream out) throws IOException, GeneralSecurityException {
+        byte[] header = Arrays.copyOf(head, GCM_HEADER_LENGTH);
+        int rest = GCM_HEADER_LENGTH - head.length;
+        if (in.readNBytes(header, head.length, rest) != rest) {
+            throw new IOException("Truncated encrypted file header");
+        }
+        Envelope envelope = openEnvelope(header);
+        CompressionCodec codec = codecOf(header[MAGIC.length + 1]);
+        if (codec == CompressionCodec.NONE) {
+            new SegmentReader(in, envelope).transferTo(out);
+            return;
+        }
+        try (InputStream plain = CompressionUtil.decompress(codec, new SegmentReader(CompressionUtil.keepOpen(in), envelope))) {
+            plain.transferTo(out);
+        }
+    }
+
+    /**
+     * Builds a fresh header (with a new random IV, or a new data key) for a file that is written piece by
+     * piece through {@link #encryptAt(byte[], long, long, InputStream, long, FileChannel)}.
+     */
+    public byte[] newHeader() {
+        if (envelope) {
+            byte[] header = new byte[GCM_HEADER_LENGTH];
+            try {
+                newEnvelope(CompressionCodec.NONE, 0, header);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not create a data key", e);
+            }
+            return header;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = VERSION_CTR;
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        System.arraycopy(iv, 0, header, MAGIC.length + 1, IV_LENGTH);
+        return header;
+    }
+
+    // Bytes a file of plainLength bytes written through encryptAt with this header takes on storage
+    public long storedLength(byte[] header, long plainLength) {
+        return header[MAGIC.length] == VERSION_GCM
+            ? GCM_HEADER_LENGTH + plainLength + segmentCount(plainLength) * TAG_LENGTH
+            : HEADER_LENGTH + plainLength;
+    }
+
+    /**
+     * Encrypts exactly {@code length} bytes of {@code in} as the plaintext starting at {@code plainOffset}
+     * of a file of {@code totalLength} bytes and writes them at the matching position of {@code channel}.
+     * Pieces can be written in any order and in parallel; {@code plainOffset} must be a multiple of the
+     * cipher block size, or of {@link #SEGMENT_SIZE} for version 3 headers.
+     */
+    public void encryptAt(byte[] header, long totalLength, long plainOffset, InputStream in, long length, FileChannel channel)
+        throws IOException, GeneralSecurityException {
+        if (header[MAGIC.length] == VERSION_GCM) {
+            encryptSegmentsAt(header, totalLength, plainOffset, in, length, channel);
+            return;
+        }
+        if (plainOffset % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("Offset must be a multiple of " + BLOCK_SIZE);
+        }
+        byte[] iv = Arrays.copyOfRange(header, MAGIC.length + 1, HEADER_LENGTH);
+        Cipher cipher = Cipher.getInstance(CTR_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, getSecretKey(), new IvParameterSpec(counterAt(iv, plainOffset / BLOCK_SIZE)));
+
+        byte[] inBuffer = new byte[BUFFER_SIZE];
+        byte[] outBuffer = new byte[BUFFER_SIZE + 2 * BLOCK_SIZE];
+        long position = HEADER_LENGTH + plainOffset;
+        long remaining = length;
+        while (remaining > 0) {
+            int n = in.read(inBuffer, 0, (int) Math.min(inBuffer.length, remaining));
+            if (n == -1) {
+                throw new EOFException("Expected " + length + " bytes but the stream ended early");
+            }
+            int produced = cipher.update(inBuffer, 0, n, outBuffer, 0);
+            ByteBuffer buffer = ByteBuffer.wrap(outBuffer, 0, produced);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            remaining -= n;
+        }
+    }
+
+    private void encryptSegmentsAt(byte[] header, long totalLength, long plainOffset, InputStream in, long length,
+                                   FileChannel channel) throws IOException, GeneralSecurityException {
+        if (plainOffset % SEGMENT_SIZE != 0) {
+            throw new IllegalArgumentException("Offset must be a multiple of " + SEGMENT_SIZE);
+        }
+        Envelope envelope = openEnvelope(header);
+        long lastSegment = segmentCount(totalLength) - 1;
+        Cipher cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        byte[] segment = new byte[SEGMENT_SIZE];
+        byte[] sealed = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        long index = plainOffset / SEGMENT_SIZE;
+        long remaining = length;
+        // An empty file still gets its one (empty) last segment
+        do {
+            int n = (int) Math.min(SEGMENT_SIZE, remaining);
+            if (in.readNBytes(segment, 0, n) != n) {
+                throw new EOFException("Expected " + length + " bytes but the stream ended early");
+            }
+            int produced = sealSegment(cipher, envelope, index, index == lastSegment, segment, n, sealed);
+            ByteBuffer buffer = ByteBuffer.wrap(sealed, 0, produced);
+            long position = GCM_HEADER_LENGTH + index * (SEGMENT_SIZE + TAG_LENGTH);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            remaining -= n;
+            index++;
+        } while (remaining > 0);
+    }
+
+    /**
+     * Reads {@code length} stored bytes starting at {@code position}, e.g. from a local file or a ranged
+     * GET against object storage. The returned stream may hold more than asked for; it is always closed.
+     */
+    @FunctionalInterface
+    public interface RangeReader {
+        InputStream open(long position, long length) throws IOException;
+    }
+
+    /**
+     * Plaintext length of an encrypted file, worked out from the header (or the last legacy block)
+     * without decrypting the payload.
+     */
+    public long plainLength(Path file) throws IOException, GeneralSecurityException {
+        return plainLength(Files.size(file), fileReader(file));
+    }
+
+    /**
+     * Same as {@link #plainLength(Path)} for ciphertext of {@code size} bytes reachable through {@code reader}.
+     */
+    public long plainLength(long size, RangeReader reader) throws IOException, GeneralSecurityException {
+        Header header = readHeader(size, reader);
+        if (header != null) {
+            return header.plainLength();
+        }
+        if (size == 0 || size % BLOCK_SIZE != 0) {
+            throw new IOException("Corrupted encrypted file");
+        }
+        // Legacy: the PKCS5 padding length sits in the last byte of the last block
+        byte[] lastBlock = readExactly(reader, size - BLOCK_SIZE, BLOCK_SIZE);
+        Cipher cipher = Cipher.getInstance(LEGACY_BLOCK_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getSecretKey());
+        byte[] plainBlock = cipher.doFinal(lastBlock);
+        int padding = plainBlock[BLOCK_SIZE - 1] & 0xff;
+        if (padding < 1 || padding > BLOCK_SIZE) {
+            throw new IOException("Corrupted encrypted file");
+        }
+        return size - padding;
+    }
+
+    /**
+     * Decrypts {@code length} plaintext bytes starting at {@code offset} into {@code out}.
+     * Only the cipher blocks covering the range are read, except for compressed files, which are
+     * decompressed from the start. The caller validates the range against {@link #plainLength(Path)}.
+     */
+    public void decryptRange(Path file, long offset, long length, OutputStream out) throws IOException, GeneralSecurityException {
+        decryptRange(Files.size(file), fileReader(file), offset, length, out);
+    }
+
+    /**
+     * Same as {@link #decryptRange(Path, long, long, OutputStream)} for ciphertext of {@code size} bytes
+     * reachable through {@code reader}; only the covering blocks are requested from it.
+     */
+    public void decryptRange(long size, RangeReader reader, long offset, long length, OutputStream out)
+        throws IOException, GeneralSecurityException {
+        long blockIndex = offset / BLOCK_SIZE;
+        int skip = (int) (offset % BLOCK_SIZE);
+
+        Header header = readHeader(size, reader);
+        if (header != null && header.codec() != CompressionCodec.NONE) {
+            decryptCompressedRange(size, reader, header, offset, length, out);
+            return;
+        }
+        if (header != null && header.envelope() != null) {
+            decryptSegmentRange(size, reader, header, offset, length, out);
+            return;
+        }
+        Cipher cipher;
+        long dataStart;
+        if (header != null) {
+            cipher = Cipher.getInstance(CTR_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new IvParameterSpec(counterAt(header.iv(), blockIndex)));
+            dataStart = HEADER_LENGTH;
+        } else {
+            // Legacy padding is never emitted because the caller stops at the plaintext length
+            cipher = Cipher.getInstance(LEGACY_BLOCK_TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getSecretKey());
+            dataStart = 0;
+        }
+        long position = dataStart + blockIndex * BLOCK_SIZE;
+        long blocksNeeded = (skip + length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long cipherLength = Math.min(size - position, blocksNeeded * BLOCK_SIZE);
+
+        try (InputStream in = reader.open(position, cipherLength)) {
+            byte[] inBuffer = new byte[BUFFER_SIZE];
+            byte[] outBuffer = new byte[BUFFER_SIZE + 2 * BLOCK_SIZE];
+            long remaining = length;
+            int n;
+            while (remaining > 0 && (n = in.read(inBuffer)) != -1) {
+                int produced = cipher.update(inBuffer, 0, n, outBuffer, 0);
+                int from = Math.min(skip, produced);
+                skip -= from;
+                int count = (int) Math.min(produced - from, remaining);
+                out.write(outBuffer, from, count);
+                remaining -= count;
+            }
+            if (remaining > 0) {
+                throw new EOFException("Encrypted file is shorter than the requested range");
+            }
+        }
+    }
+
+    // Only the segments covering the range are read and opened
+    private void decryptSegmentRange(long size, RangeReader reader, Header header, long offset, long length, OutputStream out)
+        throws IOException, GeneralSecurityException {
+        if (length == 0) {
+            return;
+        }
+        long firstSegment = offset / SEGMENT_SIZE;
+        long lastSegment = (offset + length - 1) / SEGMENT_SIZE;
+        long finalSegment = segmentCount(header.plainLength()) - 1;
+        long position = GCM_HEADER_LENGTH + firstSegment * (SEGMENT_SIZE + TAG_LENGTH);
+        long cipherLength = Math.min(size - position, (lastSegment - firstSegment + 1) * (SEGMENT_SIZE + TAG_LENGTH));
+
+        Cipher cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        byte[] sealed = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        byte[] plain = new byte[SEGMENT_SIZE];
+        int skip = (int) (offset % SEGMENT_SIZE);
+        long remaining = length;
+        try (InputStream in = reader.open(position, cipherLength)) {
+            for (long index = firstSegment; remaining > 0; index++) {
+                int sealedLength = (int) Math.min(SEGMENT_SIZE, header.plainLength() - index * SEGMENT_SIZE) + TAG_LENGTH;
+                if (in.readNBytes(sealed, 0, sealedLength) != sealedLength) {
+                    throw new EOFException("Encrypted file is shorter than the requested range");
+                }
+                int produced = openSegment(cipher, header.envelope(), index, index == finalSegment, sealed, sealedLength, plain);
+                int count = (int) Math.min(produced - skip, remaining);
+                out.write(plain, skip, count);
+                remaining -= count;
+                skip = 0;
+            }
+        }
+    }
+
+    private void decryptCompressedRange(long size, RangeReader reader, Header header, long offset, long length, OutputStream out)
+        throws IOException, GeneralSecurityException {
+        int dataStart = header.envelope() != null ? GCM_HEADER_LENGTH : COMPRESSED_HEADER_LENGTH;
+        try (InputStream in = reader.open(dataStart, size - dataStart);
+             InputStream plain = CompressionUtil.decompress(header.codec(), decryptingStream(in, header))) {
+            plain.skipNBytes(offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            while (remaining > 0) {
+                int n = plain.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n == -1) {
+                    throw new EOFException("Encrypted file is shorter than the requested range");
+                }
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    // Plaintext of a compressed payload's ciphertext, before decompression
+    private InputStream decryptingStream(InputStream in, Header header) throws GeneralSecurityException {
+        if (header.envelope() != null) {
+            return new SegmentReader(in, header.envelope());
+        }
+        Cipher cipher = Cipher.getInstance(CTR_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, getSecretKey(), new IvParameterSpec(header.iv()));
+        return new DecryptingInputStream(in, cipher);
+    }
+
+    // IV (versions 1 and 2) or envelope (version 3), codec and plaintext length of a versioned file;
+    // plainLength is worked out from the size for uncompressed files
+    private record Header(byte[] iv, CompressionCodec codec, long plainLength, Envelope envelope) {
+    }
+
+    // Returns the header of a versioned file, or null for a legacy file
+    private Header readHeader(long size, RangeReader reader) throws IOException, GeneralSecurityException {
+        if (size < HEADER_LENGTH) {
+            return null;
+        }
+        byte[] bytes = readExactly(reader, 0, (int) Math.min(size, GCM_HEADER_LENGTH));
+        if (!Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            return null;
+        }
+        byte version = bytes[MAGIC.length];
+        if (version == VERSION_GCM) {
+            if (bytes.length < GCM_HEADER_LENGTH) {
+                throw new IOException("Truncated encrypted file header");
+            }
+            CompressionCodec codec = codecOf(bytes[MAGIC.length + 1]);
+            long plainLength = codec == CompressionCodec.NONE
+                ? segmentedPlainLength(size)
+                : ByteBuffer.wrap(bytes, MAGIC.length + 2, Long.BYTES).getLong();
+            return new Header(null, codec, plainLength, openEnvelope(bytes));
+        }
+        byte[] iv = Arrays.copyOfRange(bytes, MAGIC.length + 1, HEADER_LENGTH);
+        if (version == VERSION_CTR) {
+            return new Header(iv, CompressionCodec.NONE, size - HEADER_LENGTH, null);
+        }
+        if (version == VERSION_CTR_COMPRESSED && bytes.length >= COMPRESSED_HEADER_LENGTH) {
+            return new Header(iv, codecOf(bytes[HEADER_LENGTH]), ByteBuffer.wrap(bytes, HEADER_LENGTH + 1, Long.BYTES).getLong(), null);
+        }
+        throw new IOException("Unsupported encrypted file version: " + version);
+    }
+
+    // Whether these leading bytes of a file are a complete version 3 header
+    public static boolean isEnveloped(byte[] header) {
+        return header.length >= GCM_HEADER_LENGTH && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+            && header[MAGIC.length] == VERSION_GCM;
+    }
+
+    /**
+     * Moves a version 3 file's data key to the active master key, in place: the rewrapped key goes into
+     * the inactive slot and is synced before the active byte flips to it, so a concurrent reader or a
+     * crash only ever finds a complete slot. Hard links of the file (blobs, copies) share the change. The
+     * payload is not read and the modification time is kept, so the index sees no change.
+     */
+    public RewrapResult rewrap(Path file) throws IOException, GeneralSecurityException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(GCM_HEADER_LENGTH);
+            while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) != -1) {
+                // keep reading until the header is complete or the file ends
+            }
+            byte[] header = buffer.array();
+            if (buffer.hasRemaining() || !isEnveloped(header)) {
+                return RewrapResult.NOT_ENVELOPED;
+            }
+            byte[] rewrapped = rewrapHeader(header);
+            if (rewrapped == null) {
+                return RewrapResult.CURRENT;
+            }
+            int slot = KEY_SLOTS_OFFSET + rewrapped[ACTIVE_SLOT_OFFSET] * KEY_SLOT_LENGTH;
+            writeFully(channel, ByteBuffer.wrap(rewrapped, slot, KEY_SLOT_LENGTH), slot);
+            channel.force(false);
+            writeFully(channel, ByteBuffer.wrap(rewrapped, ACTIVE_SLOT_OFFSET, 1), ACTIVE_SLOT_OFFSET);
+            channel.force(false);
+        }
+        Files.setLastModifiedTime(file, modified);
+        return RewrapResult.REWRAPPED;
+    }
+
+    /**
+     * A copy of a version 3 header with the data key rewrapped by the active master key into the inactive
+     * slot and that slot made active, or null if the active master key already wraps it. For backends
+     * that cannot write in place, which store the whole object again with this header.
+     */
+    public byte[] rewrapHeader(byte[] header) throws IOException, GeneralSecurityException {
+        KeyRing ring = keyRing();
+        int active = activeSlot(header);
+        if (keyIdAt(header, KEY_SLOTS_OFFSET + active * KEY_SLOT_LENGTH).equals(ring.activeId())) {
+            return null;
+        }
+        byte[] dataKey = unwrap(header);
+        byte[] rewrapped = header.clone();
+        try {
+            byte[] slot = wrap(dataKey, Arrays.copyOf(header, GCM_FIXED_LENGTH), ring.activeId(), ring.active());
+            System.arraycopy(slot, 0, rewrapped, KEY_SLOTS_OFFSET + (1 - active) * KEY_SLOT_LENGTH, KEY_SLOT_LENGTH);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+        rewrapped[ACTIVE_SLOT_OFFSET] = (byte) (1 - active);
+        return rewrapped;
+    }
+
+    // The data key of a file and the fixed part of its header, which every segment authenticates
+    private record Envelope(SecretKey dataKey, byte[] fixed) {
+    }
+
+    private record KeyRing(Map<String, SecretKey> keys, String activeId) {
+        SecretKey active() {
+            return keys.get(activeId);
+        }
+    }
+
+    private KeyRing keyRing() {
+        KeyRing ring = keyRing;
+        if (ring == null) {
+            synchronized (this) {
+                if (keyRing == null) {
+                    keyRing = loadKeyRing();
+                }
+                ring = keyRing;
+            }
+        }
+        return ring;
+    }
+
+    private KeyRing loadKeyRing() {
+        Map<String, SecretKey> keys = new HashMap<>();
+        if (masterKeySpec != null) {
+            for (String entry : masterKeySpec.split(",")) {
+                if (entry.isBlank()) {
+                    continue;
+                }
+                int colon = entry.indexOf(':');
+                if (colon < 1) {
+                    throw new IllegalStateException("Master keys must be given as id:base64");
+                }
+                String id = entry.substring(0, colon).trim();
+                byte[] key = Base64.getDecoder().decode(entry.substring(colon + 1).trim());
+                if (id.getBytes(StandardCharsets.UTF_8).length > KEY_ID_LENGTH) {
+                    throw new IllegalStateException("Master key id " + id + " is longer than " + KEY_ID_LENGTH + " bytes");
+                }
+                if (key.length != 16 && key.length != 24 && key.length != 32) {
+                    throw new IllegalStateException("Master key " + id + " must be 16, 24 or 32 bytes");
+                }
+                keys.put(id, new SecretKeySpec(key, "AES"));
+            }
+        }
+        // Kept even when other keys are configured, so files written before stay readable
+        keys.putIfAbsent(DEFAULT_KEY_ID, derivedDefaultKey());
+        String activeId = masterKeyId == null ? DEFAULT_KEY_ID : masterKeyId;
+        if (!keys.containsKey(activeId)) {
+            throw new IllegalStateException("Active master key " + activeId + " is not configured");
+        }
+        return new KeyRing(Map.copyOf(keys), activeId);
+    }
+
+    // SHA-256 of the whole secret, unlike the version 1 key, which is its first 16 bytes
+    private SecretKey derivedDefaultKey() {
+        try {
+            return new SecretKeySpec(MessageDigest.getInstance("SHA-256").digest(SECRET.getBytes(StandardCharsets.UTF_8)), "AES");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Fills a version 3 header for a fresh random data key wrapped into slot 0; slot 1 stays empty until a rotation
+    private Envelope newEnvelope(CompressionCodec codec, long plainLength, byte[] header) throws GeneralSecurityException {
+        byte[] dataKey = new byte[DATA_KEY_LENGTH];
+        secureRandom.nextBytes(dataKey);
+        byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        secureRandom.nextBytes(noncePrefix);
+        ByteBuffer.wrap(header).put(MAGIC).put(VERSION_GCM).put((byte) codec.getId()).putLong(plainLength).put(noncePrefix).put((byte) 0);
+        byte[] fixed = Arrays.copyOf(header, GCM_FIXED_LENGTH);
+        KeyRing ring = keyRing();
+        try {
+            System.arraycopy(wrap(dataKey, fixed, ring.activeId(), ring.active()), 0, header, KEY_SLOTS_OFFSET, KEY_SLOT_LENGTH);
+            return new Envelope(new SecretKeySpec(dataKey, "AES"), fixed);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+    }
+
+    private Envelope openEnvelope(byte[] header) throws IOException, GeneralSecurityException {
+        byte[] dataKey = unwrap(header);
+        try {
+            return new Envelope(new SecretKeySpec(dataKey, "AES"), Arrays.copyOf(header, GCM_FIXED_LENGTH));
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+    }
+
+    // The slot is bound to its key id and to the file's fixed header, so it cannot be moved to another file
+    private byte[] wrap(byte[] dataKey, byte[] fixed, String keyId, SecretKey masterKey) throws GeneralSecurityException {
+        byte[] slot = new byte[KEY_SLOT_LENGTH];
+        byte[] id = keyId.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(id, 0, slot, 0, id.length);
+        byte[] nonce = new byte[NONCE_LENGTH];
+        secureRandom.nextBytes(nonce);
+        System.arraycopy(nonce, 0, slot, KEY_ID_LENGTH, NONCE_LENGTH);
+
+        Cipher cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(slot, 0, KEY_ID_LENGTH);
+        cipher.updateAAD(fixed);
+        cipher.doFinal(dataKey, 0, DATA_KEY_LENGTH, slot, KEY_ID_LENGTH + NONCE_LENGTH);
+        return slot;
+    }
+
+    // The data key in the active slot of a version 3 header
+    private byte[] unwrap(byte[] header) throws IOException, GeneralSecurityException {
+        int slot = KEY_SLOTS_OFFSET + activeSlot(header) * KEY_SLOT_LENGTH;
+        String keyId = keyIdAt(header, slot);
+        SecretKey masterKey = keyRing().keys().get(keyId);
+        if (masterKey == null) {
+            throw new IOException("Encrypted file uses unknown master key " + keyId);
+        }
+        Cipher cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, masterKey, new GCMParameterSpec(TAG_LENGTH * 8, header, slot + KEY_ID_LENGTH, NONCE_LENGTH));
+        cipher.updateAAD(header, slot, KEY_ID_LENGTH);
+        cipher.updateAAD(header, 0, GCM_FIXED_LENGTH);
+        try {
+            return cipher.doFinal(header, slot + KEY_ID_LENGTH + NONCE_LENGTH, DATA_KEY_LENGTH + TAG_LENGTH);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Data key of encrypted file does not open with master key " + keyId, e);
+        }
+    }
+
+    private static int activeSlot(byte[] header) throws IOException {
+        byte active = header[ACTIVE_SLOT_OFFSET];
+        if (active != 0 && active != 1) {
+            throw new IOException("Corrupted encrypted file header");
+        }
+        return active;
+    }
+
+    private static String keyIdAt(byte[] header, int slot) {
+        int length = 0;
+        while (length < KEY_ID_LENGTH && header[slot + length] != 0) {
+            length++;
+        }
+        return new String(header, slot, length, StandardCharsets.UTF_8);
+    }
+
+    // nonce = prefix | segment index | last-segment flag
+    private static GCMParameterSpec segmentNonce(Envelope envelope, long index, boolean last) throws IOException {
+        if (index >= MAX_SEGMENTS) {
+            throw new IOException("File is too large for the encrypted format");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(envelope.fixed(), GCM_FIXED_LENGTH - NONCE_PREFIX_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, Integer.BYTES).putInt((int) index);
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    private static int sealSegment(Cipher cipher, Envelope envelope, long index, boolean last, byte[] plain, int length,
+                                   byte[] sealed) throws IOException, GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, envelope.dataKey(), segmentNonce(envelope, index, last));
+        cipher.updateAAD(envelope.fixed());
+        return cipher.doFinal(plain, 0, length, sealed, 0);
+    }
+
+    private static int openSegment(Cipher cipher, Envelope envelope, long index, boolean last, byte[] sealed, int length,
+                                   byte[] plain) throws IOException, GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, envelope.dataKey(), segmentNonce(envelope, index, last));
+        cipher.updateAAD(envelope.fixed());
+        try {
+            return cipher.doFinal(sealed, 0, length, plain, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Encrypted file was modified or truncated", e);
+        }
+    }
+
+    private static long segmentCount(long plainLength) {
+        return Math.max(1, (plainLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    // Every segment is full except the last, which may be empty but still has its tag
+    private static long segmentedPlainLength(long size) throws IOException {
+        long payload = size - GCM_HEADER_LENGTH;
+        long full = payload / (SEGMENT_SIZE + TAG_LENGTH);
+        long rest = payload % (SEGMENT_SIZE + TAG_LENGTH);
+        if (payload < TAG_LENGTH || (rest > 0 && rest < TAG_LENGTH)) {
+            throw new IOException("Corrupted encrypted file");
+        }
+        return rest == 0 ? full * SEGMENT_SIZE : full * SEGMENT_SIZE + rest - TAG_LENGTH;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static CompressionCodec codecOf(byte id) throws IOException {
+        try {
+            return CompressionCodec.fromId(id);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private static byte[] readExactly(RangeReader reader, long position, int length) throws IOException {
+        try (InputStream in = reader.open(position, length)) {
+            byte[] bytes = in.readNBytes(length);
+            if (bytes.length != length) {
+                throw new EOFException();
+            }
+            return bytes;
+        }
+    }
+
+    // A fresh channel per read, positioned at the start of the range
+    private static RangeReader fileReader(Path file) {
+        return (position, length) -> {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            channel.position(position);
+            return Channels.newInputStream(channel);
+        };
+    }
+
+    // CTR treats the IV as a 128-bit big-endian counter, one step per cipher block
+    private static byte[] counterAt(byte[] iv, long blockIndex) {
+        byte[] counter = iv.clone();
+        long carry = blockIndex;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            long sum = (counter[i] & 0xff) + (carry & 0xff);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+
+    // Returns the number of bytes written
+    private long pump(Cipher cipher, InputStream in, OutputStream out) throws IOException, GeneralSecurityException {
+        byte[] inBuffer = new byte[BUFFER_SIZE];
+        // Room for a buffer's worth of output plus the block a padded cipher may hold back
+        byte[] outBuffer = new byte[BUFFER_SIZE + 2 * BLOCK_SIZE];
+        long written = 0;
+        int n;
+        while ((n = in.read(inBuffer)) != -1) {
+            int produced = cipher.update(inBuffer, 0, n, outBuffer, 0);
+            out.write(outBuffer, 0, produced);
+            written += produced;
+        }
+        int produced = cipher.doFinal(outBuffer, 0);
+        out.write(outBuffer, 0, produced);
+        return written + produced;
+    }
+
+    // Encrypts whatever the compressor emits; closing it finishes the cipher but leaves the target open
+    private static class EncryptingOutputStream extends OutputStream {
+        private final Cipher cipher;
+        private final OutputStream out;
+        private final byte[] outBuffer = new byte[BUFFER_SIZE + 2 * BLOCK_SIZE];
+        long written;
+
+        EncryptingOutputStream(Cipher cipher, OutputStream out) {
+            this.cipher = cipher;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                while (length > 0) {
+                    int n = Math.min(length, BUFFER_SIZE);
+                    int produced = cipher.update(bytes, offset, n, outBuffer, 0);
+                    out.write(outBuffer, 0, produced);
+                    written += produced;
+                    offset += n;
+                    length -= n;
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error while encrypting", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                int produced = cipher.doFinal(outBuffer, 0);
+                out.write(outBuffer, 0, produced);
+                written += produced;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error while encrypting", e);
+            }
+        }
+    }
+
+    // CTR plaintext of the ciphertext read from {@code in}, for the decompressor to read from
+    private static class DecryptingInputStream extends InputStream {
+        private final InputStream in;
+        private final Cipher cipher;
+        private final byte[] inBuffer = new byte[BUFFER_SIZE];
+        private final byte[] outBuffer = new byte[BUFFER_SIZE + 2 * BLOCK_SIZE];
+        private int position;
+        private int limit;
+
+        DecryptingInputStream(InputStream in, Cipher cipher) {
+            this.in = in;
+            this.cipher = cipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                int n = in.read(inBuffer);
+                if (n == -1) {
+                    return -1;
+                }
+                try {
+                    limit = cipher.update(inBuffer, 0, n, outBuffer, 0);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Error while decrypting", e);
+                }
+                position = 0;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(outBuffer, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Seals what is written into GCM segments. A full segment is only sealed once more data follows, so the
+    // last one is known when it is sealed; closing seals it
+    private static class SegmentWriter extends OutputStream {
+        private final Envelope envelope;
+        private final OutputStream out;
+        private final Cipher cipher;
+        private final byte[] segment = new byte[SEGMENT_SIZE];
+        private final byte[] sealed = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private int filled;
+        private long index;
+        private boolean closed;
+        long written;
+
+        SegmentWriter(Envelope envelope, OutputStream out) throws GeneralSecurityException {
+            this.envelope = envelope;
+            this.out = out;
+            this.cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (filled == SEGMENT_SIZE) {
+                    seal(false);
+                }
+                int n = Math.min(length, SEGMENT_SIZE - filled);
+                System.arraycopy(bytes, offset, segment, filled, n);
+                filled += n;
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // Reads straight into the segment buffer, saving the copy write() makes
+        void transferFrom(InputStream in) throws IOException {
+            while (true) {
+                if (filled == SEGMENT_SIZE) {
+                    int next = in.read();
+                    if (next == -1) {
+                        return;
+                    }
+                    seal(false);
+                    segment[filled++] = (byte) next;
+                }
+                filled += in.readNBytes(segment, filled, SEGMENT_SIZE - filled);
+                if (filled < SEGMENT_SIZE) {
+                    return;
+                }
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            try {
+                int produced = sealSegment(cipher, envelope, index++, last, segment, filled, sealed);
+                out.write(sealed, 0, produced);
+                written += produced;
+                filled = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error while encrypting", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                seal(true);
+            }
+        }
+    }
+
+    // Plaintext of the GCM segments read from {@code in}. The segment after the current one is read ahead,
+    // since only the end of the stream tells which segment has to carry the last-segment flag
+    private static class SegmentReader extends InputStream {
+        private final InputStream in;
+        private final Envelope envelope;
+        private final Cipher cipher;
+        private byte[] current = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private byte[] next = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private int nextLength = -1;
+        private final byte[] plain = new byte[SEGMENT_SIZE];
+        private int position;
+        private int limit;
+        private long index;
+        private boolean done;
+
+        SegmentReader(InputStream in, Envelope envelope) throws GeneralSecurityException {
+            this.in = in;
+            this.envelope = envelope;
+            this.cipher = Cipher.getInstance(GCM_TRANSFORMATION);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(plain, position, bytes, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long transferTo(OutputStream out) throws IOException {
+            long transferred = 0;
+            while (position < limit || fill()) {
+                out.write(plain, position, limit - position);
+                transferred += limit - position;
+                position = limit;
+            }
+            return transferred;
+        }
+
+        // Opens the next segment into the plain buffer; false once the last one has been consumed
+        private boolean fill() throws IOException {
+            while (!done) {
+                int currentLength;
+                if (nextLength < 0) {
+                    currentLength = in.readNBytes(current, 0, current.length);
+                } else {
+                    byte[] swap = current;
+                    current = next;
+                    next = swap;
+                    currentLength = nextLength;
+                }
+                nextLength = currentLength == current.length ? in.readNBytes(next, 0, next.length) : 0;
+                boolean last = nextLength == 0;
+                if (currentLength < TAG_LENGTH) {
+                    throw new IOException("Encrypted file was modified or truncated");
+                }
+                try {
+                    limit = openSegment(cipher, envelope, index++, last, current, currentLength, plain);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Error while decrypting", e);
+                }
+                position = 0;
+                done = last;
+                if (limit > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
-        try (FileInputStream fis = new FileInputStream(inputFile);
-             FileOutputStream fos = new FileOutputStream(outputFile)) {
-            byte[] inputBytes = fis.readAllBytes();
-            byte[] outputBytes = cipher.doFinal(inputBytes);
-            fos.write(outputBytes);
+        @Override
+        public void close() throws IOException {
+            in.close();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+package com.example.cloud.cloud.util;
+
+import com.example.cloud.cloud.model.CompressionCodec;
+import com.example.cloud.cloud.model.Plan;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Picks the compression for an upload and builds the compressing/decompressing streams used by
+ * {@link AesFileUtil}. Compression only pays off for text-like content, so media and archives are
+ * recognised by extension, by magic number or by a high byte entropy in the first few KB, and stored as is.
+ */
+@Component
+public class CompressionUtil {
+    // How much of the upload is looked at before deciding
+    public static final int SAMPLE_SIZE = 4096;
+
+    // Below this the codec framing costs more than it saves
+    private static final long MIN_COMPRESSIBLE_SIZE = 1024;
+
+    // Bits per byte; compressed or encrypted data sits just under 8, text well below 6
+    private static final double MAX_COMPRESSIBLE_ENTROPY = 7.2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ZSTD_LEVEL = 3;
+
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+        "jpg", "jpeg", "png", "gif", "webp", "heic", "avif",
+        "mp3", "aac", "ogg", "opus", "flac", "m4a",
+        "mp4", "m4v", "mov", "mkv", "webm", "avi",
+        "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "apk",
+        "docx", "xlsx", "pptx", "odt", "ods", "epub");
+
+    private static final byte[][] COMPRESSED_MAGIC = {
+        {(byte) 0x89, 'P', 'N', 'G'},
+        {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF},          // JPEG
+        {'G', 'I', 'F', '8'},
+        {'P', 'K', 3, 4},                                  // zip and everything built on it
+        {0x1F, (byte) 0x8B},                               // gzip
+        {'B', 'Z', 'h'},
+        {(byte) 0xFD, '7', 'z', 'X', 'Z', 0},
+        {0x28, (byte) 0xB5, 0x2F, (byte) 0xFD},            // zstd
+        {'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C},
+        {'R', 'a', 'r', '!'},
+        {'O', 'g', 'g', 'S'},
+        {'f', 'L', 'a', 'C'},
+        {'I', 'D', '3'},                                   // mp3
+        {0x1A, 0x45, (byte) 0xDF, (byte) 0xA3},            // matroska/webm
+        {'S', 'Q', 'T', 'U'}                               // already one of our encrypted files
+    };
+
+    @Value("${storage.compression.enabled:true}")
+    private boolean enabled;
+
+    @Value("${storage.compression.default-codec:ZSTD}")
+    private CompressionCodec defaultCodec;
+
+    // The plan's own codec, or the default for plans that do not set one
+    public CompressionCodec codecFor(Plan plan) {
+        return plan == null || plan.getCompression() == null ? defaultCodec : plan.getCompression();
+    }
+
+    /**
+     * The codec to store an upload with: the plan's codec, unless compression is off or the file looks
+     * compressed already. {@code sample} holds the first {@code sampleLength} bytes of the content.
+     */
+    public CompressionCodec choose(CompressionCodec planCodec, String fileName, long size, byte[] sample, int sampleLength) {
+        if (!enabled || planCodec == null || planCodec == CompressionCodec.NONE || size < MIN_COMPRESSIBLE_SIZE) {
+            return CompressionCodec.NONE;
+        }
+        if (hasCompressedExtension(fileName) || hasCompressedMagic(sample, sampleLength)
+            || entropy(sample, sampleLength) > MAX_COMPRESSIBLE_ENTROPY) {
+            return CompressionCodec.NONE;
+        }
+        return planCodec;
+    }
+
+    // Closing the returned stream finishes the compressed data and closes {@code out}
+    public static OutputStream compress(CompressionCodec codec, OutputStream out) throws IOException {
+        return switch (codec) {
+            case NONE -> out;
+            case DEFLATE -> {
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                yield new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            deflater.end();
+                        }
+                    }
+                };
+            }
+            case ZSTD -> new ZstdOutputStream(out, ZSTD_LEVEL);
+        };
+    }
+
+    public static InputStream decompress(CompressionCodec codec, InputStream in) throws IOException {
+        return switch (codec) {
+            case NONE -> in;
+            case DEFLATE -> {
+                Inflater inflater = new Inflater();
+                yield new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+            case ZSTD -> new ZstdInputStream(in);
+        };
+    }
+
+    // Keeps a decompressor's close() from closing a stream the caller owns
+    public static InputStream keepOpen(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // Media and archive formats by name alone, for when the content is not at hand
+    public static boolean hasCompressedExtension(String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot >= 0 && COMPRESSED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean hasCompressedMagic(byte[] sample, int sampleLength) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (sampleLength >= magic.length && Arrays.equals(sample, 0, magic.length, magic, 0, magic.length)) {
+                return true;
+            }
+        }
+        // ISO media (mp4, mov, heic, avif) carries "ftyp" at offset 4, RIFF containers name their format at offset 8
+        return sampleLength >= 12 && (matches(sample, 4, "ftyp") || (matches(sample, 0, "RIFF")
+            && (matches(sample, 8, "WEBP") || matches(sample, 8, "AVI "))));
+    }
+
+    private static boolean matches(byte[] sample, int offset, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (sample[offset + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Shannon entropy of the byte histogram, in bits per byte
+    static double entropy(byte[] sample, int sampleLength) {
+        if (sampleLength == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < sampleLength; i++) {
+            counts[sample[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sampleLength;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+}
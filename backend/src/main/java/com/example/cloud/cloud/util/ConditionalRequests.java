@@ -0,0 +1,96 @@
+package com.example.cloud.cloud.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Validator checks for conditional GETs (If-None-Match, If-Modified-Since, If-Range) and the caching
+ * headers that go with them. Callers look the validators up from the index, so a revalidation is answered
+ * before any storage or crypto work.
+ */
+@Component
+public class ConditionalRequests {
+    // Lets a reverse proxy keep responses per token and revalidate them, instead of only the browser
+    @Value("${http.cache.shared-proxy:false}")
+    private boolean sharedProxy;
+
+    public static String strongEtag(String value) {
+        return "\"" + value + "\"";
+    }
+
+    // If-None-Match wins over If-Modified-Since when both are sent, as RFC 9110 asks
+    public boolean notModified(String ifNoneMatch, String ifModifiedSince, String etag, Instant lastModified) {
+        if (ifNoneMatch != null) {
+            return etag != null && anyMatches(ifNoneMatch, etag);
+        }
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        Instant since = parseDate(ifModifiedSince);
+        // HTTP dates have whole seconds
+        return since != null && !lastModified.truncatedTo(ChronoUnit.SECONDS).isAfter(since);
+    }
+
+    // Whether a Range request should be honoured: the client's copy must still be exactly the current one
+    public boolean rangeApplies(String ifRange, String etag, Instant lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            return value.equals(etag);
+        }
+        Instant date = parseDate(value);
+        return date != null && lastModified != null && lastModified.truncatedTo(ChronoUnit.SECONDS).equals(date);
+    }
+
+    public CacheControl cacheControl() {
+        return sharedProxy ? CacheControl.noCache().mustRevalidate() : CacheControl.noCache().cachePrivate();
+    }
+
+    // Sets the validators and caching headers; either validator may be null when unknown
+    public <B extends ResponseEntity.HeadersBuilder<B>> B withValidators(B builder, String etag, Instant lastModified) {
+        if (etag != null) {
+            builder.eTag(etag);
+        }
+        if (lastModified != null) {
+            builder.lastModified(lastModified);
+        }
+        builder.cacheControl(cacheControl());
+        if (sharedProxy) {
+            builder.header(HttpHeaders.VARY, HttpHeaders.AUTHORIZATION);
+        }
+        return builder;
+    }
+
+    private static boolean anyMatches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            // If-None-Match compares weakly
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Instant parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
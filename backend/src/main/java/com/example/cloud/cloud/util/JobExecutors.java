@@ -0,0 +1,48 @@
+package com.example.cloud.cloud.util;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Executors for the service-layer jobs, following the same switch as Tomcat and {@code @Async}: with
+ * {@code spring.threads.virtual.enabled} their threads are virtual, otherwise platform threads.
+ * {@link #newExecutor} always runs at most {@code parallelism} tasks at once, in submission order, so the
+ * setting keeps bounding CPU-heavy work such as encryption whichever threads are used.
+ */
+@Component
+public class JobExecutors {
+    private final boolean virtualThreads;
+
+    @Autowired
+    public JobExecutors(@Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public ExecutorService newExecutor(String name, int parallelism) {
+        return Executors.newFixedThreadPool(parallelism, threadFactory(name));
+    }
+
+    /**
+     * For tasks that spend most of their time blocked on someone else, such as a producer waiting for a
+     * slow client to take its output. With virtual threads every task gets its own, so blocked tasks cannot
+     * keep queued ones from starting; the caller has to bound the CPU work of its tasks itself. Otherwise
+     * this is the same fixed pool as {@link #newExecutor}.
+     */
+    public ExecutorService newBlockingExecutor(String name, int parallelism) {
+        if (virtualThreads) {
+            return Executors.newThreadPerTaskExecutor(threadFactory(name));
+        }
+        return newExecutor(name, parallelism);
+    }
+
+    private ThreadFactory threadFactory(String name) {
+        return virtualThreads
+            ? Thread.ofVirtual().name(name + "-", 0).factory()
+            : Thread.ofPlatform().name(name + "-", 0).factory();
+    }
+}
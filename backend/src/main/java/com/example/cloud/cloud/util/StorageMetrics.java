@@ -0,0 +1,107 @@
+package com.example.cloud.cloud.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Meters of the upload, download and listing paths, registered once so the hot paths only record.
+ * Upload latency is split into {@code cloud.upload.stage} (quota, dedupe, rename, index); the encryption
+ * itself is {@code cloud.crypto{op=encrypt}}, which with {@code cloud.crypto.bytes} gives the throughput.
+ * Decryption streams straight into the response, so {@code cloud.crypto{op=decrypt}} includes the client.
+ */
+@Component
+public class StorageMetrics {
+    public static final String STAGE_QUOTA = "quota";
+    public static final String STAGE_DEDUPE = "dedupe";
+    public static final String STAGE_RENAME = "rename";
+    public static final String STAGE_INDEX = "index";
+
+    private final MeterRegistry registry;
+
+    private final Timer upload;
+    private final DistributionSummary uploadBytes;
+    private final Timer download;
+    private final DistributionSummary downloadBytes;
+
+    private final Timer encrypt;
+    private final Counter encryptedBytes;
+    private final Timer decrypt;
+    private final Counter decryptedBytes;
+
+    private final AtomicInteger tempFiles = new AtomicInteger();
+    private final Counter tempBytes;
+
+    private final Timer folderView;
+    private final DistributionSummary folderViewEntries;
+
+    @Autowired
+    public StorageMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.upload = Timer.builder("cloud.upload").description("Single-request uploads, quota to index").register(registry);
+        this.uploadBytes = DistributionSummary.builder("cloud.upload.bytes").baseUnit("bytes").register(registry);
+        this.download = Timer.builder("cloud.download").description("Downloads, until the last byte is written").register(registry);
+        this.downloadBytes = DistributionSummary.builder("cloud.download.bytes").baseUnit("bytes").register(registry);
+
+        this.encrypt = Timer.builder("cloud.crypto").tag("op", "encrypt").register(registry);
+        this.encryptedBytes = Counter.builder("cloud.crypto.bytes").tag("op", "encrypt").baseUnit("bytes").register(registry);
+        this.decrypt = Timer.builder("cloud.crypto").tag("op", "decrypt").register(registry);
+        this.decryptedBytes = Counter.builder("cloud.crypto.bytes").tag("op", "decrypt").baseUnit("bytes").register(registry);
+
+        Gauge.builder("cloud.upload.temp.files", tempFiles, AtomicInteger::get)
+            .description("Upload temp files currently on disk")
+            .register(registry);
+        this.tempBytes = Counter.builder("cloud.upload.temp.bytes").baseUnit("bytes").register(registry);
+
+        this.folderView = Timer.builder("cloud.folder.view").register(registry);
+        this.folderViewEntries = DistributionSummary.builder("cloud.folder.view.entries").register(registry);
+    }
+
+    // Stage timings take the System.nanoTime() the stage started at
+    public void stage(String stage, long startNanos) {
+        registry.timer("cloud.upload.stage", "stage", stage).record(elapsed(startNanos), TimeUnit.NANOSECONDS);
+    }
+
+    public void uploaded(long startNanos, long bytes) {
+        upload.record(elapsed(startNanos), TimeUnit.NANOSECONDS);
+        uploadBytes.record(bytes);
+    }
+
+    public void downloaded(long startNanos, long bytes) {
+        long nanos = elapsed(startNanos);
+        download.record(nanos, TimeUnit.NANOSECONDS);
+        downloadBytes.record(bytes);
+        decrypt.record(nanos, TimeUnit.NANOSECONDS);
+        decryptedBytes.increment(bytes);
+    }
+
+    public void encrypted(long startNanos, long bytes) {
+        encrypt.record(elapsed(startNanos), TimeUnit.NANOSECONDS);
+        encryptedBytes.increment(bytes);
+    }
+
+    public void tempFileCreated() {
+        tempFiles.incrementAndGet();
+    }
+
+    public void tempFileGone(long bytesWritten) {
+        tempFiles.decrementAndGet();
+        tempBytes.increment(bytesWritten);
+    }
+
+    public void folderViewed(long startNanos, int entries) {
+        folderView.record(elapsed(startNanos), TimeUnit.NANOSECONDS);
+        folderViewEntries.record(entries);
+    }
+
+    private static long elapsed(long startNanos) {
+        return System.nanoTime() - startNanos;
+    }
+}
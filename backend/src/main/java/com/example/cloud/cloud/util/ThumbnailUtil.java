@@ -0,0 +1,147 @@
+package com.example.cloud.cloud.util;
+
+import com.example.cloud.cloud.model.DerivativeKind;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+// Renders the small derivatives grid views show instead of the file: JPEG thumbnails and the head of text files
+@Component
+public class ThumbnailUtil {
+    // Plaintext bytes a text preview is cut from
+    public static final int TEXT_PREVIEW_BYTES = 4096;
+
+    // Decoding is refused above this, whatever the file size; a small PNG can declare a huge canvas
+    private static final long MAX_SOURCE_PIXELS = 100_000_000L;
+
+    private static final float JPEG_QUALITY = 0.8f;
+
+    @Value("${storage.derivatives.thumbnail-size:256}")
+    private int thumbnailSize;
+
+    // How many plaintext bytes rendering needs from a file of plainLength bytes
+    public long sourceBytes(DerivativeKind kind, long plainLength) {
+        return kind == DerivativeKind.TEXT ? Math.min(plainLength, TEXT_PREVIEW_BYTES) : plainLength;
+    }
+
+    // The derivative's bytes, or null if the source cannot be rendered
+    public byte[] render(DerivativeKind kind, byte[] source) throws IOException {
+        return switch (kind) {
+            case IMAGE -> imageThumbnail(source);
+            case PDF -> pdfThumbnail(source);
+            case TEXT -> textPreview(source);
+        };
+    }
+
+    public byte[] imageThumbnail(byte[] source) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(source))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_SOURCE_PIXELS) {
+                    return null;
+                }
+                // Subsampling while decoding skips most of the pixels of a large photo instead of scaling them away later
+                int step = Math.max(1, Math.max(width, height) / (thumbnailSize * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return toJpeg(scaleDown(reader.read(0, param)));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    public byte[] pdfThumbnail(byte[] source) throws IOException {
+        try (PDDocument document = Loader.loadPDF(source)) {
+            if (document.getNumberOfPages() == 0) {
+                return null;
+            }
+            PDRectangle page = document.getPage(0).getCropBox();
+            float scale = thumbnailSize / Math.max(page.getWidth(), page.getHeight());
+            return toJpeg(scaleDown(new PDFRenderer(document).renderImage(0, scale, ImageType.RGB)));
+        }
+    }
+
+    // The head of the file as UTF-8, without a character cut in half at the end
+    public byte[] textPreview(byte[] source) throws IOException {
+        int length = Math.min(source.length, TEXT_PREVIEW_BYTES);
+        String text = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .decode(ByteBuffer.wrap(source, 0, length))
+            .toString();
+        if (length == TEXT_PREVIEW_BYTES) {
+            int end = text.length();
+            while (end > 0 && text.charAt(end - 1) == '\uFFFD') {
+                end--;
+            }
+            text = text.substring(0, end);
+        }
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Fits the image into the thumbnail square on white, since JPEG has no alpha
+    private BufferedImage scaleDown(BufferedImage image) {
+        double factor = Math.min(1.0, (double) thumbnailSize / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private static byte[] toJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
@@ -2,25 +2,76 @@ package com.example.cloud.cloud.util;
 
 import com.example.cloud.auth.model.MyUser;
 import com.example.cloud.auth.security.service.UserDetailsImpl;
+import com.example.cloud.cloud.model.CompressionCodec;
+import com.example.cloud.cloud.model.SavedFile;
+import com.example.cloud.cloud.storage.StorageBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
 
 @Component
 public class UserStorageUtil {
-    // Path for Docker environment, matches docker-compose.yml volume
-    private static final String STORAGE_PATH = "C:\\Users\\0penf\\storage_001";
+    // In-flight uploads are written under this prefix and renamed when complete
+    private static final String UPLOAD_TEMP_PREFIX = ".upload-";
+
+    // Deleted folders are renamed in here before being removed in the background; user ids are numeric so this never clashes
+    // with a user directory. There is one per storage volume, next to the user directories on it
+    private static final String TRASH_DIR_NAME = ".trash";
+
+    // Content-addressed ciphertext shared by hard links from user trees, see putFileInTheFolder
+    private static final String BLOB_DIR_NAME = ".blobs";
+
+    private static final String CONTENT_HASH_ALGORITHM = "SHA-256";
+
+    private static final String BLOB_NAME_ALGORITHM = "HmacSHA256";
+
+    private static final Logger logger = LoggerFactory.getLogger(UserStorageUtil.class);
 
     private final AesFileUtil aesFileUtil;
+    private final CompressionUtil compressionUtil;
+    private final StorageBackend storageBackend;
+    private final StorageMetrics storageMetrics;
+
+    @Value("${storage.blobs.enabled:true}")
+    private boolean blobsEnabled;
+
+    // Keys blob names, so the names on disk do not give away which known files a volume holds
+    @Value("${storage.blobs.name-secret:${aes.secret}}")
+    private String blobNameSecret;
 
     @Autowired
-    public UserStorageUtil(AesFileUtil aesFileUtil) {
+    public UserStorageUtil(AesFileUtil aesFileUtil, CompressionUtil compressionUtil, StorageBackend storageBackend,
+                           StorageMetrics storageMetrics) {
         this.aesFileUtil = aesFileUtil;
+        this.compressionUtil = compressionUtil;
+        this.storageBackend = storageBackend;
+        this.storageMetrics = storageMetrics;
     }
 
     public MyUser getCurrentUser() {
@@ -29,12 +80,93 @@ public class UserStorageUtil {
         return userDetails.getMyUser();
     }
 
+    // Whether objects are files on a local filesystem; features built on paths are only available then
+    public boolean isLocalStorage() {
+        return !storageBackend.localRoots().isEmpty();
+    }
+
     public Path getUserRootDir(MyUser user) {
-        File userDir = new File(STORAGE_PATH + File.separator + user.getId());
-        if (!userDir.exists()) {
-            userDir.mkdirs();
+        return getUserRootDir(user.getId());
+    }
+
+    // Pinned, so a layout migration cannot move the user between resolving the directory and creating it
+    public Path getUserRootDir(Long userId) {
+        String owner = String.valueOf(userId);
+        try {
+            return storageBackend.pinOwner(owner, () -> {
+                Path userDir = storageBackend.localPath(owner)
+                    .orElseThrow(() -> new UnsupportedOperationException("This operation needs a local storage backend"));
+                File userDirFile = userDir.toFile();
+                if (!userDirFile.exists()) {
+                    userDirFile.mkdirs();
+                }
+                return userDir.toAbsolutePath().normalize();
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The storage root a user directory is on; not necessarily its parent, see StorageLayout
+    public Path getVolumeRoot(Path userDirPath) {
+        return storageBackend.localRoots().stream()
+            .filter(userDirPath::startsWith)
+            .findFirst()
+            .orElse(userDirPath.getParent());
+    }
+
+    // On the same volume as the user directory so moving a folder in is a single rename
+    public Path getTrashDir(Path userDirPath) throws IOException {
+        return Files.createDirectories(getVolumeRoot(userDirPath).resolve(TRASH_DIR_NAME));
+    }
+
+    public List<Path> getTrashDirs() {
+        return storageBackend.localRoots().stream().map(root -> root.resolve(TRASH_DIR_NAME)).toList();
+    }
+
+    public List<Path> getBlobDirs() {
+        return storageBackend.localRoots().stream().map(root -> root.resolve(BLOB_DIR_NAME)).toList();
+    }
+
+    // Storage key of an entry: the owner's id followed by its "/"-separated relative path
+    public String objectKey(Long userId, String relativePath) {
+        return relativePath.isEmpty() ? String.valueOf(userId) : userId + "/" + relativePath;
+    }
+
+    /**
+     * "/"-separated relative path with "." and ".." resolved, "" for the root. Works on the string alone,
+     * so it also guards keys of backends that have no filesystem to normalize against.
+     */
+    public String normalizeRelativePath(String relativePath) {
+        Deque<String> segments = new ArrayDeque<>();
+        for (String segment : relativePath.split("[/\\\\]")) {
+            if (segment.isEmpty() || segment.equals(".")) {
+                continue;
+            }
+            if (segment.equals("..")) {
+                if (segments.isEmpty()) {
+                    throw new SecurityException("Access denied: File is not in the storage directory");
+                }
+                segments.removeLast();
+            } else {
+                segments.addLast(segment);
+            }
+        }
+        return String.join("/", segments);
+    }
+
+    // Joins a single name onto a folder path; the name may not point anywhere else
+    public String childPath(String folderRelativePath, String name) {
+        String child = normalizeRelativePath(name == null ? "" : name);
+        if (child.isEmpty() || child.contains("/")) {
+            throw new SecurityException("Access denied: File is not in the storage directory");
         }
-        return userDir.toPath().toAbsolutePath().normalize();
+        return folderRelativePath.isEmpty() ? child : folderRelativePath + "/" + child;
+    }
+
+    public static String parentOf(String relativePath) {
+        int slash = relativePath.lastIndexOf('/');
+        return slash < 0 ? "" : relativePath.substring(0, slash);
     }
 
     public Path getFolderPath(Path userDirPath, String relativePath) {
@@ -46,31 +178,184 @@ public class UserStorageUtil {
         return folderPath;
     }
 
-    public Path putFileInTheFolder(Path userDirPath, MultipartFile fileToSave) {
-        Path fileToUploadPath = Paths.get(userDirPath.toString(),
-            fileToSave.getOriginalFilename()).toAbsolutePath().normalize();
+    // "/"-separated path of an entry below the user root, "" for the root itself
+    public String toRelativePath(Path userDirPath, Path path) {
+        return userDirPath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    public boolean isInFlightUpload(String fileName) {
+        return fileName.startsWith(UPLOAD_TEMP_PREFIX);
+    }
 
-        if (!fileToUploadPath.startsWith(userDirPath)) {
-            throw new SecurityException("Access denied: File is not in the storage directory");
+    public String inFlightUploadName(String uploadId) {
+        return UPLOAD_TEMP_PREFIX + uploadId + ".part";
+    }
+
+    /**
+     * Encrypts the upload into the folder and returns where it landed. The plaintext is hashed on the way
+     * through. On a local backend the file is written next to its target and renamed into place, and
+     * when blob dedupe is on it ends up as a hard link to {@code .blobs/<name>}, named by an HMAC of the
+     * plaintext hash under {@code storage.blobs.name-secret}; if that blob already
+     * exists the fresh ciphertext is dropped and the existing blob is linked instead, so identical
+     * content is stored once however many users upload it. That saves space, not writes: the hash is
+     * only known at the end of the stream, so a duplicate is still encrypted and written in full first.
+     * A hash sent by the client up front is deliberately not trusted to skip the write, since it would
+     * let anyone who knows a hash link content they never had. Other backends get the ciphertext
+     * streamed straight into {@link StorageBackend#put}.
+     *
+     * Content the plan compresses is compressed before encryption unless the first bytes show it is
+     * compressed already; see {@link CompressionUtil#choose}.
+     */
+    public SavedFile putFileInTheFolder(Long userId, String folderRelativePath, MultipartFile fileToSave,
+                                        CompressionCodec planCodec) {
+        String relativePath = childPath(normalizeRelativePath(folderRelativePath), fileToSave.getOriginalFilename());
+        String key = objectKey(userId, relativePath);
+        try {
+            MessageDigest digest = MessageDigest.getInstance(CONTENT_HASH_ALGORITHM);
+            boolean deduplicated = false;
+            long storedSize;
+            if (isLocalStorage()) {
+                // Resolved and written while pinned, so a layout migration cannot move the folder away in between
+                long[] size = new long[1];
+                deduplicated = storageBackend.pinOwner(key, () -> {
+                    Path localTarget = storageBackend.localPath(key).orElseThrow();
+                    try {
+                        boolean linked = putLocalFile(localTarget, getVolumeRoot(getUserRootDir(userId)), fileToSave, planCodec, digest);
+                        size[0] = Files.size(localTarget);
+                        return linked;
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException("Error while writing " + key, e);
+                    }
+                });
+                storedSize = size[0];
+            } else {
+                long[] written = new long[1];
+                storageBackend.put(key, out -> {
+                    try (InputStream in = new DigestInputStream(fileToSave.getInputStream(), digest)) {
+                        written[0] = encrypt(in, out, fileToSave, planCodec);
+                    }
+                });
+                storedSize = written[0];
+            }
+            return new SavedFile(relativePath, HexFormat.of().formatHex(digest.digest()), deduplicated, storedSize);
+        } catch (Exception e) {
+            throw new RuntimeException("Error while encrypting file", e);
         }
-        File tempFile = null;
+    }
+
+    // Peeks at the head of the upload to pick the codec, then encrypts all of it
+    private long encrypt(InputStream in, OutputStream out, MultipartFile fileToSave, CompressionCodec planCodec)
+        throws IOException, GeneralSecurityException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+        buffered.mark(CompressionUtil.SAMPLE_SIZE);
+        byte[] sample = buffered.readNBytes(CompressionUtil.SAMPLE_SIZE);
+        buffered.reset();
+        CompressionCodec codec = compressionUtil.choose(planCodec, fileToSave.getOriginalFilename(), fileToSave.getSize(),
+            sample, sample.length);
+        long start = System.nanoTime();
+        long written = aesFileUtil.encrypt(buffered, out, codec, fileToSave.getSize());
+        storageMetrics.encrypted(start, fileToSave.getSize());
+        return written;
+    }
+
+    private boolean putLocalFile(Path fileToUploadPath, Path volumeRoot, MultipartFile fileToSave, CompressionCodec planCodec,
+                                 MessageDigest digest) throws Exception {
+        // Encrypt straight from the multipart stream into a temp file next to the target,
+        // then rename it into place so a failed upload never leaves a partial file behind
+        Path tempFile = null;
+        long tempBytes = 0;
         try {
-            tempFile = File.createTempFile("upload", ".tmp");
+            tempFile = Files.createTempFile(fileToUploadPath.getParent(), UPLOAD_TEMP_PREFIX, ".part");
+            storageMetrics.tempFileCreated();
 
-            try (InputStream in = fileToSave.getInputStream();
-                 OutputStream out = new FileOutputStream(tempFile)) {
-                in.transferTo(out);
+            try (InputStream in = new DigestInputStream(fileToSave.getInputStream(), digest);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile), 64 * 1024)) {
+                tempBytes = encrypt(in, out, fileToSave, planCodec);
             }
 
-            aesFileUtil.encryptFile(tempFile, fileToUploadPath.toFile());
-
-            return fileToUploadPath;
-        } catch (Exception e) {
-            throw new RuntimeException("Error while encrypting file", e);
+            boolean deduplicated = false;
+            if (blobsEnabled) {
+                long start = System.nanoTime();
+                // digest() resets the digest, so hash a clone and leave the original for the caller
+                MessageDigest finished = (MessageDigest) digest.clone();
+                deduplicated = linkToBlob(tempFile, blobPath(volumeRoot, blobName(finished.digest())));
+                storageMetrics.stage(StorageMetrics.STAGE_DEDUPE, start);
+            }
+            long start = System.nanoTime();
+            moveIntoPlace(tempFile, fileToUploadPath);
+            storageMetrics.stage(StorageMetrics.STAGE_RENAME, start);
+            tempFile = null;
+            storageMetrics.tempFileGone(tempBytes);
+            return deduplicated;
         } finally {
-            if (tempFile != null && tempFile.exists()) {
-                tempFile.delete();
+            if (tempFile != null) {
+                storageMetrics.tempFileGone(tempBytes);
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException ignored) {
+                    // Nothing more we can do, the temp name is never exposed to users
+                }
             }
         }
     }
+
+    // Storage name of whatever is kept per content (blobs, derivatives), from the hex SHA-256 of the plaintext
+    public String contentName(String contentHash) {
+        try {
+            return blobName(HexFormat.of().parseHex(contentHash));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not derive the storage name of a content hash", e);
+        }
+    }
+
+    private String blobName(byte[] contentHash) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(BLOB_NAME_ALGORITHM);
+        mac.init(new SecretKeySpec(blobNameSecret.getBytes(StandardCharsets.UTF_8), BLOB_NAME_ALGORITHM));
+        return HexFormat.of().formatHex(mac.doFinal(contentHash));
+    }
+
+    // Two levels of two hex characters keep every bucket small: .blobs/ab/cd/abcd...; blobs sit on the
+    // volume of the users linking them, since hard links cannot cross filesystems
+    private static Path blobPath(Path volumeRoot, String blobName) {
+        return volumeRoot.resolve(BLOB_DIR_NAME).resolve(blobName.substring(0, 2)).resolve(blobName.substring(2, 4))
+            .resolve(blobName);
+    }
+
+    /**
+     * Makes {@code tempFile} a link to {@code blob}. If the blob exists the temp file is
+     * replaced by a new link to it and true is returned; otherwise the temp file becomes the blob. Any
+     * filesystem that cannot hard link just keeps the temp file as a plain, unshared copy.
+     */
+    private boolean linkToBlob(Path tempFile, Path blob) throws IOException {
+        Files.createDirectories(blob.getParent());
+        try {
+            if (Files.exists(blob)) {
+                Path link = tempFile.resolveSibling(inFlightUploadName(UUID.randomUUID().toString()));
+                try {
+                    Files.createLink(link, blob);
+                    Files.move(link, tempFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    return true;
+                } catch (NoSuchFileException e) {
+                    // Swept by the blob GC in between; keep our own ciphertext as the new blob
+                    Files.deleteIfExists(link);
+                }
+            }
+            Files.createLink(blob, tempFile);
+        } catch (FileAlreadyExistsException e) {
+            // A concurrent upload of the same content created the blob first; ours stays a private copy
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            logger.debug("Could not link {} into the blob store: {}", tempFile, e.getMessage());
+        }
+        return false;
+    }
+
+    private void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }
@@ -0,0 +1,64 @@
+package com.example.cloud.config;
+
+import com.example.cloud.cloud.storage.LocalStorageBackend;
+import com.example.cloud.cloud.storage.S3StorageBackend;
+import com.example.cloud.cloud.storage.ShardedStorageBackend;
+import com.example.cloud.cloud.storage.StorageBackend;
+import com.example.cloud.cloud.storage.StorageLayout;
+import com.example.cloud.cloud.util.JobExecutors;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+
+// Picks the StorageBackend from storage.backend: local (default), sharded or s3
+@Configuration
+public class StorageConfig {
+
+    @Bean
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "local", matchIfMissing = true)
+    public StorageBackend localStorageBackend(@Value("${storage.path}") String path,
+                                              @Value("${storage.layout:flat}") StorageLayout layout) {
+        return new LocalStorageBackend(Path.of(path), layout);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "sharded")
+    public StorageBackend shardedStorageBackend(@Value("${storage.volumes}") List<String> volumes,
+                                                @Value("${storage.layout:flat}") StorageLayout layout) {
+        return new ShardedStorageBackend(volumes.stream().map(String::trim).map(Path::of).toList(), layout);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "storage.backend", havingValue = "s3")
+    public StorageBackend s3StorageBackend(JobExecutors jobExecutors,
+                                           @Value("${storage.s3.endpoint:}") String endpoint,
+                                           @Value("${storage.s3.region:us-east-1}") String region,
+                                           @Value("${storage.s3.bucket}") String bucket,
+                                           @Value("${storage.s3.access-key:}") String accessKey,
+                                           @Value("${storage.s3.secret-key:}") String secretKey,
+                                           @Value("${storage.s3.part-size-bytes:8388608}") int partSize,
+                                           @Value("${storage.s3.upload-parallelism:4}") int parallelism) {
+        S3ClientBuilder builder = S3Client.builder().region(Region.of(region));
+        if (!endpoint.isBlank()) {
+            // MinIO and most other S3-compatible stores only do path-style addressing
+            builder.endpointOverride(URI.create(endpoint)).forcePathStyle(true);
+        }
+        builder.credentialsProvider(accessKey.isBlank()
+            ? DefaultCredentialsProvider.create()
+            : StaticCredentialsProvider.create(AwsBasicCredentials.create(accessKey, secretKey)));
+        // Transfers only block on the network, but the pool still caps the requests in flight
+        return new S3StorageBackend(builder.build(), bucket, partSize, parallelism,
+            jobExecutors.newExecutor("s3-transfer", parallelism));
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.cloud.benchmark;
+
+import com.example.cloud.cloud.model.CompressionCodec;
+import com.example.cloud.cloud.util.AesFileUtil;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream encryption and decryption throughput by file size; MB/s is size / time per op. format compares
+ * the version 1 path (AES-CTR under aes.secret) with envelope encryption (a data key per file, AES-GCM in
+ * 64 KiB segments). rotateKey is what a master key rotation costs per file, whatever its size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AesFileUtilBenchmark {
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    @Param({"CTR", "ENVELOPE_GCM"})
+    public String format;
+
+    private AesFileUtil aesFileUtil;
+    private byte[] plain;
+    private byte[] text;
+    private byte[] encrypted;
+    private byte[] header;
+    private AesFileUtil rotating;
+
+    @Setup
+    public void setUp() throws Exception {
+        aesFileUtil = new AesFileUtil();
+        ReflectionTestUtils.setField(aesFileUtil, "SECRET", "taderathebest123");
+        ReflectionTestUtils.setField(aesFileUtil, "envelope", format.equals("ENVELOPE_GCM"));
+
+        plain = new byte[size];
+        new Random(42).nextBytes(plain);
+        // Log-like text, the kind of upload the compressed format is for
+        StringBuilder lines = new StringBuilder(size + 100);
+        for (int i = 0; lines.length() < size; i++) {
+            lines.append("2024-05-01T12:00:").append(i % 60).append(" INFO request ").append(i).append(" served in 3ms\n");
+        }
+        text = lines.substring(0, size).getBytes();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + AesFileUtil.GCM_HEADER_LENGTH + size / 1024);
+        aesFileUtil.encrypt(new ByteArrayInputStream(plain), out);
+        encrypted = out.toByteArray();
+        header = Arrays.copyOf(encrypted, AesFileUtil.GCM_HEADER_LENGTH);
+        // Rewrapping to the key that is already active is a no-op, so rotation benchmarks move files to "next"
+        rotating = new AesFileUtil();
+        ReflectionTestUtils.setField(rotating, "SECRET", "taderathebest123");
+        ReflectionTestUtils.setField(rotating, "masterKeySpec", "next:" + Base64.getEncoder().encodeToString(new byte[32]));
+        ReflectionTestUtils.setField(rotating, "masterKeyId", "next");
+    }
+
+    @Benchmark
+    public long encrypt() throws Exception {
+        return aesFileUtil.encrypt(new ByteArrayInputStream(plain), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public long encryptCompressedText() throws Exception {
+        return aesFileUtil.encrypt(new ByteArrayInputStream(text), OutputStream.nullOutputStream(), CompressionCodec.ZSTD, text.length);
+    }
+
+    @Benchmark
+    public void decrypt() throws Exception {
+        aesFileUtil.decrypt(new ByteArrayInputStream(encrypted), OutputStream.nullOutputStream());
+    }
+
+    // A 64 KB seek into the middle of the file, as a Range request does
+    @Benchmark
+    public void decryptRange() throws Exception {
+        long length = Math.min(64 * 1024, plain.length);
+        aesFileUtil.decryptRange(encrypted.length,
+            (position, count) -> new ByteArrayInputStream(encrypted, (int) position, (int) count),
+            (plain.length - length) / 2, length, OutputStream.nullOutputStream());
+    }
+
+    // Unwrap with the old master key and wrap with the new one; null for the CTR format, which has no data key
+    @Benchmark
+    public byte[] rotateKey() throws Exception {
+        return AesFileUtil.isEnveloped(header) ? rotating.rewrapHeader(header) : null;
+    }
+}
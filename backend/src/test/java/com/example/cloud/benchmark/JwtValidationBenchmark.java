@@ -0,0 +1,55 @@
+package com.example.cloud.benchmark;
+
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.security.jwt.JwtClaims;
+import com.example.cloud.auth.security.jwt.JwtUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+// Per-request token validation cost in JwtFilter, before and after reusing the verifier
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtValidationBenchmark {
+    private static final String SECRET = "tadera the best";
+
+    private JwtUtil jwtUtil;
+    private String token;
+
+    @Setup
+    public void setUp() {
+        jwtUtil = new JwtUtil(SECRET, 86_400_000, new SimpleMeterRegistry());
+        MyUser user = new MyUser();
+        user.setId(42L);
+        user.setUsername("benchmark-user");
+        user.setRole("ROLE_USER");
+        token = jwtUtil.generateJwtToken(user);
+    }
+
+    // The old path: logger lookup, new Algorithm and JWTVerifier per call, then a second decode for the subject
+    @Benchmark
+    public String perRequestVerifierAndSecondDecode() {
+        LoggerFactory.getLogger(JwtUtil.class);
+        Algorithm algorithm = Algorithm.HMAC256(SECRET);
+        JWT.require(algorithm).build().verify(token);
+        return JWT.decode(token).getSubject();
+    }
+
+    @Benchmark
+    public JwtClaims sharedVerifierSingleParse() {
+        return jwtUtil.verify(token).orElseThrow();
+    }
+
+    @Benchmark
+    public boolean validateJwtToken() {
+        return jwtUtil.validateJwtToken(token);
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.cloud.benchmark;
+
+import com.example.cloud.cloud.model.CompressionCodec;
+import com.example.cloud.cloud.model.SavedFile;
+import com.example.cloud.cloud.storage.LocalStorageBackend;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.CompressionUtil;
+import com.example.cloud.cloud.util.StorageMetrics;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UserStorageUtil.putFileInTheFolder end to end on a local backend: sniffing, compression, encryption,
+ * hashing, the temp file and the rename into place. With blobs on, every upload after the first finds its
+ * blob already stored, so that variant measures the dedupe path of a re-upload.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutFileBenchmark {
+    @Param({"65536", "4194304"})
+    public int size;
+
+    @Param({"random", "text"})
+    public String content;
+
+    @Param({"false", "true"})
+    public boolean blobs;
+
+    private Path root;
+    private UserStorageUtil userStorageUtil;
+    private MockMultipartFile upload;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("put-file-bench");
+
+        AesFileUtil aesFileUtil = new AesFileUtil();
+        ReflectionTestUtils.setField(aesFileUtil, "SECRET", "taderathebest123");
+        CompressionUtil compressionUtil = new CompressionUtil();
+        ReflectionTestUtils.setField(compressionUtil, "enabled", true);
+        ReflectionTestUtils.setField(compressionUtil, "defaultCodec", CompressionCodec.ZSTD);
+        userStorageUtil = new UserStorageUtil(aesFileUtil, compressionUtil, new LocalStorageBackend(root),
+            new StorageMetrics(new SimpleMeterRegistry()));
+        ReflectionTestUtils.setField(userStorageUtil, "blobsEnabled", blobs);
+
+        byte[] bytes = new byte[size];
+        if ("random".equals(content)) {
+            new Random(42).nextBytes(bytes);
+        } else {
+            StringBuilder lines = new StringBuilder(size + 100);
+            for (int i = 0; lines.length() < size; i++) {
+                lines.append("2024-05-01T12:00:").append(i % 60).append(" INFO request ").append(i).append(" served in 3ms\n");
+            }
+            bytes = lines.substring(0, size).getBytes();
+        }
+        upload = new MockMultipartFile("file", "random".equals(content) ? "data.bin" : "server.log",
+            "application/octet-stream", bytes);
+        Files.createDirectories(userStorageUtil.getUserRootDir(1L).resolve("docs"));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public SavedFile putFileInTheFolder() {
+        return userStorageUtil.putFileInTheFolder(1L, "docs", upload, CompressionCodec.ZSTD);
+    }
+}
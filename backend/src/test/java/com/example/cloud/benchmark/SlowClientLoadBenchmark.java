@@ -0,0 +1,152 @@
+package com.example.cloud.benchmark;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tomcat with its default 200 platform threads against a virtual thread per request, while slowClients
+ * downloads are held open by clients that read a few KB at a time, like phones on a bad network pulling
+ * a large file. Each slow download keeps its request blocked in a socket write. The benchmark samples the
+ * latency of a small request arriving meanwhile, so the p99 shows when the container runs out of threads;
+ * a request that gets no thread at all counts at the client timeout.
+ *
+ * mvn -Pbenchmark test -Dbenchmark.include=SlowClientLoad
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SlowClientLoadBenchmark {
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    private static final int WRITE_CHUNK = 64 * 1024;
+    private static final long SLOW_BODY_BYTES = 1L << 30; // Never finishes at the slow clients' pace
+    private static final int SLOW_READ_BYTES = 4096;
+    private static final long SLOW_READ_INTERVAL_MS = 100;
+
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    @Param({"100", "400"})
+    public int slowClients;
+
+    private Tomcat tomcat;
+    private URI smallUri;
+    private HttpClient client;
+    private final List<Socket> slowSockets = new ArrayList<>();
+    private ExecutorService slowReaders;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        tomcat = new Tomcat();
+        tomcat.setBaseDir(Files.createTempDirectory("slow-client-bench").toString());
+        Connector connector = new Connector();
+        connector.setPort(0);
+        if ("virtual".equals(threads)) {
+            // What spring.threads.virtual.enabled configures on the embedded Tomcat
+            connector.getProtocolHandler().setExecutor(new VirtualThreadExecutor("bench-vt-"));
+        }
+        tomcat.setConnector(connector);
+
+        Context context = tomcat.addContext("", null);
+        Tomcat.addServlet(context, "files", new FileServlet());
+        context.addServletMappingDecoded("/*", "files");
+        tomcat.start();
+
+        int port = connector.getLocalPort();
+        smallUri = URI.create("http://localhost:" + port + "/small");
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(REQUEST_TIMEOUT).build();
+
+        slowReaders = Executors.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < slowClients; i++) {
+            Socket socket = new Socket();
+            socket.setReceiveBufferSize(SLOW_READ_BYTES); // A small window, so the server's writes block early
+            socket.connect(new InetSocketAddress("localhost", port));
+            socket.getOutputStream().write("GET /large HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            slowSockets.add(socket);
+            slowReaders.execute(() -> readSlowly(socket));
+        }
+        // Give every slow download time to reach a blocked write
+        Thread.sleep(2000);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        for (Socket socket : slowSockets) {
+            socket.close();
+        }
+        slowSockets.clear();
+        slowReaders.shutdownNow();
+        client.close();
+        tomcat.stop();
+        tomcat.destroy();
+    }
+
+    @Benchmark
+    public int smallRequest() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(smallUri).timeout(REQUEST_TIMEOUT).build();
+        try {
+            return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+        } catch (HttpTimeoutException e) {
+            return -1;
+        }
+    }
+
+    private static void readSlowly(Socket socket) {
+        byte[] buffer = new byte[SLOW_READ_BYTES];
+        try (InputStream in = socket.getInputStream()) {
+            while (in.read(buffer) >= 0) {
+                Thread.sleep(SLOW_READ_INTERVAL_MS);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Closed at tear down
+        }
+    }
+
+    // Stands in for the download endpoints: a blocking write loop that only advances as fast as the client reads
+    private static class FileServlet extends HttpServlet {
+        private static final byte[] CHUNK = new byte[WRITE_CHUNK];
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            response.setContentType("application/octet-stream");
+            if (!"/large".equals(request.getRequestURI())) {
+                response.getOutputStream().write("ok".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            response.setContentLengthLong(SLOW_BODY_BYTES);
+            OutputStream out = response.getOutputStream();
+            for (long written = 0; written < SLOW_BODY_BYTES; written += CHUNK.length) {
+                out.write(CHUNK);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.cloud.benchmark;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.repository.MyUserRepository;
+import com.example.cloud.cloud.model.UserStorageStats;
+import com.example.cloud.cloud.repository.UserStorageStatsRepository;
+import com.example.cloud.cloud.service.ChunkedUploadService;
+import com.example.cloud.cloud.service.FolderCopyJobService;
+import com.example.cloud.cloud.service.StorageQuotaService;
+import com.example.cloud.cloud.service.StorageQuotaReconciler;
+import com.example.cloud.cloud.service.UserStorageStatsService;
+import com.example.cloud.cloud.storage.LocalStorageBackend;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.StorageMetrics;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A user's storage totals computed recursively from disk (the walk the quota reconciler does, reading
+ * every file's header for its plaintext length) against the running counters the stats endpoint serves.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageStatsBenchmark {
+    private static final Long USER_ID = 1L;
+    private static final int FILES_PER_FOLDER = 100;
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private Path root;
+    private MyUser user;
+    private StorageQuotaReconciler reconciler;
+    private UserStorageStatsService statsService;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("stats-bench");
+        AesFileUtil aesFileUtil = new AesFileUtil();
+        ReflectionTestUtils.setField(aesFileUtil, "SECRET", "taderathebest123");
+
+        byte[] content = new byte[1000];
+        long stored = 0;
+        for (int i = 0; i < files; i++) {
+            Path folder = Files.createDirectories(root.resolve(USER_ID + "/folder-" + i / FILES_PER_FOLDER));
+            try (OutputStream out = Files.newOutputStream(folder.resolve("file-" + i + ".txt"))) {
+                stored = aesFileUtil.encrypt(new ByteArrayInputStream(content), out);
+            }
+        }
+
+        user = new MyUser();
+        user.setId(USER_ID);
+        user.setUsedStorageBytes((long) files * content.length);
+
+        MyUserRepository myUserRepository = Mockito.mock(MyUserRepository.class);
+        Mockito.when(myUserRepository.findById(USER_ID)).thenReturn(Optional.of(user));
+        ChunkedUploadService chunkedUploadService = Mockito.mock(ChunkedUploadService.class);
+        UserStorageUtil userStorageUtil = new UserStorageUtil(aesFileUtil, null, new LocalStorageBackend(root),
+            new StorageMetrics(new SimpleMeterRegistry()));
+        reconciler = new StorageQuotaReconciler(myUserRepository, userStorageUtil, aesFileUtil, chunkedUploadService,
+            Mockito.mock(FolderCopyJobService.class), Mockito.mock(StorageQuotaService.class));
+
+        UserStorageStatsRepository statsRepository = Mockito.mock(UserStorageStatsRepository.class);
+        Mockito.when(statsRepository.findById(USER_ID)).thenReturn(Optional.of(new UserStorageStats(USER_ID, files,
+            files / FILES_PER_FOLDER, (long) files * content.length, files * stored,
+            Instant.now())));
+        statsService = new UserStorageStatsService(statsRepository, null, myUserRepository);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public void recursiveWalk() throws Exception {
+        reconciler.reconcile(USER_ID);
+    }
+
+    @Benchmark
+    public UserStorageStats runningCounters() {
+        return statsService.getStats(USER_ID);
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.cloud.benchmark;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.auth.security.service.UserDetailsImpl;
+import com.example.cloud.cloud.dto.FileFolderResponseDto;
+import com.example.cloud.cloud.model.FolderVersion;
+import com.example.cloud.cloud.model.StoredObject;
+import com.example.cloud.cloud.model.StoredObjectType;
+import com.example.cloud.cloud.service.FolderService;
+import com.example.cloud.cloud.service.StoredObjectIndexService;
+import com.example.cloud.cloud.storage.LocalStorageBackend;
+import com.example.cloud.cloud.storage.StorageEntry;
+import com.example.cloud.cloud.util.ConditionalRequests;
+import com.example.cloud.cloud.util.StorageMetrics;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+
+/**
+ * FolderService.viewFolder on folders of 10, 1k and 100k entries. The index service answers its keyset
+ * pages from memory, so this measures the paging and DTO assembly, not Postgres. listDirectory is the
+ * same folder listed from disk through the storage backend, which is what a listing cost before the index
+ * and what folder downloads and copies still pay. revalidateFolder is a client that already has the
+ * listing sending its ETag back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ViewFolderBenchmark {
+    private static final Long USER_ID = 1L;
+
+    @Param({"10", "1000", "100000"})
+    public int entries;
+
+    private Path root;
+    private LocalStorageBackend storageBackend;
+    private FolderService folderService;
+    private String etag;
+
+    @Setup
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("view-folder-bench");
+        storageBackend = new LocalStorageBackend(root);
+        Path folder = Files.createDirectories(root.resolve(USER_ID + "/photos"));
+
+        // One folder per hundred files, named so they sort the way the index would return them
+        StoredObject[] rows = new StoredObject[entries];
+        for (int i = 0; i < entries; i++) {
+            boolean isFolder = i % 100 == 0;
+            String name = String.format("entry-%06d%s", i, isFolder ? "" : ".jpg");
+            rows[i] = new StoredObject(USER_ID, "photos", name, isFolder ? StoredObjectType.FOLDER : StoredObjectType.FILE,
+                isFolder ? 0 : 1024L * i, Instant.now());
+            if (isFolder) {
+                Files.createDirectory(folder.resolve(name));
+            } else {
+                Files.createFile(folder.resolve(name));
+            }
+        }
+
+        StoredObjectIndexService index = Mockito.mock(StoredObjectIndexService.class);
+        Mockito.when(index.isFolder(anyLong(), anyString())).thenReturn(true);
+        FolderVersion version = new FolderVersion();
+        version.setVersion(1);
+        version.setChangedAt(Instant.now());
+        Mockito.when(index.folderVersion(anyLong(), anyString())).thenReturn(version);
+        Mockito.when(index.listChildren(anyLong(), anyString(), any(), anyInt())).thenAnswer(call -> {
+            String afterName = call.getArgument(2);
+            int limit = call.getArgument(3);
+            int from = afterName.isEmpty() ? 0 : afterIndex(rows, afterName);
+            return new ArrayList<>(Arrays.asList(rows).subList(from, Math.min(rows.length, from + limit)));
+        });
+
+        StorageMetrics storageMetrics = new StorageMetrics(new SimpleMeterRegistry());
+        UserStorageUtil userStorageUtil = new UserStorageUtil(null, null, storageBackend, storageMetrics);
+        folderService = new FolderService(userStorageUtil, index, null, null, null, storageBackend, storageMetrics,
+            new ConditionalRequests());
+        etag = ConditionalRequests.strongEtag("v" + version.getVersion());
+
+        MyUser user = new MyUser();
+        user.setId(USER_ID);
+        user.setUsername("benchmark-user");
+        SecurityContextHolder.setStrategyName(SecurityContextHolder.MODE_GLOBAL);
+        SecurityContextHolder.getContext().setAuthentication(
+            new UsernamePasswordAuthenticationToken(new UserDetailsImpl(user), null, List.of()));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        SecurityContextHolder.clearContext();
+        FileSystemUtils.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public ResponseEntity<FileFolderResponseDto> viewFolder() {
+        return folderService.viewFolder("photos", null, null);
+    }
+
+    @Benchmark
+    public ResponseEntity<FileFolderResponseDto> revalidateFolder() {
+        return folderService.viewFolder("photos", etag, null);
+    }
+
+    @Benchmark
+    public List<StorageEntry> listDirectory() throws Exception {
+        return storageBackend.list(USER_ID + "/photos");
+    }
+
+    private static int afterIndex(StoredObject[] rows, String name) {
+        int low = 0;
+        int high = rows.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rows[mid].getName().compareTo(name) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.cloud.cloud.service;
+
+import com.example.cloud.auth.model.MyUser;
+import com.example.cloud.cloud.dto.UploadInitiateRequestDto;
+import com.example.cloud.cloud.storage.LocalStorageBackend;
+import com.example.cloud.cloud.util.AesFileUtil;
+import com.example.cloud.cloud.util.StorageMetrics;
+import com.example.cloud.cloud.util.UserStorageUtil;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChunkedUploadServiceTests {
+
+    private static final Long USER_ID = 1L;
+    private static final int CHUNK_SIZE = 2 * AesFileUtil.SEGMENT_SIZE;
+    private static final int TOTAL_SIZE = 3 * AesFileUtil.SEGMENT_SIZE;
+
+    @TempDir
+    Path root;
+
+    private StorageQuotaService storageQuotaService;
+    private ChunkedUploadService service;
+
+    @BeforeEach
+    void setUp() {
+        AesFileUtil aesFileUtil = new AesFileUtil();
+        ReflectionTestUtils.setField(aesFileUtil, "SECRET", "taderathebest123");
+        LocalStorageBackend backend = new LocalStorageBackend(root);
+        UserStorageUtil userStorageUtil = Mockito.spy(new UserStorageUtil(aesFileUtil, null, backend,
+            new StorageMetrics(new SimpleMeterRegistry())));
+        MyUser user = new MyUser();
+        user.setId(USER_ID);
+        Mockito.doReturn(user).when(userStorageUtil).getCurrentUser();
+
+        storageQuotaService = Mockito.mock(StorageQuotaService.class);
+        service = new ChunkedUploadService(userStorageUtil, aesFileUtil, storageQuotaService,
+            Mockito.mock(StoredObjectIndexService.class), backend, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(service, "chunkSize", (long) CHUNK_SIZE);
+    }
+
+    @Test
+    void refusesAChunkThatWasAlreadyReceived() {
+        String uploadId = initiate();
+
+        assertThat(service.putChunk(uploadId, 0, body(CHUNK_SIZE)).getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(service.putChunk(uploadId, 0, body(CHUNK_SIZE)).getStatusCode()).isEqualTo(HttpStatus.CONFLICT);
+    }
+
+    @Test
+    void dropsTheSessionWhenAChunkFailsAfterSealingStarted() throws IOException {
+        String uploadId = initiate();
+
+        // Every segment of the chunk is sealed before the extra byte is noticed
+        assertThat(service.putChunk(uploadId, 0, body(CHUNK_SIZE + 1)).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+
+        // A resend with other bytes would reuse the same nonces, so there is nothing left to resend to
+        assertThat(service.putChunk(uploadId, 0, body(CHUNK_SIZE)).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        assertThat(service.status(uploadId).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        assertThat(service.hasOpenSessions(USER_ID)).isFalse();
+        Mockito.verify(storageQuotaService).releaseStorage(USER_ID, TOTAL_SIZE);
+        try (Stream<Path> files = Files.list(root.resolve(String.valueOf(USER_ID)))) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void dropsTheSessionWhenAChunkEndsEarly() {
+        String uploadId = initiate();
+
+        assertThat(service.putChunk(uploadId, 1, body(10)).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(service.putChunk(uploadId, 1, body(AesFileUtil.SEGMENT_SIZE)).getStatusCode()).isEqualTo(HttpStatus.NOT_FOUND);
+        Mockito.verify(storageQuotaService).releaseStorage(USER_ID, TOTAL_SIZE);
+    }
+
+    private String initiate() {
+        UploadInitiateRequestDto request = new UploadInitiateRequestDto();
+        request.setFolderPath("");
+        request.setFileName("video.bin");
+        request.setTotalSize(TOTAL_SIZE);
+        return service.initiate(request).getBody().getUploadId();
+    }
+
+    private static ByteArrayInputStream body(int length) {
+        return new ByteArrayInputStream(new byte[length]);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.cloud.cloud.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class LocalStorageBackendLayoutTests {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void hashedLayoutFansUsersOutBelowTheUsersDirectory() throws IOException {
+        LocalStorageBackend backend = new LocalStorageBackend(root, StorageLayout.HASHED);
+        backend.put("42/docs/a.txt", out -> out.write("hello".getBytes(StandardCharsets.UTF_8)));
+
+        Path userDir = backend.localPath("42").orElseThrow();
+        assertThat(userDir).isEqualTo(StorageLayout.HASHED.ownerDir(root, "42"));
+        assertThat(root.relativize(userDir).getNameCount()).isEqualTo(4);
+        assertThat(Files.exists(root.resolve("42"))).isFalse();
+        assertThat(Files.isRegularFile(userDir.resolve("docs/a.txt"))).isTrue();
+    }
+
+    @Test
+    void hashedLayoutServesFlatUsersBeforeAndAfterMigration() throws IOException {
+        new LocalStorageBackend(root).put("7/notes.txt", out -> out.write("flat".getBytes(StandardCharsets.UTF_8)));
+        LocalStorageBackend backend = new LocalStorageBackend(root, StorageLayout.HASHED);
+
+        assertThat(backend.localPath("7/notes.txt").orElseThrow()).isEqualTo(root.resolve("7/notes.txt"));
+        assertThat(read(backend, "7/notes.txt")).isEqualTo("flat");
+
+        assertThat(StorageLayout.migrate(root, "7")).isTrue();
+        assertThat(StorageLayout.migrate(root, "7")).isFalse();
+
+        assertThat(backend.localPath("7").orElseThrow()).isEqualTo(StorageLayout.HASHED.ownerDir(root, "7"));
+        assertThat(read(backend, "7/notes.txt")).isEqualTo("flat");
+        // The link keeps paths resolved before the move working
+        assertThat(Files.isSymbolicLink(root.resolve("7"))).isTrue();
+        assertThat(Files.readString(root.resolve("7/notes.txt"))).isEqualTo("flat");
+    }
+
+    @Test
+    void migrationMergesIntoAnExistingHashedDirectory() throws IOException {
+        Path flat = root.resolve("9");
+        Files.createDirectories(flat.resolve("docs"));
+        Files.writeString(flat.resolve("docs/only-flat.txt"), "flat");
+        Path hashed = StorageLayout.HASHED.ownerDir(root, "9");
+        Files.createDirectories(hashed.resolve("docs"));
+        Files.writeString(hashed.resolve("docs/only-hashed.txt"), "hashed");
+
+        assertThat(StorageLayout.migrate(root, "9")).isTrue();
+
+        assertThat(Files.readString(hashed.resolve("docs/only-flat.txt"))).isEqualTo("flat");
+        assertThat(Files.readString(hashed.resolve("docs/only-hashed.txt"))).isEqualTo("hashed");
+        assertThat(Files.isSymbolicLink(flat)).isTrue();
+    }
+
+    @Test
+    void migrationSkipsOwnersWithPinnedWritesOrThatCannotMove() throws Exception {
+        new LocalStorageBackend(root).put("5/a.txt", out -> out.write("a".getBytes(StandardCharsets.UTF_8)));
+        LocalStorageBackend backend = new LocalStorageBackend(root, StorageLayout.HASHED);
+
+        assertThat(backend.migrateOwner("5", () -> false)).isFalse();
+        // The write lock is only ever tried, so a write pinned on another thread makes the migration skip the owner
+        boolean[] migrated = new boolean[1];
+        backend.pinOwner("5/a.txt", () -> {
+            Thread other = new Thread(() -> {
+                try {
+                    migrated[0] = backend.migrateOwner("5", () -> true);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            other.start();
+            try {
+                other.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+        assertThat(migrated[0]).isFalse();
+        assertThat(Files.isDirectory(root.resolve("5"), LinkOption.NOFOLLOW_LINKS)).isTrue();
+
+        assertThat(backend.migrateOwner("5", () -> true)).isTrue();
+        assertThat(read(backend, "5/a.txt")).isEqualTo("a");
+    }
+
+    @Test
+    void rejectsKeysEscapingTheOwnerDirectory() {
+        LocalStorageBackend backend = new LocalStorageBackend(root, StorageLayout.HASHED);
+
+        assertThatThrownBy(() -> backend.localPath("42/../43/secret.txt")).isInstanceOf(SecurityException.class);
+        assertThatThrownBy(() -> backend.localPath("../etc")).isInstanceOf(SecurityException.class);
+    }
+
+    private static String read(LocalStorageBackend backend, String key) throws IOException {
+        try (InputStream in = backend.get(key)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.cloud.cloud.storage;
+
+import com.example.cloud.cloud.util.JobExecutors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class S3StorageBackendTests {
+
+    private static final int PART_SIZE = 5 * 1024 * 1024;
+
+    private S3StubServer stub;
+    private S3StorageBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        stub = new S3StubServer();
+        S3Client client = S3Client.builder()
+            .endpointOverride(stub.endpoint())
+            .region(Region.US_EAST_1)
+            .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("test", "test")))
+            .forcePathStyle(true)
+            .build();
+        backend = new S3StorageBackend(client, "bucket", PART_SIZE, 2, new JobExecutors(false).newExecutor("s3-transfer", 2));
+    }
+
+    @AfterEach
+    void tearDown() {
+        backend.close();
+        stub.close();
+    }
+
+    @Test
+    void storesSmallObjectsInOneRequestAndReadsRanges() throws IOException {
+        byte[] content = randomBytes(10_000);
+        backend.put("1/notes.txt", out -> out.write(content));
+
+        assertThat(stub.partsReceived.get()).isZero();
+        try (InputStream in = backend.get("1/notes.txt")) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+        try (InputStream in = backend.getRange("1/notes.txt", 100, 50)) {
+            assertThat(in.readAllBytes()).isEqualTo(Arrays.copyOfRange(content, 100, 150));
+        }
+        StorageEntry entry = backend.stat("1/notes.txt").orElseThrow();
+        assertThat(entry.isFolder()).isFalse();
+        assertThat(entry.getSize()).isEqualTo(content.length);
+    }
+
+    @Test
+    void uploadsLargeObjectsInParts() throws IOException {
+        byte[] content = randomBytes(2 * PART_SIZE + 12_345);
+        backend.put("1/video.bin", out -> {
+            // Uneven writes so parts never line up with the caller's buffers
+            for (int offset = 0; offset < content.length; offset += 70_001) {
+                out.write(content, offset, Math.min(70_001, content.length - offset));
+            }
+        });
+
+        assertThat(stub.partsReceived.get()).isEqualTo(3);
+        assertThat(stub.openUploads()).isZero();
+        try (InputStream in = backend.get("1/video.bin")) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+        try (InputStream in = backend.getRange("1/video.bin", PART_SIZE - 10, 20)) {
+            assertThat(in.readAllBytes()).isEqualTo(Arrays.copyOfRange(content, PART_SIZE - 10, PART_SIZE + 10));
+        }
+    }
+
+    @Test
+    void abortsTheUploadWhenTheWriterFails() {
+        byte[] content = randomBytes(PART_SIZE + 1);
+        assertThatThrownBy(() -> backend.put("1/broken.bin", out -> {
+            out.write(content);
+            throw new IOException("client went away");
+        })).isInstanceOf(IOException.class);
+
+        assertThat(stub.keys()).isEmpty();
+        assertThat(stub.openUploads()).isZero();
+    }
+
+    @Test
+    void listsMovesAndDeletesFolders() throws IOException {
+        backend.createFolder("1/docs");
+        backend.put("1/docs/a.txt", out -> out.write(1));
+        backend.put("1/docs/sub/b.txt", out -> out.write(new byte[]{1, 2}));
+        backend.put("1/top.txt", out -> out.write(3));
+
+        List<StorageEntry> root = backend.list("1");
+        assertThat(root).extracting(StorageEntry::getName).containsExactlyInAnyOrder("docs", "top.txt");
+        assertThat(backend.list("1/docs")).extracting(StorageEntry::getName).containsExactlyInAnyOrder("a.txt", "sub");
+
+        backend.move("1/docs", "1/archive");
+        assertThat(backend.stat("1/docs")).isEmpty();
+        try (InputStream in = backend.get("1/archive/sub/b.txt")) {
+            assertThat(in.readAllBytes()).containsExactly(1, 2);
+        }
+
+        backend.delete("1/archive");
+        assertThat(stub.keys()).containsExactly("1/top.txt");
+    }
+
+    @Test
+    void replacesOnlyTheVersionThatWasRead() throws IOException {
+        backend.put("1/notes.txt", out -> out.write(new byte[]{1}));
+        String version = backend.version("1/notes.txt").orElseThrow();
+
+        backend.put("1/notes.txt", out -> out.write(new byte[]{2}));
+        assertThat(backend.replaceIfVersion("1/notes.txt", version, out -> out.write(new byte[]{3}))).isFalse();
+        try (InputStream in = backend.get("1/notes.txt")) {
+            assertThat(in.readAllBytes()).containsExactly(2);
+        }
+
+        String current = backend.version("1/notes.txt").orElseThrow();
+        assertThat(backend.replaceIfVersion("1/notes.txt", current, out -> out.write(new byte[]{3}))).isTrue();
+        try (InputStream in = backend.get("1/notes.txt")) {
+            assertThat(in.readAllBytes()).containsExactly(3);
+        }
+
+        // A deleted object is not brought back
+        String last = backend.version("1/notes.txt").orElseThrow();
+        backend.delete("1/notes.txt");
+        assertThat(backend.version("1/notes.txt")).isEmpty();
+        assertThat(backend.replaceIfVersion("1/notes.txt", last, out -> out.write(new byte[]{4}))).isFalse();
+        assertThat(stub.keys()).doesNotContain("1/notes.txt");
+    }
+
+    @Test
+    void copiesObjectsWithoutOverwriting() throws IOException {
+        byte[] content = randomBytes(1000);
+        backend.put("1/a.bin", out -> out.write(content));
+
+        backend.copy("1/a.bin", "1/docs/b.bin");
+        try (InputStream in = backend.get("1/docs/b.bin")) {
+            assertThat(in.readAllBytes()).isEqualTo(content);
+        }
+        assertThat(backend.stat("1/a.bin")).isPresent();
+
+        assertThatThrownBy(() -> backend.copy("1/a.bin", "1/docs/b.bin")).isInstanceOf(FileAlreadyExistsException.class);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
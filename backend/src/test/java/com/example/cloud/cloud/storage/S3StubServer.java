@@ -0,0 +1,306 @@
+package com.example.cloud.cloud.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Just enough of the S3 REST API (path-style, one bucket) to run S3StorageBackend against, MinIO style
+class S3StubServer implements AutoCloseable {
+    private static final Pattern DELETE_KEY = Pattern.compile("<Key>(.*?)</Key>");
+
+    private final HttpServer server;
+    private final NavigableMap<String, byte[]> objects = new ConcurrentSkipListMap<>();
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger uploadIds = new AtomicInteger();
+    final AtomicInteger partsReceived = new AtomicInteger();
+
+    S3StubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    URI endpoint() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    Set<String> keys() {
+        return objects.keySet();
+    }
+
+    int openUploads() {
+        return uploads.size();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getRawPath();
+            String key = decode(path.substring(path.indexOf('/', 1) < 0 ? path.length() : path.indexOf('/', 1) + 1));
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            switch (exchange.getRequestMethod()) {
+                case "PUT" -> put(exchange, key, query);
+                case "POST" -> post(exchange, key, query);
+                case "GET" -> {
+                    if (query.containsKey("list-type")) {
+                        list(exchange, query);
+                    } else {
+                        get(exchange, key);
+                    }
+                }
+                case "HEAD" -> head(exchange, key);
+                case "DELETE" -> {
+                    if (query.containsKey("uploadId")) {
+                        uploads.remove(query.get("uploadId"));
+                    } else {
+                        objects.remove(key);
+                    }
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                default -> exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    private void put(HttpExchange exchange, String key, Map<String, String> query) throws IOException {
+        String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+        if (copySource != null) {
+            String sourceKey = decode(copySource.substring(copySource.indexOf('/', 1) + 1));
+            byte[] source = objects.get(sourceKey);
+            if (source == null) {
+                error(exchange, 404, "NoSuchKey");
+                return;
+            }
+            objects.put(key, source);
+            xml(exchange, 200, "<CopyObjectResult><ETag>\"copy\"</ETag><LastModified>" + now() + "</LastModified></CopyObjectResult>");
+            return;
+        }
+        byte[] body = body(exchange);
+        if (query.containsKey("uploadId")) {
+            Map<Integer, byte[]> parts = uploads.get(query.get("uploadId"));
+            if (parts == null) {
+                error(exchange, 404, "NoSuchUpload");
+                return;
+            }
+            parts.put(Integer.parseInt(query.get("partNumber")), body);
+            partsReceived.incrementAndGet();
+        } else {
+            if (!matches(exchange, key)) {
+                error(exchange, 412, "PreconditionFailed");
+                return;
+            }
+            objects.put(key, body);
+        }
+        exchange.getResponseHeaders().add("ETag", "\"" + md5(body) + "\"");
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void post(HttpExchange exchange, String key, Map<String, String> query) throws IOException {
+        String body = new String(body(exchange), StandardCharsets.UTF_8);
+        if (query.containsKey("uploads")) {
+            String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new ConcurrentSkipListMap<>());
+            xml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>bucket</Bucket><Key>" + key + "</Key><UploadId>"
+                + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if (query.containsKey("uploadId")) {
+            if (!matches(exchange, key)) {
+                error(exchange, 412, "PreconditionFailed");
+                return;
+            }
+            Map<Integer, byte[]> parts = uploads.remove(query.get("uploadId"));
+            ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+            for (byte[] part : parts.values()) {
+                assembled.write(part);
+            }
+            objects.put(key, assembled.toByteArray());
+            xml(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key><ETag>\"done\"</ETag></CompleteMultipartUploadResult>");
+        } else if (query.containsKey("delete")) {
+            Matcher matcher = DELETE_KEY.matcher(body);
+            while (matcher.find()) {
+                objects.remove(matcher.group(1));
+            }
+            xml(exchange, 200, "<DeleteResult></DeleteResult>");
+        } else {
+            exchange.sendResponseHeaders(400, -1);
+        }
+    }
+
+    private void get(HttpExchange exchange, String key) throws IOException {
+        byte[] object = objects.get(key);
+        if (object == null) {
+            error(exchange, 404, "NoSuchKey");
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        int from = 0;
+        int to = object.length - 1;
+        int status = 200;
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            from = Integer.parseInt(bounds[0]);
+            to = Math.min(to, Integer.parseInt(bounds[1]));
+            status = 206;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + object.length);
+        }
+        exchange.getResponseHeaders().add("Last-Modified", httpDate());
+        exchange.sendResponseHeaders(status, to - from + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(object, from, to - from + 1);
+        }
+    }
+
+    private void head(HttpExchange exchange, String key) throws IOException {
+        byte[] object = objects.get(key);
+        if (object == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.length));
+        exchange.getResponseHeaders().add("ETag", "\"" + md5(object) + "\"");
+        exchange.getResponseHeaders().add("Last-Modified", httpDate());
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+        StringBuilder contents = new StringBuilder();
+        Set<String> commonPrefixes = new TreeSet<>();
+        int count = 0;
+        for (Map.Entry<String, byte[]> entry : objects.tailMap(prefix, true).entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(prefix) || count >= maxKeys) {
+                break;
+            }
+            int cut = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (cut >= 0) {
+                if (commonPrefixes.add(key.substring(0, cut + 1))) {
+                    count++;
+                }
+            } else {
+                contents.append("<Contents><Key>").append(key).append("</Key><Size>").append(entry.getValue().length)
+                    .append("</Size><LastModified>").append(now()).append("</LastModified></Contents>");
+                count++;
+            }
+        }
+        StringBuilder xml = new StringBuilder("<ListBucketResult><Name>bucket</Name><Prefix>").append(prefix)
+            .append("</Prefix><KeyCount>").append(count).append("</KeyCount><IsTruncated>false</IsTruncated>").append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(commonPrefix).append("</Prefix></CommonPrefixes>");
+        }
+        xml(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    // Request bodies may arrive aws-chunked: "<hex size>;chunk-signature=...\r\n<data>\r\n" until a zero-size chunk
+    private static byte[] body(HttpExchange exchange) throws IOException {
+        byte[] raw;
+        try (InputStream in = exchange.getRequestBody()) {
+            raw = in.readAllBytes();
+        }
+        String contentSha = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (contentSha == null || !contentSha.startsWith("STREAMING-")) {
+            return raw;
+        }
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < raw.length) {
+            int lineEnd = indexOf(raw, position);
+            String header = new String(raw, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";")[0].trim(), 16);
+            if (size == 0) {
+                break;
+            }
+            decoded.write(raw, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    // If-Match against the MD5 ETag of what is stored; a missing object never matches
+    private boolean matches(HttpExchange exchange, String key) {
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch == null) {
+            return true;
+        }
+        byte[] current = objects.get(key);
+        return current != null && ifMatch.equals("\"" + md5(current) + "\"");
+    }
+
+    // Clients check the ETag of a single-part PUT against their own MD5
+    private static String md5(byte[] body) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(body));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length - 1; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return bytes.length;
+    }
+
+    private static void xml(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void error(HttpExchange exchange, int status, String code) throws IOException {
+        xml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery != null) {
+            for (String pair : rawQuery.split("&")) {
+                int eq = pair.indexOf('=');
+                query.put(decode(eq < 0 ? pair : pair.substring(0, eq)), eq < 0 ? "" : decode(pair.substring(eq + 1)));
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value.replace("+", "%2B"), StandardCharsets.UTF_8);
+    }
+
+    private static String now() {
+        return DateTimeFormatter.ISO_INSTANT.format(Instant.now());
+    }
+
+    private static String httpDate() {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.now().atOffset(ZoneOffset.UTC));
+    }
+}
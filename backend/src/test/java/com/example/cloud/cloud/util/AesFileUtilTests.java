@@ -0,0 +1,225 @@
+package com.example.cloud.cloud.util;
+
+import com.example.cloud.cloud.model.CompressionCodec;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AesFileUtilTests {
+
+    private static final String SECRET = "taderathebest123";
+
+    private AesFileUtil aesFileUtil;
+
+    @BeforeEach
+    void setUp() {
+        aesFileUtil = new AesFileUtil();
+        ReflectionTestUtils.setField(aesFileUtil, "SECRET", SECRET);
+    }
+
+    @Test
+    void roundTripsAcrossBufferBoundaries() throws Exception {
+        for (int size : new int[]{0, 1, 15, 16, 64 * 1024, 64 * 1024 + 7, 2 * 64 * 1024, 300_000}) {
+            byte[] plain = randomBytes(size);
+
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            long written = aesFileUtil.encrypt(new ByteArrayInputStream(plain), encrypted);
+            long segments = Math.max(1, (size + AesFileUtil.SEGMENT_SIZE - 1) / AesFileUtil.SEGMENT_SIZE);
+            assertThat(encrypted.size()).isEqualTo(written).isEqualTo(AesFileUtil.GCM_HEADER_LENGTH + size + 16 * segments);
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            aesFileUtil.decrypt(new ByteArrayInputStream(encrypted.toByteArray()), decrypted);
+            assertThat(decrypted.toByteArray()).isEqualTo(plain);
+        }
+    }
+
+    @Test
+    void decryptsLegacyEcbFiles() throws Exception {
+        byte[] plain = randomBytes(100_000);
+        Cipher legacy = Cipher.getInstance("AES");
+        legacy.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET.getBytes(), 0, 16, "AES"));
+        byte[] legacyCiphertext = legacy.doFinal(plain);
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        aesFileUtil.decrypt(new ByteArrayInputStream(legacyCiphertext), decrypted);
+        assertThat(decrypted.toByteArray()).isEqualTo(plain);
+    }
+
+    @Test
+    void decryptsArbitraryRangesOfEveryFormat(@TempDir Path dir) throws Exception {
+        byte[] plain = randomBytes(200_003);
+
+        Path current = dir.resolve("current");
+        try (OutputStream out = Files.newOutputStream(current)) {
+            aesFileUtil.encrypt(new ByteArrayInputStream(plain), out);
+        }
+        Path ctr = dir.resolve("ctr");
+        ReflectionTestUtils.setField(aesFileUtil, "envelope", false);
+        try (OutputStream out = Files.newOutputStream(ctr)) {
+            aesFileUtil.encrypt(new ByteArrayInputStream(plain), out);
+        }
+        ReflectionTestUtils.setField(aesFileUtil, "envelope", true);
+        Cipher legacy = Cipher.getInstance("AES");
+        legacy.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SECRET.getBytes(), 0, 16, "AES"));
+        Path legacyFile = Files.write(dir.resolve("legacy"), legacy.doFinal(plain));
+
+        for (Path file : new Path[]{current, ctr, legacyFile}) {
+            assertThat(aesFileUtil.plainLength(file)).isEqualTo(plain.length);
+            for (long[] range : new long[][]{{0, plain.length}, {1, 15}, {17, 70_000}, {65_535, 2}, {131_072, 65_536}, {plain.length - 3, 3}}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                aesFileUtil.decryptRange(file, range[0], range[1], out);
+                assertThat(out.toByteArray())
+                    .isEqualTo(Arrays.copyOfRange(plain, (int) range[0], (int) (range[0] + range[1])));
+            }
+        }
+    }
+
+    @Test
+    void compressesBeforeEncryptingAndDecryptsRanges(@TempDir Path dir) throws Exception {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            csv.append(i).append(",user-").append(i % 97).append(",").append(i * 31 % 1000).append('\n');
+        }
+        byte[] plain = csv.toString().getBytes(StandardCharsets.UTF_8);
+
+        for (CompressionCodec codec : new CompressionCodec[]{CompressionCodec.DEFLATE, CompressionCodec.ZSTD}) {
+            Path file = dir.resolve(codec.name());
+            long written;
+            try (OutputStream out = Files.newOutputStream(file)) {
+                written = aesFileUtil.encrypt(new ByteArrayInputStream(plain), out, codec, plain.length);
+            }
+            assertThat(written).isEqualTo(Files.size(file)).isLessThan(plain.length / 3);
+            assertThat(aesFileUtil.plainLength(file)).isEqualTo(plain.length);
+
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            aesFileUtil.decrypt(new ByteArrayInputStream(Files.readAllBytes(file)), decrypted);
+            assertThat(decrypted.toByteArray()).isEqualTo(plain);
+
+            for (long[] range : new long[][]{{0, plain.length}, {1, 15}, {100_000, 70_000}, {plain.length - 3, 3}}) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                aesFileUtil.decryptRange(file, range[0], range[1], out);
+                assertThat(out.toByteArray())
+                    .isEqualTo(Arrays.copyOfRange(plain, (int) range[0], (int) (range[0] + range[1])));
+            }
+        }
+    }
+
+    @Test
+    void rejectsModifiedAndTruncatedFiles() throws Exception {
+        byte[] plain = randomBytes(2 * AesFileUtil.SEGMENT_SIZE + 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        aesFileUtil.encrypt(new ByteArrayInputStream(plain), out);
+        byte[] encrypted = out.toByteArray();
+
+        byte[] flipped = encrypted.clone();
+        flipped[AesFileUtil.GCM_HEADER_LENGTH + 1000] ^= 1;
+        // Cut right after the second segment, so what is left is well-formed except for the last-segment flag
+        byte[] truncated = Arrays.copyOf(encrypted, AesFileUtil.GCM_HEADER_LENGTH + 2 * (AesFileUtil.SEGMENT_SIZE + 16));
+
+        for (byte[] damaged : new byte[][]{flipped, truncated}) {
+            assertThatThrownBy(() -> aesFileUtil.decrypt(new ByteArrayInputStream(damaged), OutputStream.nullOutputStream()))
+                .isInstanceOf(IOException.class);
+        }
+        assertThatThrownBy(() -> aesFileUtil.decryptRange(truncated.length,
+            (position, length) -> new ByteArrayInputStream(truncated, (int) position, (int) length),
+            AesFileUtil.SEGMENT_SIZE, 10, OutputStream.nullOutputStream()))
+            .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void writesSegmentsAtTheirOffsetsInAnyOrder(@TempDir Path dir) throws Exception {
+        int chunkSize = 2 * AesFileUtil.SEGMENT_SIZE;
+        byte[] plain = randomBytes(5 * AesFileUtil.SEGMENT_SIZE + 123);
+        byte[] header = aesFileUtil.newHeader();
+
+        Path file = dir.resolve("chunked");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header));
+            for (int offset = plain.length / chunkSize * chunkSize; offset >= 0; offset -= chunkSize) {
+                int length = Math.min(chunkSize, plain.length - offset);
+                aesFileUtil.encryptAt(header, plain.length, offset, new ByteArrayInputStream(plain, offset, length), length, channel);
+            }
+        }
+
+        assertThat(Files.size(file)).isEqualTo(aesFileUtil.storedLength(header, plain.length));
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        aesFileUtil.decrypt(new ByteArrayInputStream(Files.readAllBytes(file)), decrypted);
+        assertThat(decrypted.toByteArray()).isEqualTo(plain);
+    }
+
+    @Test
+    void rotatesTheMasterKeyWithoutTouchingThePayload(@TempDir Path dir) throws Exception {
+        byte[] plain = randomBytes(100_000);
+        Path file = dir.resolve("file");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            aesFileUtil.encrypt(new ByteArrayInputStream(plain), out);
+        }
+        byte[] before = Files.readAllBytes(file);
+
+        AesFileUtil rotated = new AesFileUtil();
+        ReflectionTestUtils.setField(rotated, "SECRET", SECRET);
+        ReflectionTestUtils.setField(rotated, "masterKeySpec", "2025-q1:" + Base64.getEncoder().encodeToString(randomBytes(32)));
+        ReflectionTestUtils.setField(rotated, "masterKeyId", "2025-q1");
+
+        assertThat(rotated.rewrap(file)).isEqualTo(AesFileUtil.RewrapResult.REWRAPPED);
+        assertThat(rotated.rewrap(file)).isEqualTo(AesFileUtil.RewrapResult.CURRENT);
+        byte[] after = Files.readAllBytes(file);
+        assertThat(Arrays.copyOfRange(after, AesFileUtil.GCM_HEADER_LENGTH, after.length))
+            .isEqualTo(Arrays.copyOfRange(before, AesFileUtil.GCM_HEADER_LENGTH, before.length));
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        rotated.decrypt(new ByteArrayInputStream(after), decrypted);
+        assertThat(decrypted.toByteArray()).isEqualTo(plain);
+        // Without the new master key the file no longer opens
+        assertThatThrownBy(() -> aesFileUtil.decrypt(new ByteArrayInputStream(after), OutputStream.nullOutputStream()))
+            .isInstanceOf(IOException.class);
+
+        ReflectionTestUtils.setField(aesFileUtil, "envelope", false);
+        Path ctr = dir.resolve("ctr");
+        try (OutputStream out = Files.newOutputStream(ctr)) {
+            aesFileUtil.encrypt(new ByteArrayInputStream(plain), out);
+        }
+        assertThat(rotated.rewrap(ctr)).isEqualTo(AesFileUtil.RewrapResult.NOT_ENVELOPED);
+    }
+
+    @Test
+    void leavesIncompressibleContentUncompressed() {
+        CompressionUtil compressionUtil = new CompressionUtil();
+        ReflectionTestUtils.setField(compressionUtil, "enabled", true);
+        byte[] text = "timestamp,level,message\n".repeat(200).getBytes(StandardCharsets.UTF_8);
+        byte[] noise = randomBytes(CompressionUtil.SAMPLE_SIZE);
+        byte[] png = Arrays.copyOf(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}, 64);
+
+        assertThat(compressionUtil.choose(CompressionCodec.ZSTD, "log.csv", 100_000, text, text.length)).isEqualTo(CompressionCodec.ZSTD);
+        assertThat(compressionUtil.choose(CompressionCodec.ZSTD, "data.bin", 100_000, noise, noise.length)).isEqualTo(CompressionCodec.NONE);
+        assertThat(compressionUtil.choose(CompressionCodec.ZSTD, "image", 100_000, png, png.length)).isEqualTo(CompressionCodec.NONE);
+        assertThat(compressionUtil.choose(CompressionCodec.ZSTD, "movie.MP4", 100_000, text, text.length)).isEqualTo(CompressionCodec.NONE);
+        assertThat(compressionUtil.choose(CompressionCodec.NONE, "log.csv", 100_000, text, text.length)).isEqualTo(CompressionCodec.NONE);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
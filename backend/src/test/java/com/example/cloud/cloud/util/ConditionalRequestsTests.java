@@ -0,0 +1,59 @@
+package com.example.cloud.cloud.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConditionalRequestsTests {
+
+    private static final String ETAG = ConditionalRequests.strongEtag("abc123");
+    private static final Instant MODIFIED = Instant.parse("2024-05-01T10:15:30.250Z");
+
+    private final ConditionalRequests conditionalRequests = new ConditionalRequests();
+
+    @Test
+    void ifNoneMatchWinsOverIfModifiedSince() {
+        assertThat(conditionalRequests.notModified("\"other\", W/\"abc123\"", null, ETAG, MODIFIED)).isTrue();
+        assertThat(conditionalRequests.notModified("*", null, ETAG, MODIFIED)).isTrue();
+        // A stale tag is not rescued by a date that would otherwise match
+        assertThat(conditionalRequests.notModified("\"other\"", "Wed, 01 May 2024 10:15:30 GMT", ETAG, MODIFIED)).isFalse();
+        assertThat(conditionalRequests.notModified("\"abc123\"", null, null, MODIFIED)).isFalse();
+    }
+
+    @Test
+    void comparesDatesInWholeSeconds() {
+        assertThat(conditionalRequests.notModified(null, "Wed, 01 May 2024 10:15:30 GMT", ETAG, MODIFIED)).isTrue();
+        assertThat(conditionalRequests.notModified(null, "Wed, 01 May 2024 10:15:29 GMT", ETAG, MODIFIED)).isFalse();
+        assertThat(conditionalRequests.notModified(null, "yesterday", ETAG, MODIFIED)).isFalse();
+    }
+
+    @Test
+    void rangeAppliesOnlyToTheSameCopy() {
+        assertThat(conditionalRequests.rangeApplies(null, ETAG, MODIFIED)).isTrue();
+        assertThat(conditionalRequests.rangeApplies(ETAG, ETAG, MODIFIED)).isTrue();
+        assertThat(conditionalRequests.rangeApplies("W/\"abc123\"", ETAG, MODIFIED)).isFalse();
+        assertThat(conditionalRequests.rangeApplies("Wed, 01 May 2024 10:15:30 GMT", ETAG, MODIFIED)).isTrue();
+        assertThat(conditionalRequests.rangeApplies("Wed, 01 May 2024 10:15:29 GMT", ETAG, MODIFIED)).isFalse();
+    }
+
+    @Test
+    void sharedProxyModeVariesByAuthorization() {
+        HttpHeaders browserOnly = conditionalRequests.withValidators(ResponseEntity.status(HttpStatus.NOT_MODIFIED), ETAG, MODIFIED)
+            .build().getHeaders();
+        assertThat(browserOnly.getCacheControl()).isEqualTo(CacheControl.noCache().cachePrivate().getHeaderValue());
+        assertThat(browserOnly.getVary()).isEmpty();
+
+        ReflectionTestUtils.setField(conditionalRequests, "sharedProxy", true);
+        HttpHeaders shared = conditionalRequests.withValidators(ResponseEntity.ok(), ETAG, MODIFIED).build().getHeaders();
+        assertThat(shared.getCacheControl()).doesNotContain("private").contains("no-cache", "must-revalidate");
+        assertThat(shared.getVary()).containsExactly(HttpHeaders.AUTHORIZATION);
+        assertThat(shared.getETag()).isEqualTo(ETAG);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.cloud.cloud.util;
+
+import com.example.cloud.cloud.model.DerivativeKind;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThumbnailUtilTests {
+
+    private ThumbnailUtil thumbnailUtil;
+
+    @BeforeEach
+    void setUp() {
+        thumbnailUtil = new ThumbnailUtil();
+        ReflectionTestUtils.setField(thumbnailUtil, "thumbnailSize", 256);
+    }
+
+    @Test
+    void scalesImagesIntoTheThumbnailSquare() throws Exception {
+        BufferedImage photo = new BufferedImage(3000, 2000, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(42);
+        for (int y = 0; y < photo.getHeight(); y += 10) {
+            photo.setRGB(random.nextInt(photo.getWidth()), y, random.nextInt());
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(photo, "png", png);
+
+        byte[] thumbnail = thumbnailUtil.render(DerivativeKind.IMAGE, png.toByteArray());
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(thumbnail));
+        assertThat(decoded.getWidth()).isEqualTo(256);
+        assertThat(decoded.getHeight()).isEqualTo(171);
+        assertThat(thumbnail.length).isLessThan(64 * 1024);
+    }
+
+    @Test
+    void rendersTheFirstPdfPage() throws Exception {
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream();
+        try (PDDocument document = new PDDocument()) {
+            document.addPage(new PDPage(PDRectangle.A4));
+            document.addPage(new PDPage(PDRectangle.A4));
+            document.save(pdf);
+        }
+
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(thumbnailUtil.render(DerivativeKind.PDF, pdf.toByteArray())));
+
+        assertThat(decoded.getHeight()).isEqualTo(256);
+        assertThat(decoded.getWidth()).isLessThan(256);
+    }
+
+    @Test
+    void returnsNullForContentThatIsNotAnImage() throws Exception {
+        assertThat(thumbnailUtil.render(DerivativeKind.IMAGE, "not an image".getBytes(StandardCharsets.UTF_8))).isNull();
+    }
+
+    @Test
+    void cutsTextPreviewsWithoutSplittingACharacter() throws Exception {
+        byte[] text = "ж".repeat(ThumbnailUtil.TEXT_PREVIEW_BYTES).getBytes(StandardCharsets.UTF_8);
+        assertThat(thumbnailUtil.sourceBytes(DerivativeKind.TEXT, text.length)).isEqualTo(ThumbnailUtil.TEXT_PREVIEW_BYTES);
+
+        byte[] head = new byte[ThumbnailUtil.TEXT_PREVIEW_BYTES + 1];
+        System.arraycopy(text, 1, head, 0, head.length);
+        String preview = new String(thumbnailUtil.render(DerivativeKind.TEXT, head), StandardCharsets.UTF_8);
+
+        assertThat(preview).doesNotEndWith("\uFFFD");
+        assertThat(preview.substring(1)).matches("ж+");
+    }
+}